@@ -0,0 +1,53 @@
+package highduck.capacitor.billing;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.Locale;
+
+/**
+ * Counts the objects and bytes allocated by a benchmarked operation.
+ * The benchmark library only reports time, so allocations are measured in a separate
+ * run after the timed loop and reported next to it in the instrumentation output.
+ */
+final class Allocations {
+    private static final String TAG = "BillingBenchmark";
+    private static final int ITERATIONS = 50;
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    private Allocations() {
+    }
+
+    @SuppressWarnings("deprecation")
+    static void report(String name, Operation operation) throws Exception {
+        // warm up, so that lazy initialization is not counted
+        operation.run();
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < ITERATIONS; ++i) {
+                operation.run();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        long count = Debug.getThreadAllocCount() / ITERATIONS;
+        long size = Debug.getThreadAllocSize() / ITERATIONS;
+
+        String message = String.format(Locale.US, "%s: %,d allocations, %,d bytes per operation", name, count, size);
+        Log.i(TAG, message);
+        Bundle status = new Bundle();
+        status.putString("android.studio.display.benchmark", message);
+        status.putLong(name + "_allocationCount", count);
+        status.putLong(name + "_allocationBytes", size);
+        InstrumentationRegistry.getInstrumentation().sendStatus(2, status);
+    }
+}
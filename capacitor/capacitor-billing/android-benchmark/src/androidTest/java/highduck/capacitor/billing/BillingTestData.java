@@ -0,0 +1,73 @@
+package highduck.capacitor.billing;
+
+import android.util.Base64;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Locale;
+
+/**
+ * Receipts and listings shaped like the ones returned by Google Play,
+ * signed with a freshly generated developer key.
+ */
+final class BillingTestData {
+    static final String PACKAGE_NAME = "com.example.game";
+
+    final KeyPair keyPair;
+    final String base64PublicKey;
+
+    BillingTestData() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            // Google Play developer keys are 2048-bit RSA keys
+            generator.initialize(2048);
+            keyPair = generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        base64PublicKey = Base64.encodeToString(keyPair.getPublic().getEncoded(), Base64.NO_WRAP);
+    }
+
+    static String sku(int index) {
+        return String.format(Locale.US, "item_%04d", index);
+    }
+
+    static String purchaseJson(int index) {
+        StringBuilder token = new StringBuilder();
+        while (token.length() < 160) {
+            token.append(Integer.toHexString((index + 1) * 0x9E3779B1 + token.length()));
+        }
+        return "{\"orderId\":\"GPA.3312-" + String.format(Locale.US, "%04d-%04d-%05d", index, index * 7 % 10000, index * 13 % 100000) + "\","
+                + "\"packageName\":\"" + PACKAGE_NAME + "\","
+                + "\"productId\":\"" + sku(index) + "\","
+                + "\"purchaseTime\":" + (1600000000000L + index * 1000L) + ","
+                + "\"purchaseState\":0,"
+                + "\"developerPayload\":\"\","
+                + "\"purchaseToken\":\"" + token + "\","
+                + "\"acknowledged\":false}";
+    }
+
+    static String skuDetailsJson(int index) {
+        return "{\"skuDetailsToken\":\"AEuhp4JEb0yPp0bF5uH0Wn3fGRZbbW1DhIk5YIxXbC4V6M1tWz2yF_WVcLGs\","
+                + "\"productId\":\"" + sku(index) + "\","
+                + "\"type\":\"inapp\","
+                + "\"price\":\"$" + (index % 100) + ".99\","
+                + "\"price_amount_micros\":" + ((index % 100) * 1000000L + 990000L) + ","
+                + "\"price_currency_code\":\"USD\","
+                + "\"title\":\"Item " + index + " (Example Game)\","
+                + "\"description\":\"A pack of " + (index * 10) + " coins to spend in the shop.\"}";
+    }
+
+    String sign(String data) {
+        try {
+            Signature signature = Signature.getInstance("SHA1withRSA");
+            signature.initSign(keyPair.getPrivate());
+            signature.update(data.getBytes());
+            return Base64.encodeToString(signature.sign(), Base64.NO_WRAP);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package highduck.capacitor.billing;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import com.getcapacitor.JSArray;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Work done for every owned item while restoring purchases: parsing receipts and listings,
+ * verifying signatures, looking up owned products and building the results sent to JS.
+ * Each benchmark processes a whole inventory of the given size per iteration.
+ */
+@RunWith(Parameterized.class)
+public class RestoreBenchmark {
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private static final BillingTestData DATA = new BillingTestData();
+
+    @Parameterized.Parameters(name = "items={0}")
+    public static List<Object[]> sizes() {
+        return Arrays.asList(new Object[][]{{1}, {10}, {100}, {1000}});
+    }
+
+    private final int size;
+
+    private final List<String> purchaseData = new ArrayList<>();
+    private final List<String> signatures = new ArrayList<>();
+    private final List<String> skuDetailsData = new ArrayList<>();
+    private final List<Purchase> purchases = new ArrayList<>();
+    private Inventory inventory;
+
+    public RestoreBenchmark(int size) {
+        this.size = size;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        inventory = new Inventory();
+        for (int i = 0; i < size; ++i) {
+            String data = BillingTestData.purchaseJson(i);
+            purchaseData.add(data);
+            signatures.add(DATA.sign(data));
+            skuDetailsData.add(BillingTestData.skuDetailsJson(i));
+            // one in four owned items is a subscription
+            String itemType = i % 4 == 0 ? IabHelper.ITEM_TYPE_SUBS : IabHelper.ITEM_TYPE_INAPP;
+            Purchase purchase = new Purchase(itemType, data, signatures.get(i));
+            purchases.add(purchase);
+            inventory.addPurchase(purchase);
+        }
+    }
+
+    private String name(String benchmark) {
+        return benchmark + "_items" + size;
+    }
+
+    @Test
+    public void parsePurchases() throws Exception {
+        final BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < size; ++i) {
+                new Purchase(IabHelper.ITEM_TYPE_INAPP, purchaseData.get(i), signatures.get(i));
+            }
+        }
+        Allocations.report(name("parsePurchases"), () -> {
+            for (int i = 0; i < size; ++i) {
+                new Purchase(IabHelper.ITEM_TYPE_INAPP, purchaseData.get(i), signatures.get(i));
+            }
+        });
+    }
+
+    @Test
+    public void parseSkuDetails() throws Exception {
+        final BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < size; ++i) {
+                new SkuDetails(IabHelper.ITEM_TYPE_INAPP, skuDetailsData.get(i));
+            }
+        }
+        Allocations.report(name("parseSkuDetails"), () -> {
+            for (int i = 0; i < size; ++i) {
+                new SkuDetails(IabHelper.ITEM_TYPE_INAPP, skuDetailsData.get(i));
+            }
+        });
+    }
+
+    @Test
+    public void verifySignatures() throws Exception {
+        final PublicKey key = Security.generatePublicKey(DATA.base64PublicKey);
+        final BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < size; ++i) {
+                assertTrue(Security.verify(key, purchaseData.get(i), signatures.get(i)));
+            }
+        }
+        Allocations.report(name("verifySignatures"), () -> {
+            for (int i = 0; i < size; ++i) {
+                Security.verify(key, purchaseData.get(i), signatures.get(i));
+            }
+        });
+    }
+
+    @Test
+    public void getAllOwnedSkus() throws Exception {
+        final int expected = size - (size + 3) / 4;
+        final BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            assertEquals(expected, inventory.getAllOwnedSkus(IabHelper.ITEM_TYPE_INAPP).size());
+        }
+        Allocations.report(name("getAllOwnedSkus"), () -> inventory.getAllOwnedSkus(IabHelper.ITEM_TYPE_INAPP));
+    }
+
+    @Test
+    public void getPurchaseResultInfo() throws Exception {
+        final BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            JSArray result = Billing.getPurchaseResultInfoList(purchases);
+            assertEquals(size, result.length());
+        }
+        Allocations.report(name("getPurchaseResultInfo"), () -> Billing.getPurchaseResultInfoList(purchases));
+    }
+}
@@ -0,0 +1,61 @@
+package highduck.capacitor.billing;
+
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.benchmark.BenchmarkState;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.security.PublicKey;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Per-purchase cost of signature verification: parsing the developer key for every
+ * purchase versus reusing the key parsed once per {@link IabHelper}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SecurityBenchmark {
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private static final BillingTestData DATA = new BillingTestData();
+
+    private String purchaseData;
+    private String signature;
+
+    @Before
+    public void setUp() {
+        purchaseData = BillingTestData.purchaseJson(1);
+        signature = DATA.sign(purchaseData);
+    }
+
+    @Test
+    public void verifyWithEncodedKey() throws IOException {
+        final BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            assertTrue(Security.verifyPurchaseSignature(DATA.base64PublicKey, purchaseData, signature));
+        }
+    }
+
+    @Test
+    public void verifyWithParsedKey() throws IOException {
+        final PublicKey key = Security.generatePublicKey(DATA.base64PublicKey);
+        final BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            assertTrue(Security.verifyPurchaseSignature(key, purchaseData, signature));
+        }
+    }
+
+    @Test
+    public void parseKey() throws IOException {
+        final BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            Security.generatePublicKey(DATA.base64PublicKey);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package highduck.capacitor.billing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Consumes the owned consumables of the {@code auto_consume} list, so that buying them again
+ * does not fail with ITEM_ALREADY_OWNED. Only purchased in-app items of the list are consumed;
+ * subscriptions, pending purchases and purchases still in the journal are left alone, the
+ * journaled ones are granted by JS from the replayed {@code pendingPurchases}.
+ */
+class AutoConsumer {
+
+    interface Listener {
+        /**
+         * Called with the purchases about to be consumed, for the app to grant them first.
+         *
+         * @return false to leave the purchases alone, such as when nobody can grant them
+         */
+        boolean onConsuming(List<Purchase> purchases);
+    }
+
+    private final Set<String> mSkus;
+    private final PurchaseJournal mJournal;
+
+    AutoConsumer(Set<String> skus, PurchaseJournal journal) {
+        mSkus = skus;
+        mJournal = journal;
+    }
+
+    boolean isEnabled() {
+        return !mSkus.isEmpty();
+    }
+
+    /**
+     * Queries the owned items and consumes the ones of the list.
+     * The future completes with the purchases which were consumed, it fails if the query failed.
+     */
+    IabFuture<List<Purchase>> run(final BillingEngine helper, final long timeoutMillis, final Listener listener) {
+        if (!isEnabled()) {
+            return IabFuture.completed(Collections.<Purchase>emptyList());
+        }
+        final List<Purchase> purchases = new ArrayList<>();
+        // the journal is read once the inventory is there, on the journal thread
+        return helper.queryPurchasesAsync(timeoutMillis).thenCompose(IabFuture.DIRECT, inventory ->
+                mJournal.getPendingAsync().thenApply(IabFuture.DIRECT, pending -> {
+                    final Set<String> journaled = new HashSet<>();
+                    for (Purchase purchase : pending) {
+                        journaled.add(purchase.getToken());
+                    }
+                    for (Purchase purchase : inventory.getAllPurchases()) {
+                        if (IabHelper.ITEM_TYPE_INAPP.equals(purchase.getItemType())
+                                && purchase.getPurchaseState() == Billing.PURCHASE_PURCHASED
+                                && mSkus.contains(purchase.getSku())
+                                && !journaled.contains(purchase.getToken())) {
+                            purchases.add(purchase);
+                        }
+                    }
+                    return purchases;
+                })
+        ).thenCompose(IabFuture.DIRECT, owned -> {
+            if (owned.isEmpty() || helper.isDisposed() || !listener.onConsuming(owned)) {
+                return IabFuture.completed(Collections.<IabResult>emptyList());
+            }
+            IabHelper.logDebug("Auto-consuming " + owned.size() + " purchases.");
+            return helper.consumeAsync(owned, timeoutMillis);
+        }).thenApply(IabFuture.DIRECT, results -> {
+            final List<Purchase> consumed = new ArrayList<>();
+            for (int i = 0; i < results.size(); ++i) {
+                if (results.get(i).isSuccess()) {
+                    consumed.add(purchases.get(i));
+                } else {
+                    IabHelper.logDebug("Unable to auto-consume " + purchases.get(i).getSku() + ": " + results.get(i));
+                }
+            }
+            return consumed;
+        });
+    }
+}
@@ -3,8 +3,11 @@ package highduck.capacitor.billing;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.VisibleForTesting;
+
 import com.getcapacitor.Config;
 import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
@@ -14,8 +17,15 @@ import com.getcapacitor.PluginCall;
 import com.getcapacitor.PluginMethod;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @NativePlugin(
         requestCodes = {
@@ -29,6 +39,10 @@ public class Billing extends Plugin {
     private static final String TAG = "capacitor.billing";
     private static final String CONFIG_PREFIX = "plugins.Billing.";
 
+    // billing engines selected by the `engine` config
+    private static final String ENGINE_IAB = "iab";
+    private static final String ENGINE_PLAY = "play";
+
     public static final int OK = 0;
     public static final int INVALID_ARGUMENTS = -1;
     public static final int UNABLE_TO_INITIALIZE = -2;
@@ -46,8 +60,20 @@ public class Billing extends Plugin {
     public static final int PURCHASE_CANCELLED = 1;
     public static final int PURCHASE_REFUNDED = 2;
 
-    private IabHelper iabHelper = null;
-    private boolean billingInitialized = false;
+    private BillingConnection connection = null;
+    // set once JS initialized billing, the connection is set up again on demand after that
+    private volatile boolean billingInitialized = false;
+    private SkuDetailsCache skuDetailsCache = null;
+    private final PurchaseSnapshot purchaseSnapshot = new PurchaseSnapshot();
+    // overlapping getSkuDetails calls share their queries
+    private SkuDetailsCoalescer skuDetailsQueries = null;
+    private PurchaseJournal purchaseJournal = null;
+    // shared by the helpers created by the connection, null if disabled
+    private VerificationCache verificationCache = null;
+    // consumes the consumables of the `auto_consume` list at startup
+    private AutoConsumer autoConsumer = null;
+    // default timeout of the calls to the billing service, 0 if they wait as long as it takes
+    private long operationTimeoutMillis = IabDeadline.NONE;
 
     private String getBase64EncodedPublicKey() {
         return bridge.getConfig().getString(CONFIG_PREFIX + "play_store_key", "");
@@ -57,14 +83,75 @@ public class Billing extends Plugin {
         return bridge.getConfig().getBoolean(CONFIG_PREFIX + "skip_verification", false);
     }
 
+    private long getSkuDetailsTtlMillis() {
+        return bridge.getConfig().getInt(CONFIG_PREFIX + "sku_details_ttl", 3600) * 1000L;
+    }
+
+    private long getIdleTimeoutMillis() {
+        return bridge.getConfig().getInt(CONFIG_PREFIX + "idle_timeout", 300) * 1000L;
+    }
+
+    private long getReconnectTimeoutMillis() {
+        return bridge.getConfig().getInt(CONFIG_PREFIX + "reconnect_timeout", 30) * 1000L;
+    }
+
+    private int getVerificationCacheSize() {
+        return bridge.getConfig().getInt(CONFIG_PREFIX + "verification_cache_size", 512);
+    }
+
+    private long getOperationTimeoutMillis() {
+        return bridge.getConfig().getInt(CONFIG_PREFIX + "operation_timeout", 60) * 1000L;
+    }
+
+    private Set<String> getAutoConsumeSkus() {
+        String[] skus = bridge.getConfig().getArray(CONFIG_PREFIX + "auto_consume", new String[0]);
+        return skus != null ? new HashSet<>(Arrays.asList(skus)) : Collections.<String>emptySet();
+    }
+
+    private String getEngine() {
+        return bridge.getConfig().getString(CONFIG_PREFIX + "engine", ENGINE_IAB);
+    }
+
+    private boolean shouldPersistVerifications() {
+        return bridge.getConfig().getBoolean(CONFIG_PREFIX + "persist_verifications", false);
+    }
+
     @Override
     public void load() {
         Context context = this.getActivity();
         String base64EncodedPublicKey = getBase64EncodedPublicKey();
         boolean skipPurchaseVerification = shouldSkipPurchaseVerification();
+        if (skuDetailsCache == null) {
+            skuDetailsCache = new SkuDetailsCache(context, getSkuDetailsTtlMillis());
+        }
+        if (purchaseJournal == null) {
+            purchaseJournal = new PurchaseJournal(context.getNoBackupFilesDir());
+        }
+        autoConsumer = new AutoConsumer(getAutoConsumeSkus(), purchaseJournal);
+        operationTimeoutMillis = getOperationTimeoutMillis();
+        if (skuDetailsQueries == null) {
+            skuDetailsQueries = new SkuDetailsCoalescer(operationTimeoutMillis);
+        }
+        final int verificationCacheSize = getVerificationCacheSize();
+        if (verificationCache == null && verificationCacheSize > 0) {
+            verificationCache = shouldPersistVerifications()
+                    ? new VerificationCache(context, verificationCacheSize)
+                    : new VerificationCache(verificationCacheSize);
+        }
         if (base64EncodedPublicKey != null) {
-            iabHelper = new IabHelper(context, base64EncodedPublicKey);
-            iabHelper.setSkipPurchaseVerification(skipPurchaseVerification);
+            final long reconnectTimeoutMillis = getReconnectTimeoutMillis();
+            final boolean playBilling = ENGINE_PLAY.equals(getEngine());
+            Log.d(TAG, "Billing engine: " + (playBilling ? ENGINE_PLAY : ENGINE_IAB));
+            connection = new BillingConnection(() -> {
+                BillingEngine helper = playBilling
+                        ? new PlayBillingEngine(context, base64EncodedPublicKey)
+                        : new IabHelper(context, base64EncodedPublicKey);
+                helper.setSkipPurchaseVerification(skipPurchaseVerification);
+                helper.setReconnectTimeout(reconnectTimeoutMillis);
+                helper.setVerificationCache(verificationCache);
+                helper.setPurchasesUpdatedListener(this::onPurchasesUpdated);
+                return helper;
+            }, getIdleTimeoutMillis());
             billingInitialized = false;
         }
         else {
@@ -74,25 +161,172 @@ public class Billing extends Plugin {
 
     @PluginMethod()
     public void initialize(final PluginCall call) {
-        if (billingInitialized) {
+        if (billingInitialized && connection.isConnected()) {
             Log.d(TAG, "Billing already initialized");
             call.success();
-        } else if (iabHelper == null) {
+        } else if (connection == null) {
             call.error("Billing cannot be initialized");
         } else {
-            iabHelper.startSetup(result -> {
-                if (!result.isSuccess()) {
-                    call.error("Unable to initialize billing: " + result.toString());
+            // a bind which never completes must not keep a boot sequence waiting forever
+            connect(getDeadline(call)).whenComplete(IabFuture.DIRECT, (helper, error) -> {
+                if (error != null) {
+                    rejectConnectFailure(call, error);
+                } else if (billingInitialized) {
+                    call.success();
                 } else {
                     Log.d(TAG, "Billing initialized");
                     billingInitialized = true;
                     call.success();
+                    replayPurchaseJournal();
+                    autoConsume(helper);
                 }
             });
         }
     }
 
-    private static JSObject getPurchaseResultInfo(final Purchase purchase) {
+    // Failure to connect to the billing service, as opposed to a failure of the operation itself
+    private static class ConnectException extends IabException {
+        ConnectException(IabResult result) {
+            super(result);
+        }
+    }
+
+    // Starts the operation once the billing service is connected, and responds to the call with
+    // its outcome. After JS initialized billing, a connection released in the background is set
+    // up again here; the call is rejected as timed out if it is not set up by the deadline.
+    // Continuations run on the thread completing the future, mostly a billing worker.
+    private <T> void withBilling(final PluginCall call, final long deadline,
+                                 final IabFuture.AsyncFunction<BillingEngine, T> operation,
+                                 final IabFuture.Callback<T> respond) {
+        if (connection == null || !billingInitialized) {
+            call.error("Billing is not initialized");
+            return;
+        }
+        final BillingEngine helper = connection.getHelper();
+        final IabFuture<BillingEngine> connected;
+        if (helper != null) {
+            connected = IabFuture.completed(helper);
+        } else {
+            Log.d(TAG, "Reconnecting to billing service");
+            connected = connect(deadline);
+        }
+        connected.thenCompose(IabFuture.DIRECT, operation).whenComplete(IabFuture.DIRECT, (value, error) -> {
+            if (error instanceof ConnectException) {
+                rejectConnectFailure(call, error);
+            } else {
+                respond.onComplete(value, error);
+            }
+        });
+    }
+
+    // Connects to the billing service; the future fails with a ConnectException, timed out if the
+    // connection is not set up by the deadline. The connection attempt itself goes on.
+    private IabFuture<BillingEngine> connect(final long deadline) {
+        final IabFuture<BillingEngine> connected = new IabFuture<>();
+        final IabDeadline timeout = new IabDeadline(timeLeft(deadline));
+        timeout.start(() -> connected.fail(new ConnectException(
+                new IabResult(IabHelper.IABHELPER_TIMEOUT, "Timed out: connect"))));
+        connection.connect().whenComplete(IabFuture.DIRECT, (engine, error) -> {
+            if (!timeout.finish()) {
+                return;
+            }
+            if (error != null) {
+                connected.fail(new ConnectException(error.getResult()));
+            } else {
+                connected.complete(engine);
+            }
+        });
+        return connected;
+    }
+
+    private static void rejectConnectFailure(final PluginCall call, final IabException error) {
+        if (error.getResult().getResponse() == IabHelper.IABHELPER_TIMEOUT) {
+            rejectTimedOut(call, "Unable to initialize billing");
+        } else {
+            call.error("Unable to initialize billing: " + error.getResult());
+        }
+    }
+
+    // Deadline of the call in SystemClock.elapsedRealtime() base, 0 if it waits as long as it takes.
+    // The `timeout` option of the call, in milliseconds, overrides the `operation_timeout` config.
+    private long getDeadline(final PluginCall call) {
+        final Integer timeout = call.getInt("timeout");
+        final long timeoutMillis = timeout != null ? timeout : operationTimeoutMillis;
+        return timeoutMillis > 0 ? SystemClock.elapsedRealtime() + timeoutMillis : 0;
+    }
+
+    // Time left to the deadline, for the engine; an operation whose deadline passed times out right away
+    private static long timeLeft(final long deadline) {
+        return deadline > 0 ? Math.max(1, deadline - SystemClock.elapsedRealtime()) : IabDeadline.NONE;
+    }
+
+    private static void rejectTimedOut(final PluginCall call, final String message) {
+        call.reject(message + " (TIMED_OUT)", String.valueOf(IabHelper.IABHELPER_TIMEOUT));
+    }
+
+    // Rejects the call of a failed operation, with the TIMED_OUT code if it did not finish in time
+    private static void reject(final PluginCall call, final String message, final IabException error) {
+        if (error.getResult().getResponse() == IabHelper.IABHELPER_TIMEOUT) {
+            rejectTimedOut(call, message);
+        } else {
+            call.error(message);
+        }
+    }
+
+    // Sends purchases which were verified but not consumed before the app was closed,
+    // kept until a listener is registered. The journal is read on its own thread.
+    private void replayPurchaseJournal() {
+        purchaseJournal.getPendingAsync().whenComplete(IabFuture.DIRECT, (pending, error) -> {
+            if (error != null || pending.isEmpty()) {
+                return;
+            }
+            Log.d(TAG, "Replaying " + pending.size() + " unfinished purchases");
+            final JSObject event = new JSObject();
+            event.put("purchases", getPurchaseResultInfoList(pending));
+            notifyListeners("pendingPurchases", event, true);
+        });
+    }
+
+    // Records a verified purchase in the journal, only in-app products are consumed and finished.
+    // The future completes on the journal thread once the record is on disk.
+    private IabFuture<Void> journalPurchase(final Purchase purchase) {
+        if (IabHelper.ITEM_TYPE_INAPP.equals(purchase.getItemType())) {
+            return purchaseJournal.addAsync(purchase);
+        }
+        return IabFuture.completed(null);
+    }
+
+    // Consumes the owned consumables of the `auto_consume` list in the background. They are sent
+    // to the `autoConsumePurchases` listeners to be granted first, and left alone if nobody listens.
+    private void autoConsume(final BillingEngine helper) {
+        if (!autoConsumer.isEnabled()) {
+            return;
+        }
+        autoConsumer.run(helper, operationTimeoutMillis, purchases -> {
+            if (!hasListeners("autoConsumePurchases")) {
+                Log.w(TAG, "No autoConsumePurchases listener, " + purchases.size() + " purchases are not consumed");
+                return false;
+            }
+            final JSObject event = new JSObject();
+            event.put("purchases", getPurchaseResultInfoList(purchases));
+            notifyListeners("autoConsumePurchases", event);
+            return true;
+        }).whenComplete(IabFuture.DIRECT, (consumed, error) -> {
+            if (error != null) {
+                Log.d(TAG, "Unable to query purchases to auto-consume: " + error.getResult());
+                return;
+            }
+            final PurchaseSnapshot.Diff removed = new PurchaseSnapshot.Diff();
+            for (Purchase purchase : consumed) {
+                removed.removed.addAll(purchaseSnapshot.remove(purchase).removed);
+            }
+            notifyPurchasesUpdated(removed);
+        });
+    }
+
+    // package-private for android-benchmark, which measures the restore hot path
+    @VisibleForTesting
+    static JSObject getPurchaseResultInfo(final Purchase purchase) {
         final JSObject result = new JSObject();
         result.put("orderId", purchase.getOrderId());
         result.put("packageName", purchase.getPackageName());
@@ -106,20 +340,60 @@ public class Billing extends Plugin {
         return result;
     }
 
+    @VisibleForTesting
+    static JSArray getPurchaseResultInfoList(final List<Purchase> purchases) {
+        final JSArray list = new JSArray();
+        for (Purchase purchase : purchases) {
+            list.put(getPurchaseResultInfo(purchase));
+        }
+        return list;
+    }
+
+    // Sends the changes of owned purchases to the `purchasesUpdated` listeners
+    private void notifyPurchasesUpdated(final PurchaseSnapshot.Diff diff) {
+        if (diff.isEmpty()) {
+            return;
+        }
+        final JSObject event = new JSObject();
+        event.put("added", getPurchaseResultInfoList(diff.added));
+        event.put("removed", getPurchaseResultInfoList(diff.removed));
+        event.put("changed", getPurchaseResultInfoList(diff.changed));
+        notifyListeners("purchasesUpdated", event);
+    }
+
+    // Purchases pushed by the engine outside of a purchase flow, such as completed pending purchases.
+    // JS is notified once they are recorded in the journal.
+    private void onPurchasesUpdated(final List<Purchase> purchases) {
+        final PurchaseSnapshot.Diff diff = new PurchaseSnapshot.Diff();
+        final List<IabFuture<Void>> recorded = new ArrayList<>();
+        for (Purchase purchase : purchases) {
+            recorded.add(journalPurchase(purchase));
+            final PurchaseSnapshot.Diff put = purchaseSnapshot.put(purchase);
+            diff.added.addAll(put.added);
+            diff.changed.addAll(put.changed);
+        }
+        IabFuture.allOf(recorded).whenComplete(IabFuture.DIRECT, (none, error) -> notifyPurchasesUpdated(diff));
+    }
+
+    // Sends the changes of owned purchases since the last known inventory
+    private void onPurchasesRefreshed(final Inventory inventory, final IabException error) {
+        if (error == null) {
+            notifyPurchasesUpdated(purchaseSnapshot.update(inventory.getAllPurchases()));
+        } else {
+            Log.d(TAG, "Unable to refresh purchases: " + error.getResult());
+        }
+    }
+
     @PluginMethod()
     public void purchase(final PluginCall call) {
         final boolean subscribe = call.getBoolean("subscribe", false);
         final String sku = call.getString("sku");
 
-        if (iabHelper == null || !billingInitialized) {
-            call.error("Billing is not initialized");
-            return;
-        }
         final Activity activity = this.getActivity();
 
-        IabHelper.OnIabPurchaseFinishedListener oipfl = (result, purchase) -> {
-            if (result.isFailure()) {
-                final int response = result.getResponse();
+        final IabFuture.Callback<Purchase> respond = (purchase, error) -> {
+            if (error != null) {
+                final int response = error.getResult().getResponse();
                 final String errorCode = String.valueOf(response);
                 if (response == IabHelper.IABHELPER_BAD_RESPONSE || response == IabHelper.IABHELPER_UNKNOWN_ERROR) {
                     call.reject("Could not complete purchase", errorCode);
@@ -133,15 +407,16 @@ public class Billing extends Plugin {
                     call.reject("Error completing purchase", errorCode);
                 }
             } else {
-                call.success(getPurchaseResultInfo(purchase));
+                // resolved once the purchase is on disk, it is replayed if the app dies before consuming it
+                journalPurchase(purchase).whenComplete(IabFuture.DIRECT, (none, journalError) -> {
+                    call.success(getPurchaseResultInfo(purchase));
+                    notifyPurchasesUpdated(purchaseSnapshot.put(purchase));
+                });
             }
         };
 
-        if (subscribe) {
-            iabHelper.launchSubscriptionPurchaseFlow(activity, sku, REQUEST_PURCHASE, oipfl, "");
-        } else {
-            iabHelper.launchPurchaseFlow(activity, sku, REQUEST_PURCHASE, oipfl, "");
-        }
+        withBilling(call, 0, helper -> helper.launchPurchaseFlow(activity, sku,
+                subscribe ? IabHelper.ITEM_TYPE_SUBS : IabHelper.ITEM_TYPE_INAPP, REQUEST_PURCHASE, ""), respond);
     }
 
     @PluginMethod()
@@ -157,29 +432,148 @@ public class Billing extends Plugin {
             return;
         }
 
-        if (iabHelper == null || !billingInitialized) {
+        final long deadline = getDeadline(call);
+        withBilling(call, deadline, helper -> helper.consumeAsync(purchase, timeLeft(deadline)), (consumed, error) -> {
+            if (error != null && error.getResult().getResponse() == IabHelper.IABHELPER_TIMEOUT) {
+                rejectTimedOut(call, "Error consuming purchase");
+            } else if (error != null) {
+                call.error(getConsumeErrorMessage(error.getResult()));
+            } else {
+                purchaseJournal.finishAsync(consumed).whenComplete(IabFuture.DIRECT, (none, journalError) -> {
+                    call.success(getConsumeResultInfo(consumed));
+                    notifyPurchasesUpdated(purchaseSnapshot.remove(consumed));
+                });
+            }
+        });
+    }
+
+    @PluginMethod()
+    public void consumePurchases(final PluginCall call) {
+        final JSArray receipts = call.getArray("purchases");
+        if (receipts == null) {
+            call.error("Invalid purchases (INVALID_ARGUMENTS)");
+            return;
+        }
+        if (connection == null || !billingInitialized) {
             call.error("Billing is not initialized");
             return;
         }
 
-        iabHelper.consumeAsync(purchase, (purchase1, result) -> {
-            if (result.isFailure()) {
-                int response = result.getResponse();
-                if (response == IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED) {
-                    call.error("Error consuming purchase (ITEM_NOT_OWNED)");
+        // one result per receipt, in the same order; invalid receipts are not sent for consumption
+        final JSObject[] results = new JSObject[receipts.length()];
+        final List<Purchase> purchases = new ArrayList<>();
+        final List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < results.length; ++i) {
+            try {
+                final JSONObject receipt = receipts.getJSONObject(i);
+                purchases.add(new Purchase(receipt.optString("type"),
+                        receipt.getString("receipt"),
+                        receipt.optString("signature")));
+                indices.add(i);
+            } catch (JSONException e) {
+                final JSObject error = new JSObject();
+                error.put("success", false);
+                error.put("error", "invalid json in `receipt` argument");
+                results[i] = error;
+            }
+        }
+
+        final Runnable respond = () -> {
+            final JSObject response = new JSObject();
+            final JSArray list = new JSArray();
+            for (JSObject result : results) {
+                list.put(result);
+            }
+            response.put("results", list);
+            call.success(response);
+        };
+        if (purchases.isEmpty()) {
+            respond.run();
+            return;
+        }
+
+        final long deadline = getDeadline(call);
+        withBilling(call, deadline, helper -> helper.consumeAsync(purchases, timeLeft(deadline)), (consumeResults, error) -> {
+            if (error != null) {
+                reject(call, "Error consuming purchases", error);
+                return;
+            }
+            final PurchaseSnapshot.Diff removed = new PurchaseSnapshot.Diff();
+            final List<IabFuture<Void>> finished = new ArrayList<>();
+            for (int i = 0; i < purchases.size(); ++i) {
+                final Purchase purchase = purchases.get(i);
+                final IabResult result = consumeResults.get(i);
+                final JSObject info = getConsumeResultInfo(purchase);
+                info.put("success", result.isSuccess());
+                if (result.isSuccess()) {
+                    finished.add(purchaseJournal.finishAsync(purchase));
+                    removed.removed.addAll(purchaseSnapshot.remove(purchase).removed);
                 } else {
-                    call.error("Error consuming purchase (CONSUME_FAILED)");
+                    info.put("error", getConsumeErrorMessage(result));
                 }
+                results[indices.get(i)] = info;
+            }
+            IabFuture.allOf(finished).whenComplete(IabFuture.DIRECT, (none, journalError) -> {
+                respond.run();
+                notifyPurchasesUpdated(removed);
+            });
+        });
+    }
+
+    // Purchases the app granted without consuming them, such as subscriptions, are refunded
+    // by the Play Billing Library unless they are acknowledged
+    @PluginMethod()
+    public void acknowledgePurchase(final PluginCall call) {
+        String type = call.getString("type");
+        String receipt = call.getString("receipt");
+        String signature = call.getString("signature");
+        Purchase purchase;
+        try {
+            purchase = new Purchase(type, receipt, signature);
+        } catch (JSONException e) {
+            call.error("invalid json in `receipt` argument", e);
+            return;
+        }
+
+        final long deadline = getDeadline(call);
+        withBilling(call, deadline, helper -> helper.acknowledgeAsync(purchase, timeLeft(deadline)), (acknowledged, error) -> {
+            if (error != null) {
+                reject(call, "Error acknowledging purchase", error);
             } else {
-                final JSObject pluginResponse = new JSObject();
-                pluginResponse.put("transactionId", purchase1.getOrderId());
-                pluginResponse.put("productId", purchase1.getSku());
-                pluginResponse.put("token", purchase1.getToken());
-                call.success(pluginResponse);
+                purchaseJournal.finishAsync(acknowledged).whenComplete(IabFuture.DIRECT,
+                        (none, journalError) -> call.success(getConsumeResultInfo(acknowledged)));
             }
         });
     }
 
+    private static JSObject getConsumeResultInfo(final Purchase purchase) {
+        final JSObject result = new JSObject();
+        result.put("transactionId", purchase.getOrderId());
+        result.put("productId", purchase.getSku());
+        result.put("token", purchase.getToken());
+        return result;
+    }
+
+    private static String getConsumeErrorMessage(final IabResult result) {
+        if (result.getResponse() == IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED) {
+            return "Error consuming purchase (ITEM_NOT_OWNED)";
+        }
+        if (result.getResponse() == IabHelper.IABHELPER_TIMEOUT) {
+            return "Error consuming purchase (TIMED_OUT)";
+        }
+        return "Error consuming purchase (CONSUME_FAILED)";
+    }
+
+    private static JSObject getSkuDetailsInfo(final SkuDetails details) {
+        final JSObject detailsJson = new JSObject();
+        detailsJson.put("productId", details.getSku());
+        detailsJson.put("title", details.getTitle());
+        detailsJson.put("description", details.getDescription());
+        detailsJson.put("price", details.getPrice());
+        detailsJson.put("type", details.getType());
+        return detailsJson;
+    }
+
     @PluginMethod()
     public void getSkuDetails(final PluginCall call) {
         List<String> skus;
@@ -189,43 +583,98 @@ public class Billing extends Plugin {
             call.error("Invalid SKU (INVALID_ARGUMENTS)");
             return;
         }
-        if (iabHelper == null || !billingInitialized) {
-            call.error("Billing is not initialized");
+
+        // answer from the cache if every product is there, refresh stale ones in the background
+        boolean cached = true;
+        boolean stale = false;
+        final JSArray cachedList = new JSArray();
+        final JSArray cachedFailed = new JSArray();
+        for (String sku : skus) {
+            SkuDetails details = skuDetailsCache.get(sku);
+            if (details != null) {
+                cachedList.put(getSkuDetailsInfo(details));
+            } else if (skuDetailsCache.isMissing(sku)) {
+                // the last refresh did not return it, same shape as a fresh response
+                cachedFailed.put(sku);
+            } else {
+                cached = false;
+                break;
+            }
+            stale |= skuDetailsCache.isStale(sku);
+        }
+        if (cached) {
+            final JSObject response = new JSObject();
+            response.put("list", cachedList);
+            response.put("failedProductIds", cachedFailed);
+            call.success(response);
+            final BillingEngine helper = connection != null ? connection.getHelper() : null;
+            if (stale && helper != null && billingInitialized) {
+                Log.d(TAG, "Refreshing cached SKU details");
+                skuDetailsQueries.query(helper, skus, operationTimeoutMillis).whenComplete(IabFuture.DIRECT, (inventory, error) -> {
+                    if (error == null) {
+                        updateSkuDetailsCache(skus, inventory);
+                    }
+                });
+            }
             return;
         }
-        iabHelper.queryInventoryAsync(true, skus, (result, inventory) -> {
-            if (result.isFailure()) {
-                call.error("Error retrieving SKU details");
+
+        final long deadline = getDeadline(call);
+        withBilling(call, deadline, helper -> skuDetailsQueries.query(helper, skus, timeLeft(deadline)), (inventory, error) -> {
+            if (error != null) {
+                reject(call, "Error retrieving SKU details", error);
                 return;
             }
             final JSObject response = new JSObject();
             final JSArray list = new JSArray();
+            final JSArray failed = new JSArray();
             for (String sku : skus) {
                 SkuDetails details = inventory.getSkuDetails(sku);
+                if (details == null && inventory.getSkuDetailsError(sku) != null) {
+                    failed.put(sku);
+                }
                 if (details != null) {
-                    final JSObject detailsJson = new JSObject();
-                    detailsJson.put("productId", details.getSku());
-                    detailsJson.put("title", details.getTitle());
-                    detailsJson.put("description", details.getDescription());
-                    detailsJson.put("price", details.getPrice());
-                    detailsJson.put("type", details.getType());
-                    list.put(detailsJson);
+                    list.put(getSkuDetailsInfo(details));
                 }
             }
             response.put("list", list);
+            response.put("failedProductIds", failed);
             call.success(response);
+            updateSkuDetailsCache(skus, inventory);
         });
     }
 
+    // Stores fresh details in the cache and notifies listeners about changed listings. Products
+    // which came back without details are no longer listed, they are removed from the cache.
+    private void updateSkuDetailsCache(final List<String> skus, final Inventory inventory) {
+        final JSArray changed = new JSArray();
+        for (String sku : skus) {
+            SkuDetails details = inventory.getSkuDetails(sku);
+            if (details == null) {
+                skuDetailsCache.remove(sku);
+            } else if (skuDetailsCache.put(details)) {
+                changed.put(getSkuDetailsInfo(details));
+            }
+        }
+        if (changed.length() > 0) {
+            final JSObject event = new JSObject();
+            event.put("list", changed);
+            notifyListeners("skuDetailsChanged", event);
+        }
+    }
+
     @PluginMethod()
     public void restorePurchases(final PluginCall call) {
-        if (iabHelper == null || !billingInitialized) {
-            call.error("Billing is not initialized");
+        if (call.getBoolean("stream", false)) {
+            streamPurchases(call);
             return;
         }
-        iabHelper.queryInventoryAsync((result, inventory) -> {
-            if (result.isFailure()) {
-                call.error("Error retrieving purchase details");
+        final long deadline = getDeadline(call);
+        // purchases recorded while the query runs may be missing from the inventory
+        final long journalMark = purchaseJournal.mark();
+        withBilling(call, deadline, helper -> helper.queryPurchasesAsync(timeLeft(deadline)), (inventory, error) -> {
+            if (error != null) {
+                reject(call, "Error retrieving purchase details", error);
                 return;
             }
             JSObject response = new JSObject();
@@ -237,20 +686,73 @@ public class Billing extends Plugin {
             }
             response.put("purchases", list);
             call.success(response);
+            purchaseJournal.retainOwnedAsync(inventory.getAllPurchases(), journalMark);
+            notifyPurchasesUpdated(purchaseSnapshot.update(inventory.getAllPurchases()));
+        });
+    }
+
+    // Sends the owned purchases to JS page by page as restorePurchasesPage events, followed by
+    // a restorePurchasesCompleted event. The full inventory is never collected, so the journal
+    // and the purchasesUpdated snapshot are left to the other inventory queries. Pages are sent
+    // from the worker verifying them, as soon as they are verified.
+    private void streamPurchases(final PluginCall call) {
+        final AtomicInteger count = new AtomicInteger();
+        final long deadline = getDeadline(call);
+        final IabHelper.OnPurchasesPageListener pageListener = (itemType, page) -> {
+            count.addAndGet(page.size());
+            JSObject event = new JSObject();
+            event.put("purchases", getPurchaseResultInfoList(page));
+            notifyListeners("restorePurchasesPage", event);
+        };
+        withBilling(call, deadline, helper -> helper.queryPurchasesAsync(pageListener, IabFuture.DIRECT, timeLeft(deadline)), (none, error) -> {
+            JSObject event = new JSObject();
+            event.put("count", count.get());
+            if (error != null) {
+                event.put("error", error.getResult().getMessage());
+                notifyListeners("restorePurchasesCompleted", event);
+                reject(call, "Error retrieving purchase details", error);
+                return;
+            }
+            notifyListeners("restorePurchasesCompleted", event);
+            JSObject response = new JSObject();
+            response.put("purchases", new JSArray());
+            response.put("count", count.get());
+            call.success(response);
         });
     }
 
     @Override
     protected void handleOnActivityResult(int requestCode, int resultCode, Intent intent) {
-        if (!iabHelper.handleActivityResult(requestCode, resultCode, intent)) {
+        final BillingEngine helper = connection != null ? connection.getHelper() : null;
+        if (helper == null || !helper.handleActivityResult(requestCode, resultCode, intent)) {
             super.handleOnActivityResult(requestCode, resultCode, intent);
         }
     }
 
+    @Override
+    protected void handleOnResume() {
+        if (connection != null && billingInitialized && hasListeners("purchasesUpdated")) {
+            // reconnects if the connection was released while in the background
+            connection.connect()
+                    .thenCompose(IabFuture.DIRECT, helper -> helper.queryPurchasesAsync(operationTimeoutMillis))
+                    .whenComplete(IabFuture.DIRECT, this::onPurchasesRefreshed);
+        }
+    }
+
+    @Override
+    protected void handleOnStart() {
+        if (connection != null) connection.onStart();
+    }
+
     @Override
     public void handleOnStop() {
-        if (iabHelper != null) iabHelper.dispose();
-        iabHelper = null;
+        // the connection is kept for a while, so coming back from the background is instant
+        if (connection != null) connection.onStop();
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        if (connection != null) connection.release();
         billingInitialized = false;
     }
 }
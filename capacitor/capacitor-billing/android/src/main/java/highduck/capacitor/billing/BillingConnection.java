@@ -0,0 +1,178 @@
+package highduck.capacitor.billing;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Keeps the billing engine and its service connection alive across activity stop/start.
+ * <p>
+ * When the activity stops, the binding is kept for the idle timeout, so a short trip to the
+ * background does not cost a new setup. It is released once the timeout elapses or the
+ * activity is destroyed, and set up again by the next {@link #connect} call.
+ * Concurrent connect calls share a single setup.
+ */
+class BillingConnection {
+
+    interface HelperFactory {
+        BillingEngine create();
+    }
+
+    private final HelperFactory mFactory;
+    private final long mIdleTimeoutMillis;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mRelease = this::releaseIdle;
+
+    private BillingEngine mHelper = null;
+    private boolean mConnected = false;
+    // the idle timeout is running, cleared by anything that cancels it
+    private boolean mIdle = false;
+    // setup in progress, null if no setup is in progress
+    private IabFuture<BillingEngine> mPending = null;
+
+    /**
+     * @param idleTimeoutMillis how long the binding is kept after the activity stops,
+     *                          0 to release it right away, negative to keep it until destroy
+     */
+    BillingConnection(HelperFactory factory, long idleTimeoutMillis) {
+        mFactory = factory;
+        mIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Returns the engine if it is set up, or null.
+     */
+    synchronized BillingEngine getHelper() {
+        return mConnected ? mHelper : null;
+    }
+
+    synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * Sets up the helper unless it is already set up. The future is completed right away
+     * if the helper is ready, otherwise once the setup finishes, on the thread it finishes on.
+     */
+    IabFuture<BillingEngine> connect() {
+        final BillingEngine helper;
+        final IabFuture<BillingEngine> future;
+        synchronized (this) {
+            cancelIdle();
+            if (mConnected) {
+                return IabFuture.completed(mHelper);
+            } else if (mPending != null) {
+                return mPending;
+            }
+            future = new IabFuture<>();
+            mPending = future;
+            mHelper = mFactory.create();
+            helper = mHelper;
+        }
+        IabHelper.logDebug("Connecting to billing service.");
+        helper.startSetup().whenComplete(IabFuture.DIRECT, (none, error) -> onSetupFinished(helper, error));
+        return future;
+    }
+
+    private void onSetupFinished(BillingEngine helper, IabException error) {
+        final IabFuture<BillingEngine> future;
+        synchronized (this) {
+            if (helper != mHelper) {
+                // released while the setup was in progress
+                return;
+            }
+            future = mPending;
+            mPending = null;
+            mConnected = error == null;
+            if (!mConnected) {
+                mHelper = null;
+                helper.dispose();
+            }
+        }
+        if (future != null) {
+            if (error != null) {
+                future.fail(error);
+            } else {
+                future.complete(helper);
+            }
+        }
+    }
+
+    /**
+     * Starts the idle timeout, called when the activity stops.
+     */
+    void onStop() {
+        if (mIdleTimeoutMillis == 0) {
+            release();
+        } else if (mIdleTimeoutMillis > 0) {
+            synchronized (this) {
+                cancelIdle();
+                mIdle = true;
+                mHandler.postDelayed(mRelease, mIdleTimeoutMillis);
+            }
+        }
+    }
+
+    /**
+     * Cancels the idle timeout, called when the activity starts again.
+     */
+    synchronized void onStart() {
+        cancelIdle();
+    }
+
+    private void cancelIdle() {
+        mIdle = false;
+        mHandler.removeCallbacks(mRelease);
+    }
+
+    private void releaseIdle() {
+        final BillingEngine helper;
+        final IabFuture<BillingEngine> pending;
+        synchronized (this) {
+            // the timeout may have been cancelled from another thread while this was dispatched
+            if (!mIdle) {
+                return;
+            }
+            // a purchase flow may be waiting for its result, try again later
+            if (mHelper != null && mConnected && mHelper.isBusy()) {
+                mHandler.postDelayed(mRelease, mIdleTimeoutMillis);
+                return;
+            }
+            IabHelper.logDebug("Releasing idle billing service connection.");
+            helper = mHelper;
+            pending = mPending;
+            clear();
+        }
+        dispose(helper, pending);
+    }
+
+    /**
+     * Disposes of the helper and unbinds from the service. A setup in progress fails.
+     */
+    void release() {
+        final BillingEngine helper;
+        final IabFuture<BillingEngine> pending;
+        synchronized (this) {
+            helper = mHelper;
+            pending = mPending;
+            clear();
+        }
+        dispose(helper, pending);
+    }
+
+    private void clear() {
+        cancelIdle();
+        mHelper = null;
+        mPending = null;
+        mConnected = false;
+    }
+
+    private static void dispose(BillingEngine helper, IabFuture<BillingEngine> pending) {
+        if (helper != null) {
+            helper.dispose();
+        }
+        if (pending != null) {
+            pending.fail(new IabException(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
+                    "Billing service connection released."));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package highduck.capacitor.billing;
+
+import android.app.Activity;
+import android.content.Intent;
+
+import androidx.annotation.Nullable;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Connection to Google Play billing used by the Billing plugin. Implemented by
+ * {@link IabHelper} on the in-app billing v3 service and by {@link PlayBillingEngine}
+ * on the Play Billing Library, selected by the {@code engine} config of the plugin.
+ * <p>
+ * Both engines report results with the response codes of {@link IabHelper}, and hand
+ * over purchases and listings as {@link Purchase} and {@link SkuDetails} parsed from
+ * the original JSON, so the plugin does not depend on the engine in use.
+ */
+interface BillingEngine {
+
+    /**
+     * Listener notified about purchases made or completed outside of a purchase flow
+     * of this engine, such as pending purchases completed later or redeemed promo codes.
+     */
+    interface OnPurchasesUpdatedListener {
+        /**
+         * @param purchases verified purchases, never empty
+         */
+        void onPurchasesUpdated(List<Purchase> purchases);
+    }
+
+    void setSkipPurchaseVerification(boolean shouldSkipPurchaseVerification);
+
+    /**
+     * Sets how long operations started while the billing service is disconnected
+     * wait for it to reconnect, before failing with {@link IabHelper#IABHELPER_REMOTE_EXCEPTION}.
+     */
+    void setReconnectTimeout(long millis);
+
+    void setVerificationCache(@Nullable VerificationCache cache);
+
+    void setPurchasesUpdatedListener(@Nullable OnPurchasesUpdatedListener listener);
+
+    /**
+     * Connects to the billing service, the future completes once it is set up.
+     */
+    IabFuture<Void> startSetup();
+
+    /**
+     * Disconnects from the billing service, the engine can't be used after that.
+     */
+    void dispose();
+
+    boolean isDisposed();
+
+    /**
+     * Returns whether an operation is in progress or waiting, such as a purchase flow
+     * waiting for its result.
+     */
+    boolean isBusy();
+
+    /**
+     * Starts a purchase flow, the future completes on the main thread with the verified purchase.
+     */
+    IabFuture<Purchase> launchPurchaseFlow(Activity act, String sku, String itemType, int requestCode, String extraData);
+
+    /**
+     * Handles the result of an activity started by a purchase flow.
+     *
+     * @return false if the result is not related to a purchase flow of this engine
+     */
+    boolean handleActivityResult(int requestCode, int resultCode, Intent data);
+
+    /**
+     * Queries the listing details of the products, of both item types, without owned items.
+     * Operations taking more than {@code timeoutMillis} from the call on, waiting included,
+     * fail with {@link IabHelper#IABHELPER_TIMEOUT}; 0 waits as long as it takes.
+     * <p>
+     * Query and consume futures complete on a thread of the engine, a worker or the main thread,
+     * or on the thread of the deadline when they time out. Continuations registered with
+     * {@link IabFuture#DIRECT} run there without going through the main looper.
+     */
+    IabFuture<Inventory> querySkuDetailsAsync(List<String> skus, long timeoutMillis);
+
+    /**
+     * Queries the owned items, without their listing details.
+     */
+    IabFuture<Inventory> queryPurchasesAsync(long timeoutMillis);
+
+    /**
+     * Queries the owned items page by page, pages are delivered through the executor and the
+     * future completes through it after the last page. No pages are delivered after a timeout.
+     */
+    IabFuture<Void> queryPurchasesAsync(IabHelper.OnPurchasesPageListener pageListener, Executor pageExecutor,
+                                        long timeoutMillis);
+
+    /**
+     * Consumes the purchase, the future fails with the result of the consumption if it failed.
+     * After a timeout, the item may still be consumed.
+     */
+    IabFuture<Purchase> consumeAsync(Purchase purchase, long timeoutMillis);
+
+    /**
+     * Consumes the purchases, the future never fails and completes with one result per
+     * purchase, in the same order.
+     */
+    IabFuture<List<IabResult>> consumeAsync(List<Purchase> purchases, long timeoutMillis);
+
+    /**
+     * Acknowledges a purchase the app granted and does not consume, such as a subscription,
+     * so that it is not refunded. Acknowledged purchases complete right away, as do all
+     * purchases of engines which don't need acknowledgements.
+     */
+    IabFuture<Purchase> acknowledgeAsync(Purchase purchase, long timeoutMillis);
+}
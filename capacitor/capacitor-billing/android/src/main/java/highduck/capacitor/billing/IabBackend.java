@@ -0,0 +1,93 @@
+package highduck.capacitor.billing;
+
+import android.app.PendingIntent;
+import android.os.RemoteException;
+
+import java.util.List;
+
+/**
+ * In-app billing service used by {@link IabHelper}. The default implementation is
+ * {@link ServiceBackend}, bound to the Google Play billing service; other implementations
+ * allow the helper to run without it, for example in tests and load tests.
+ * <p>
+ * Calls other than {@link #connect} and {@link #disconnect} are blocking IPC calls,
+ * they are made from worker threads and must be thread-safe.
+ */
+interface IabBackend {
+
+    /**
+     * Notified about the state of the connection to the service.
+     */
+    interface ConnectionListener {
+        void onConnected();
+
+        void onDisconnected();
+    }
+
+    /**
+     * Page of owned items, as returned by {@link #getPurchases}.
+     * Lists are null if the service response lacks them.
+     */
+    class PurchasesPage {
+        final int response;
+        final List<String> skus;
+        final List<String> purchaseData;
+        final List<String> signatures;
+        final String continuationToken;
+
+        PurchasesPage(int response, List<String> skus, List<String> purchaseData,
+                      List<String> signatures, String continuationToken) {
+            this.response = response;
+            this.skus = skus;
+            this.purchaseData = purchaseData;
+            this.signatures = signatures;
+            this.continuationToken = continuationToken;
+        }
+    }
+
+    /**
+     * Listing details JSON strings, as returned by {@link #getSkuDetails}.
+     * The list is null if the service response lacks it.
+     */
+    class SkuDetailsList {
+        final int response;
+        final List<String> details;
+
+        SkuDetailsList(int response, List<String> details) {
+            this.response = response;
+            this.details = details;
+        }
+    }
+
+    /**
+     * Intent of the purchase flow UI, as returned by {@link #getBuyIntent}.
+     */
+    class BuyIntent {
+        final int response;
+        final PendingIntent intent;
+
+        BuyIntent(int response, PendingIntent intent) {
+            this.response = response;
+            this.intent = intent;
+        }
+    }
+
+    /**
+     * Starts connecting to the service, the listener is notified once it is connected.
+     *
+     * @return false if there is no billing service on this device
+     */
+    boolean connect(ConnectionListener listener);
+
+    void disconnect();
+
+    int isBillingSupported(String itemType) throws RemoteException;
+
+    PurchasesPage getPurchases(String itemType, String continuationToken) throws RemoteException;
+
+    SkuDetailsList getSkuDetails(String itemType, List<String> skus) throws RemoteException;
+
+    BuyIntent getBuyIntent(String sku, String itemType, String developerPayload) throws RemoteException;
+
+    int consumePurchase(String purchaseToken) throws RemoteException;
+}
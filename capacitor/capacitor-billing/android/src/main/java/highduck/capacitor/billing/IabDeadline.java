@@ -0,0 +1,87 @@
+package highduck.capacitor.billing;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Deadline of an asynchronous billing operation. The operation finishes exactly once:
+ * either its work calls {@link #finish} first, or the deadline passes, in which case the
+ * work is cancelled and the expiry action is run instead, through the handler of the
+ * deadline. Late results of cancelled work are dropped by the work itself, as
+ * {@link #finish} returns false for them.
+ * <p>
+ * Cancelling interrupts the worker thread: waits for reconnection and for further pages
+ * stop right away, a call to the billing service already in progress returns on its own.
+ */
+class IabDeadline {
+    // Timeout of operations which wait for their result as long as it takes
+    static final long NONE = 0;
+
+    private final long mTimeoutMillis;
+    private final Handler mHandler;
+    private final AtomicBoolean mFinished = new AtomicBoolean();
+    private volatile boolean mExpired = false;
+    private volatile Future<?> mWork = null;
+    private volatile Runnable mExpire = null;
+
+    /**
+     * Creates the deadline on the calling thread, or on the main thread if the calling
+     * thread has no Looper, such as a billing worker continuing a chain of operations.
+     *
+     * @param timeoutMillis time left to the operation, {@link #NONE} or a negative value for no deadline
+     */
+    IabDeadline(long timeoutMillis) {
+        this(timeoutMillis, new Handler(Looper.myLooper() != null ? Looper.myLooper() : Looper.getMainLooper()));
+    }
+
+    /**
+     * Creates the deadline, the expiry action is run through the handler.
+     */
+    IabDeadline(long timeoutMillis, Handler handler) {
+        mTimeoutMillis = timeoutMillis;
+        mHandler = handler;
+    }
+
+    /**
+     * Starts the timer.
+     *
+     * @param onExpired run if the deadline passes before the operation finished
+     */
+    void start(final Runnable onExpired) {
+        if (mTimeoutMillis <= 0) return;
+        mExpire = () -> {
+            if (!mFinished.compareAndSet(false, true)) return;
+            mExpired = true;
+            final Future<?> work = mWork;
+            if (work != null) work.cancel(true);
+            onExpired.run();
+        };
+        mHandler.postDelayed(mExpire, mTimeoutMillis);
+    }
+
+    /**
+     * Sets the work to cancel when the deadline passes, it is cancelled right away if it already passed.
+     */
+    void setWork(Future<?> work) {
+        mWork = work;
+        if (mExpired) work.cancel(true);
+    }
+
+    /**
+     * Marks the operation as finished and stops the timer.
+     *
+     * @return false if the operation already finished, its result is to be dropped then
+     */
+    boolean finish() {
+        if (!mFinished.compareAndSet(false, true)) return false;
+        if (mExpire != null) mHandler.removeCallbacks(mExpire);
+        return true;
+    }
+
+    boolean isExpired() {
+        return mExpired;
+    }
+}
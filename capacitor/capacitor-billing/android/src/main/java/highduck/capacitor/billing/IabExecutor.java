@@ -0,0 +1,246 @@
+package highduck.capacitor.billing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of named daemon threads running the background work of {@link IabHelper}.
+ * Keeps counters of queue depth, time spent waiting in the queue and time spent running,
+ * so contention can be observed through {@link #toString()}.
+ */
+class IabExecutor {
+    // Idle worker threads are released after this delay
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mPool;
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mCompletedTasks = new AtomicLong();
+    private final AtomicLong mTotalWaitNanos = new AtomicLong();
+    private final AtomicLong mTotalRunNanos = new AtomicLong();
+    private final AtomicLong mMaxWaitNanos = new AtomicLong();
+
+    IabExecutor(final String name, int threads) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        mPool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), factory);
+        mPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the task on one of the pool threads. Unexpected exceptions are logged
+     * instead of being kept in a future nobody waits for.
+     *
+     * @return future of the task, to cancel it; already cancelled if the executor is shut down
+     */
+    Future<?> execute(final Runnable task) {
+        return submit(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                IabHelper.logError("Unexpected exception in billing task: " + e);
+                e.printStackTrace();
+            }
+        }, null);
+    }
+
+    <T> Future<T> submit(Callable<T> task) {
+        TimedTask<T> future = new TimedTask<>(task);
+        enqueue(future);
+        return future;
+    }
+
+    <T> Future<T> submit(Runnable task, T result) {
+        TimedTask<T> future = new TimedTask<>(task, result);
+        enqueue(future);
+        return future;
+    }
+
+    /**
+     * Runs all tasks concurrently and waits until each one is finished. The calling thread
+     * takes part: tasks no pool thread has picked up yet are run inline, so fanning out
+     * from a pool thread cannot starve the pool. If the calling thread is interrupted, the
+     * tasks still running are cancelled as well.
+     *
+     * @return futures of the tasks, in the same order, all of them done
+     */
+    <T> List<Future<T>> invokeAll(List<? extends Callable<T>> tasks) throws InterruptedException {
+        List<TimedTask<T>> futures = new ArrayList<>(tasks.size());
+        for (int i = 0; i < tasks.size(); ++i) {
+            TimedTask<T> future = new TimedTask<>(tasks.get(i));
+            futures.add(future);
+            // the last task is always run inline, no need to hand it to the pool
+            if (i < tasks.size() - 1) {
+                enqueue(future);
+            } else {
+                mQueueDepth.incrementAndGet();
+            }
+        }
+        // the pool takes tasks from the head, help from the tail
+        for (int i = futures.size() - 1; i >= 0; --i) {
+            futures.get(i).run();
+        }
+        try {
+            for (TimedTask<T> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException | CancellationException ignored) {
+                    // reported to the caller through the future
+                }
+            }
+        } catch (InterruptedException e) {
+            // the caller was cancelled, so are the tasks still running on pool threads
+            for (TimedTask<T> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+        return new ArrayList<Future<T>>(futures);
+    }
+
+    /**
+     * Waits for a task submitted to this executor. If no pool thread has picked it up yet,
+     * it is run on the calling thread instead.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T await(Future<T> future) throws InterruptedException, ExecutionException {
+        if (future instanceof TimedTask) {
+            ((TimedTask<T>) future).run();
+        }
+        return future.get();
+    }
+
+    // Tasks rejected because the executor is shut down are cancelled instead of throwing
+    // on the calling thread, which may be a UI or Handler thread
+    private void enqueue(TimedTask<?> task) {
+        int depth = mQueueDepth.incrementAndGet();
+        int max = mMaxQueueDepth.get();
+        while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth)) {
+            max = mMaxQueueDepth.get();
+        }
+        if (depth > mPool.getMaximumPoolSize()) {
+            IabHelper.logDebug("Billing executor is saturated, queue depth: " + depth);
+        }
+        try {
+            mPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            IabHelper.logDebug("Billing executor is shut down, task cancelled.");
+            task.drop();
+        }
+    }
+
+    /**
+     * Stops accepting tasks and interrupts the running ones. Tasks which have not started
+     * yet are cancelled, so nobody waits for them.
+     */
+    void shutdown() {
+        IabHelper.logDebug("Shutting down billing executor: " + this);
+        for (Runnable task : mPool.shutdownNow()) {
+            if (task instanceof TimedTask) {
+                ((TimedTask<?>) task).drop();
+            }
+        }
+    }
+
+    boolean isShutdown() {
+        return mPool.isShutdown();
+    }
+
+    /** Returns the number of tasks submitted but not yet started. */
+    int getQueueDepth() { return mQueueDepth.get(); }
+
+    /** Returns the highest number of tasks ever waiting at the same time. */
+    int getMaxQueueDepth() { return mMaxQueueDepth.get(); }
+
+    long getCompletedTaskCount() { return mCompletedTasks.get(); }
+
+    /** Returns the average time a task waited for a free thread, in milliseconds. */
+    long getAverageWaitMillis() {
+        long completed = mCompletedTasks.get();
+        return completed > 0 ? TimeUnit.NANOSECONDS.toMillis(mTotalWaitNanos.get() / completed) : 0;
+    }
+
+    /** Returns the longest time a task waited for a free thread, in milliseconds. */
+    long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxWaitNanos.get());
+    }
+
+    /** Returns the average running time of a task, in milliseconds. */
+    long getAverageRunMillis() {
+        long completed = mCompletedTasks.get();
+        return completed > 0 ? TimeUnit.NANOSECONDS.toMillis(mTotalRunNanos.get() / completed) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "IabExecutor(active: " + mPool.getActiveCount()
+                + ", queued: " + getQueueDepth()
+                + ", max queued: " + getMaxQueueDepth()
+                + ", completed: " + getCompletedTaskCount()
+                + ", avg wait: " + getAverageWaitMillis() + "ms"
+                + ", max wait: " + getMaxWaitMillis() + "ms"
+                + ", avg run: " + getAverageRunMillis() + "ms)";
+    }
+
+    private class TimedTask<T> extends FutureTask<T> {
+        private final long mEnqueuedAt = System.nanoTime();
+        // run() may be called more than once (e.g. by a waiting caller and then by the pool)
+        private final AtomicBoolean mDequeued = new AtomicBoolean();
+
+        TimedTask(Callable<T> callable) {
+            super(callable);
+        }
+
+        TimedTask(Runnable runnable, T result) {
+            super(runnable, result);
+        }
+
+        // Cancels the task if it has not started yet
+        void drop() {
+            if (mDequeued.compareAndSet(false, true)) {
+                mQueueDepth.decrementAndGet();
+                cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!mDequeued.compareAndSet(false, true)) {
+                return;
+            }
+            long startedAt = System.nanoTime();
+            long wait = startedAt - mEnqueuedAt;
+            mQueueDepth.decrementAndGet();
+            mTotalWaitNanos.addAndGet(wait);
+            long max = mMaxWaitNanos.get();
+            while (wait > max && !mMaxWaitNanos.compareAndSet(max, wait)) {
+                max = mMaxWaitNanos.get();
+            }
+            try {
+                super.run();
+            } finally {
+                mTotalRunNanos.addAndGet(System.nanoTime() - startedAt);
+                mCompletedTasks.incrementAndGet();
+            }
+        }
+    }
+}
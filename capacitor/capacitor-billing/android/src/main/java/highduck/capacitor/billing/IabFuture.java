@@ -0,0 +1,264 @@
+package highduck.capacitor.billing;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Result of an asynchronous billing operation: completed with a value, or failed with an
+ * {@link IabException} carrying the {@link IabResult}. A small stand-in for CompletableFuture,
+ * which needs API 24.
+ * <p>
+ * Callbacks run on the executor they are registered with. With {@link #DIRECT} they run on
+ * the thread which completes the future, usually a billing worker, so operations chained
+ * that way continue without going through the main looper. A callback registered on a
+ * future which is already done runs right away through its executor. A callback throwing
+ * an unexpected exception is logged, the other callbacks still run.
+ */
+public class IabFuture<T> {
+
+    /**
+     * Runs callbacks on the thread which completes the future, or on the registering thread
+     * if it is done already.
+     */
+    public static final Executor DIRECT = Runnable::run;
+
+    /**
+     * Called once the future is done, with either the value or the error.
+     */
+    public interface Callback<T> {
+        void onComplete(@Nullable T value, @Nullable IabException error);
+    }
+
+    /**
+     * Maps the value of a future, throwing fails the resulting future.
+     */
+    public interface Function<T, U> {
+        U apply(T value) throws IabException;
+    }
+
+    /**
+     * Starts the next operation with the value of a future.
+     */
+    public interface AsyncFunction<T, U> {
+        IabFuture<U> apply(T value) throws IabException;
+    }
+
+    private boolean mDone = false;
+    private T mValue = null;
+    private IabException mError = null;
+    // callbacks waiting for the future, null once it is done
+    private List<Runnable> mCallbacks = new ArrayList<>();
+
+    /**
+     * Returns an executor posting to the handler, such as one of the main thread.
+     */
+    public static Executor executor(final Handler handler) {
+        return handler::post;
+    }
+
+    /**
+     * Returns an executor posting to the Looper of the calling thread.
+     */
+    public static Executor callingThread() {
+        return executor(new Handler());
+    }
+
+    /**
+     * Returns an executor posting to the main thread.
+     */
+    public static Executor mainThread() {
+        return executor(new Handler(Looper.getMainLooper()));
+    }
+
+    public static <T> IabFuture<T> completed(@Nullable T value) {
+        IabFuture<T> future = new IabFuture<>();
+        future.complete(value);
+        return future;
+    }
+
+    public static <T> IabFuture<T> failed(IabException error) {
+        IabFuture<T> future = new IabFuture<>();
+        future.fail(error);
+        return future;
+    }
+
+    /**
+     * Returns a future completed with the values of all futures, in the same order, once each
+     * one is done. If any of them failed, it fails with the first failure in that order.
+     */
+    public static <T> IabFuture<List<T>> allOf(final List<IabFuture<T>> futures) {
+        final IabFuture<List<T>> all = new IabFuture<>();
+        if (futures.isEmpty()) {
+            all.complete(new ArrayList<T>());
+            return all;
+        }
+        final int[] remaining = {futures.size()};
+        final List<T> values = new ArrayList<>(futures.size());
+        final List<IabException> errors = new ArrayList<>(futures.size());
+        for (int i = 0; i < futures.size(); ++i) {
+            values.add(null);
+            errors.add(null);
+        }
+        for (int i = 0; i < futures.size(); ++i) {
+            final int index = i;
+            futures.get(i).whenComplete(DIRECT, (value, error) -> {
+                synchronized (remaining) {
+                    values.set(index, value);
+                    errors.set(index, error);
+                    if (--remaining[0] > 0) return;
+                }
+                for (IabException failure : errors) {
+                    if (failure != null) {
+                        all.fail(failure);
+                        return;
+                    }
+                }
+                all.complete(values);
+            });
+        }
+        return all;
+    }
+
+    /**
+     * @return false if the future is already done
+     */
+    public boolean complete(@Nullable T value) {
+        return finish(value, null);
+    }
+
+    /**
+     * @return false if the future is already done
+     */
+    public boolean fail(IabException error) {
+        return finish(null, error);
+    }
+
+    private boolean finish(T value, IabException error) {
+        final List<Runnable> callbacks;
+        synchronized (this) {
+            if (mDone) return false;
+            mDone = true;
+            mValue = value;
+            mError = error;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+        for (Runnable callback : callbacks) {
+            runCallback(callback);
+        }
+        return true;
+    }
+
+    // A throwing callback must not keep the next ones from running, nor the completing thread
+    // from going on; such as a billing worker freeing its queue after completing a future
+    private static void runCallback(Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            IabHelper.logError("Unexpected exception in billing callback: " + e);
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Blocks until the future is done, never call it on the thread expected to complete it.
+     *
+     * @throws IabException if the future failed
+     */
+    public T get() throws IabException, InterruptedException {
+        synchronized (this) {
+            while (!mDone) {
+                wait();
+            }
+        }
+        if (mError != null) throw mError;
+        return mValue;
+    }
+
+    /**
+     * Calls the callback through the executor once the future is done.
+     *
+     * @return this future
+     */
+    public IabFuture<T> whenComplete(final Executor executor, final Callback<? super T> callback) {
+        final Runnable run = () -> executor.execute(() -> runCallback(() -> callback.onComplete(mValue, mError)));
+        synchronized (this) {
+            if (!mDone) {
+                mCallbacks.add(run);
+                return this;
+            }
+        }
+        runCallback(run);
+        return this;
+    }
+
+    /**
+     * Returns a future of the value mapped through the executor, failures are passed on.
+     */
+    public <U> IabFuture<U> thenApply(final Executor executor, final Function<? super T, ? extends U> function) {
+        final IabFuture<U> next = new IabFuture<>();
+        whenComplete(executor, (value, error) -> {
+            if (error != null) {
+                next.fail(error);
+                return;
+            }
+            try {
+                next.complete(function.apply(value));
+            } catch (IabException e) {
+                next.fail(e);
+            } catch (RuntimeException e) {
+                next.fail(unexpected(e));
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns a future of the operation started through the executor with the value,
+     * failures are passed on.
+     */
+    public <U> IabFuture<U> thenCompose(final Executor executor, final AsyncFunction<? super T, U> function) {
+        final IabFuture<U> next = new IabFuture<>();
+        whenComplete(executor, (value, error) -> {
+            if (error != null) {
+                next.fail(error);
+                return;
+            }
+            final IabFuture<U> started;
+            try {
+                started = function.apply(value);
+            } catch (IabException e) {
+                next.fail(e);
+                return;
+            } catch (RuntimeException e) {
+                next.fail(unexpected(e));
+                return;
+            }
+            started.whenComplete(DIRECT, (nextValue, nextError) -> {
+                if (nextError != null) {
+                    next.fail(nextError);
+                } else {
+                    next.complete(nextValue);
+                }
+            });
+        });
+        return next;
+    }
+
+    // Operations throw IllegalStateException when the helper is not set up or disposed of
+    private static IabException unexpected(RuntimeException e) {
+        IabHelper.logError("Unexpected exception in billing operation: " + e);
+        return new IabException(IabHelper.IABHELPER_UNKNOWN_ERROR, String.valueOf(e.getMessage()), e);
+    }
+}
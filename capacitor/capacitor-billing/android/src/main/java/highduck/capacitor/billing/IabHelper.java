@@ -17,29 +17,35 @@ package highduck.capacitor.billing;
 
 import android.app.Activity;
 import android.app.PendingIntent;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender.SendIntentException;
-import android.content.ServiceConnection;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.ResolveInfo;
-import android.os.Bundle;
 import android.os.Handler;
-import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
-import com.android.vending.billing.IInAppBillingService;
-
 import org.json.JSONException;
 
 import java.io.IOException;
+import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -67,13 +73,13 @@ import java.util.List;
  * A note about threading: When using this object from a background thread, you may
  * call the blocking versions of methods; when using from a UI thread, call
  * only the asynchronous versions and handle the results via callbacks.
- * Also, notice that you can only call one asynchronous operation at a time;
- * attempting to start a second asynchronous operation while the first one
- * has not yet completed will result in an exception being thrown.
+ * Asynchronous operations may be started at any time: operations of the same kind
+ * (purchase flow, inventory query, consumption) are queued and run one after another
+ * in the order they were requested, each one notifying its own listener.
  *
  * @author Bruno Oliveira (Google)
  */
-public class IabHelper {
+public class IabHelper implements BillingEngine {
     // Is debug logging enabled?
     static boolean mDebugLog = false;
     static String mDebugTag = "IabHelper";
@@ -82,9 +88,6 @@ public class IabHelper {
     // (Only allowed if the app is debuggable)
     private boolean mSkipPurchaseVerification = false;
 
-    // bindService was called
-    boolean bounded = false;
-
     // Is setup done?
     boolean mSetupDone = false;
 
@@ -94,20 +97,37 @@ public class IabHelper {
     // Are subscriptions supported?
     boolean mSubscriptionsSupported = false;
 
-    // Is an asynchronous operation in progress?
-    // (only one at a time can be in progress)
-    boolean mAsyncInProgress = false;
+    // Asynchronous operations in progress or waiting, per operation kind
+    // (only one operation of each kind can be in progress)
+    final IabOperationQueue mAsyncQueue = new IabOperationQueue();
+
+    // Worker threads for the background operations (inventory queries, consumption)
+    final IabExecutor mExecutor = new IabExecutor("IabHelper", EXECUTOR_THREADS);
 
-    // (for logging/debugging)
-    // if mAsyncInProgress == true, what asynchronous operation is in progress?
-    String mAsyncOperation = "";
+    // Worker verifying the results of the purchase flow, a single thread keeps them in order.
+    // It is not shut down on dispose, so results already handed over still reach their listeners.
+    final IabExecutor mResultExecutor = new IabExecutor("IabHelper-result", 1);
 
-    // Context we were passed during initialization
-    Context mContext;
+    // Purchase flow results being verified, not yet delivered
+    final AtomicInteger mPendingPurchaseResults = new AtomicInteger();
+
+    // Is the application debuggable? (purchase verification can be skipped only then)
+    boolean mDebuggable = false;
 
     // Connection to the service
-    IInAppBillingService mService;
-    ServiceConnection mServiceConn;
+    IabBackend mBackend;
+
+    // Notified about the connection to the service, during setup and after it
+    IabBackend.ConnectionListener mConnectionListener;
+
+    // Reconnects to the service after setup, operations wait for it
+    final IabReconnector mReconnector = new IabReconnector(() -> {
+        mBackend.disconnect();
+        return mBackend.connect(mConnectionListener);
+    });
+
+    // How long an operation waits for the service to reconnect before failing
+    long mReconnectTimeoutMillis = RECONNECT_TIMEOUT_MILLIS;
 
     // The request code used to launch purchase flow
     int mRequestCode;
@@ -118,6 +138,12 @@ public class IabHelper {
     // Public key for verifying signature, in base64 encoding
     String mSignatureBase64 = null;
 
+    // Public key for verifying signature, parsed on first use
+    PublicKey mPublicKey = null;
+
+    // Outcomes of signature verifications already done, null if they are not cached
+    VerificationCache mVerificationCache = null;
+
     // Billing response codes
     public static final int BILLING_RESPONSE_RESULT_OK = 0;
     public static final int BILLING_RESPONSE_RESULT_USER_CANCELED = 1;
@@ -140,6 +166,7 @@ public class IabHelper {
     public static final int IABHELPER_UNKNOWN_ERROR = -1008;
     public static final int IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE = -1009;
     public static final int IABHELPER_INVALID_CONSUMPTION = -1010;
+    public static final int IABHELPER_TIMEOUT = -1011;
 
     // Keys for the responses from InAppBillingService
     public static final String RESPONSE_CODE = "RESPONSE_CODE";
@@ -160,6 +187,20 @@ public class IabHelper {
     public static final String GET_SKU_DETAILS_ITEM_LIST = "ITEM_ID_LIST";
     public static final String GET_SKU_DETAILS_ITEM_TYPE_LIST = "ITEM_TYPE_LIST";
 
+    // The billing service accepts at most this many SKUs in a single getSkuDetails request
+    static final int SKU_DETAILS_CHUNK_SIZE = 20;
+
+    // Number of worker threads for the background operations
+    static final int EXECUTOR_THREADS = 4;
+
+    // Default time an operation waits for the service to reconnect
+    static final long RECONNECT_TIMEOUT_MILLIS = 30000;
+
+    // Kinds of asynchronous operations
+    static final String ASYNC_PURCHASE = "purchase";
+    static final String ASYNC_INVENTORY = "inventory";
+    static final String ASYNC_CONSUME = "consume";
+
     /**
      * Creates an instance. After creation, it will not yet be ready to use. You must perform
      * setup by calling {@link #startSetup} and wait for setup to complete. This constructor does not
@@ -172,8 +213,18 @@ public class IabHelper {
      *                        is NOT your "developer public key".
      */
     public IabHelper(Context ctx, String base64PublicKey) {
-        mContext = ctx.getApplicationContext();
+        this(ctx, base64PublicKey, new ServiceBackend(ctx));
+    }
+
+    /**
+     * Creates an instance working with the given billing service implementation instead of
+     * the Google Play billing service.
+     */
+    IabHelper(Context ctx, String base64PublicKey, IabBackend backend) {
+        ApplicationInfo info = ctx.getApplicationContext().getApplicationInfo();
+        mDebuggable = info != null && (info.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
         mSignatureBase64 = base64PublicKey;
+        mBackend = backend;
         logDebug("IAB helper created.");
     }
 
@@ -195,6 +246,29 @@ public class IabHelper {
         mSkipPurchaseVerification = shouldSkipPurchaseVerification;
     }
 
+    /**
+     * Sets the cache of verification outcomes, so that receipts already verified are not
+     * verified again. The cache may be shared by several helpers.
+     */
+    public void setVerificationCache(@Nullable VerificationCache cache) {
+        mVerificationCache = cache;
+    }
+
+    /**
+     * The in-app billing v3 service does not push purchase updates, purchases made outside
+     * of the purchase flow are found by the inventory queries instead.
+     */
+    public void setPurchasesUpdatedListener(@Nullable OnPurchasesUpdatedListener listener) {
+    }
+
+    /**
+     * Sets how long operations started while the billing service is disconnected
+     * wait for it to reconnect, before failing with {@link #IABHELPER_REMOTE_EXCEPTION}.
+     */
+    public void setReconnectTimeout(long millis) {
+        mReconnectTimeoutMillis = millis;
+    }
+
     /**
      * Callback for setup process. This listener's {@link #onIabSetupFinished} method is called
      * when the setup process is complete.
@@ -222,24 +296,26 @@ public class IabHelper {
 
         // Connection to IAB service
         logDebug("Starting in-app billing setup.");
-        mServiceConn = new ServiceConnection() {
+        mConnectionListener = new IabBackend.ConnectionListener() {
             @Override
-            public void onServiceDisconnected(ComponentName name) {
+            public void onDisconnected() {
                 logDebug("Billing service disconnected.");
-                mService = null;
+                if (mSetupDone) mReconnector.onDisconnected();
             }
 
             @Override
-            public void onServiceConnected(ComponentName name, IBinder service) {
+            public void onConnected() {
                 if (mDisposed) return;
+                if (mSetupDone) {
+                    mReconnector.onConnected();
+                    return;
+                }
                 logDebug("Billing service connected.");
-                mService = IInAppBillingService.Stub.asInterface(service);
-                String packageName = mContext.getPackageName();
                 try {
                     logDebug("Checking for in-app billing 3 support.");
 
                     // check for in-app billing v3 support
-                    int response = mService.isBillingSupported(3, packageName, ITEM_TYPE_INAPP);
+                    int response = mBackend.isBillingSupported(ITEM_TYPE_INAPP);
                     if (response != BILLING_RESPONSE_RESULT_OK) {
                         if (listener != null) listener.onIabSetupFinished(new IabResult(response,
                                 "Error checking for billing v3 support."));
@@ -248,10 +324,10 @@ public class IabHelper {
                         mSubscriptionsSupported = false;
                         return;
                     }
-                    logDebug("In-app billing version 3 supported for " + packageName);
+                    logDebug("In-app billing version 3 supported.");
 
                     // check for v3 subscriptions support
-                    response = mService.isBillingSupported(3, packageName, ITEM_TYPE_SUBS);
+                    response = mBackend.isBillingSupported(ITEM_TYPE_SUBS);
                     if (response == BILLING_RESPONSE_RESULT_OK) {
                         logDebug("Subscriptions AVAILABLE.");
                         mSubscriptionsSupported = true;
@@ -274,16 +350,9 @@ public class IabHelper {
                 }
             }
         };
+        boolean available = mBackend.connect(mConnectionListener);
 
-        Intent serviceIntent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
-        serviceIntent.setPackage("com.android.vending");
-        final List<ResolveInfo> services = mContext.getPackageManager()
-                .queryIntentServices(serviceIntent, 0);
-        if (services != null && !services.isEmpty()) {
-            // service available to handle that Intent
-            mContext.bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE);
-            bounded = true;
-        } else {
+        if (!available) {
             // no service available to handle that Intent
             if (listener != null) {
                 listener.onIabSetupFinished(
@@ -293,6 +362,22 @@ public class IabHelper {
         }
     }
 
+    /**
+     * Future variant of {@link #startSetup(OnIabSetupFinishedListener)}, completed on the thread
+     * the service connects on, or right away if the service is unavailable.
+     */
+    public IabFuture<Void> startSetup() {
+        final IabFuture<Void> future = new IabFuture<>();
+        startSetup(result -> {
+            if (result.isFailure()) {
+                future.fail(new IabException(result));
+            } else {
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
     /**
      * Dispose of object, releasing resources. It's very important to call this
      * method when you are done with this object. It will release any resources
@@ -302,20 +387,18 @@ public class IabHelper {
     public void dispose() {
         logDebug("Disposing.");
         mSetupDone = false;
-        if (mServiceConn != null) {
-            logDebug("Unbinding from service.");
-            if (mContext != null && bounded) {
-                mContext.unbindService(mServiceConn);
-                bounded = false;
-            }
-        }
+        mBackend.disconnect();
         mDisposed = true;
-        mContext = null;
-        mServiceConn = null;
-        mService = null;
+        mReconnector.close();
+        mAsyncQueue.close();
+        mExecutor.shutdown();
         mPurchaseListener = null;
     }
 
+    public boolean isDisposed() {
+        return mDisposed;
+    }
+
     private void checkNotDisposed() {
         if (mDisposed)
             throw new IllegalStateException("IabHelper was disposed of, so it cannot be used.");
@@ -387,34 +470,66 @@ public class IabHelper {
      *                    when the purchase completes. This extra data will be permanently bound to that purchase
      *                    and will always be returned when the purchase is queried.
      */
-    public void launchPurchaseFlow(Activity act, String sku, String itemType, int requestCode,
-                                   OnIabPurchaseFinishedListener listener, String extraData) {
+    public void launchPurchaseFlow(final Activity act, final String sku, final String itemType, final int requestCode,
+                                   final OnIabPurchaseFinishedListener listener, final String extraData) {
         checkNotDisposed();
         checkSetupDone("launchPurchaseFlow");
-        flagStartAsync("launchPurchaseFlow");
+        final long deadline = SystemClock.elapsedRealtime() + mReconnectTimeoutMillis;
+        mAsyncQueue.enqueue(ASYNC_PURCHASE, "launchPurchaseFlow", () -> mReconnector.whenConnected(
+                () -> launchPurchaseFlowInternal(act, sku, itemType, requestCode, listener, extraData),
+                () -> {
+                    flagEndAsync(ASYNC_PURCHASE);
+                    if (listener != null) listener.onIabPurchaseFinished(new IabResult(IABHELPER_REMOTE_EXCEPTION,
+                            "Billing service disconnected while starting purchase flow."), null);
+                },
+                deadline), () -> {
+            if (listener != null) listener.onIabPurchaseFinished(disposedResult("launchPurchaseFlow"), null);
+        });
+    }
+
+    /**
+     * Future variant of {@link #launchPurchaseFlow(Activity, String, String, int, OnIabPurchaseFinishedListener, String)},
+     * completed with the verified purchase on the main thread once the purchase flow finishes.
+     * This method MUST be called from the UI thread of the Activity.
+     */
+    public IabFuture<Purchase> launchPurchaseFlow(Activity act, String sku, String itemType, int requestCode, String extraData) {
+        final IabFuture<Purchase> future = new IabFuture<>();
+        launchPurchaseFlow(act, sku, itemType, requestCode, (result, info) -> {
+            if (result.isFailure()) {
+                future.fail(new IabException(result));
+            } else {
+                future.complete(info);
+            }
+        }, extraData);
+        return future;
+    }
+
+    void launchPurchaseFlowInternal(Activity act, String sku, String itemType, int requestCode,
+                                    OnIabPurchaseFinishedListener listener, String extraData) {
+        if (mDisposed) return;
         IabResult result;
 
         if (itemType.equals(ITEM_TYPE_SUBS) && !mSubscriptionsSupported) {
             IabResult r = new IabResult(IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE,
                     "Subscriptions are not available.");
-            flagEndAsync();
+            flagEndAsync(ASYNC_PURCHASE);
             if (listener != null) listener.onIabPurchaseFinished(r, null);
             return;
         }
 
         try {
             logDebug("Constructing buy intent for " + sku + ", item type: " + itemType);
-            Bundle buyIntentBundle = mService.getBuyIntent(3, mContext.getPackageName(), sku, itemType, extraData);
-            int response = getResponseCodeFromBundle(buyIntentBundle);
+            IabBackend.BuyIntent buyIntent = mBackend.getBuyIntent(sku, itemType, extraData);
+            int response = buyIntent.response;
             if (response != BILLING_RESPONSE_RESULT_OK) {
                 logError("Unable to buy item, Error response: " + getResponseDesc(response));
-                flagEndAsync();
+                flagEndAsync(ASYNC_PURCHASE);
                 result = new IabResult(response, "Unable to buy item");
                 if (listener != null) listener.onIabPurchaseFinished(result, null);
                 return;
             }
 
-            PendingIntent pendingIntent = buyIntentBundle.getParcelable(RESPONSE_BUY_INTENT);
+            PendingIntent pendingIntent = buyIntent.intent;
             logDebug("Launching buy intent for " + sku + ". Request code: " + requestCode);
             mRequestCode = requestCode;
             mPurchaseListener = listener;
@@ -426,14 +541,14 @@ public class IabHelper {
         } catch (SendIntentException e) {
             logError("SendIntentException while launching purchase flow for sku " + sku);
             e.printStackTrace();
-            flagEndAsync();
+            flagEndAsync(ASYNC_PURCHASE);
 
             result = new IabResult(IABHELPER_SEND_INTENT_FAILED, "Failed to send intent.");
             if (listener != null) listener.onIabPurchaseFinished(result, null);
         } catch (RemoteException e) {
             logError("RemoteException while launching purchase flow for sku " + sku);
             e.printStackTrace();
-            flagEndAsync();
+            flagEndAsync(ASYNC_PURCHASE);
 
             result = new IabResult(IABHELPER_REMOTE_EXCEPTION, "Remote exception while starting purchase flow");
             if (listener != null) listener.onIabPurchaseFinished(result, null);
@@ -444,7 +559,8 @@ public class IabHelper {
      * Handles an activity result that's part of the purchase flow in in-app billing. If you
      * are calling {@link #launchPurchaseFlow}, then you must call this method from your
      * Activity's {@link Activity@onActivityResult} method. This method
-     * MUST be called from the UI thread of the Activity.
+     * MUST be called from the UI thread of the Activity. The purchase is verified on a
+     * worker thread, the purchase listener is notified on the main thread afterwards.
      *
      * @param requestCode The requestCode as you received it.
      * @param resultCode  The resultCode as you received it.
@@ -454,103 +570,124 @@ public class IabHelper {
      * handle it normally.
      */
     public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
-        IabResult result;
         if (requestCode != mRequestCode) return false;
 
         checkNotDisposed();
         checkSetupDone("handleActivityResult");
 
+        // the next queued purchase flow may replace them as soon as this one ends
+        final OnIabPurchaseFinishedListener purchaseListener = mPurchaseListener;
+        final String purchasingItemType = mPurchasingItemType;
+
         // end of async purchase operation that started on launchPurchaseFlow
-        flagEndAsync();
+        flagEndAsync(ASYNC_PURCHASE);
 
         if (data == null) {
             logError("Null data in IAB activity result.");
-            result = new IabResult(IABHELPER_BAD_RESPONSE, "Null data in IAB result");
-            if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
+            deliverPurchaseResult(purchaseListener, new IabResult(IABHELPER_BAD_RESPONSE, "Null data in IAB result"));
             return true;
         }
 
         int responseCode = getResponseCodeFromIntent(data);
-        String purchaseData = data.getStringExtra(RESPONSE_INAPP_PURCHASE_DATA);
-        String dataSignature = data.getStringExtra(RESPONSE_INAPP_SIGNATURE);
+        final String purchaseData = data.getStringExtra(RESPONSE_INAPP_PURCHASE_DATA);
+        final String dataSignature = data.getStringExtra(RESPONSE_INAPP_SIGNATURE);
 
         if (resultCode == Activity.RESULT_OK && responseCode == BILLING_RESPONSE_RESULT_OK) {
             logDebug("Successful resultcode from purchase activity.");
             logDebug("Purchase data: " + purchaseData);
             logDebug("Data signature: " + dataSignature);
             logDebug("Extras: " + data.getExtras());
-            logDebug("Expected item type: " + mPurchasingItemType);
+            logDebug("Expected item type: " + purchasingItemType);
 
             if (purchaseData == null || dataSignature == null) {
                 logError("BUG: either purchaseData or dataSignature is null.");
                 logDebug("Extras: " + data.getExtras().toString());
-                result = new IabResult(IABHELPER_UNKNOWN_ERROR, "IAB returned null purchaseData or dataSignature");
-                if (mPurchaseListener != null)
-                    mPurchaseListener.onIabPurchaseFinished(result, null);
-                return true;
-            }
-
-            Purchase purchase = null;
-            try {
-                purchase = new Purchase(mPurchasingItemType, purchaseData, dataSignature);
-                String sku = purchase.getSku();
-                // Only allow purchase verification to be skipped if we are debuggable
-                boolean skipPurchaseVerification = (this.mSkipPurchaseVerification &&
-                        ((mContext.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0));
-                // Verify signature
-                boolean verified = false;
-
-                if (skipPurchaseVerification) {
-                    verified = true;
-                } else {
-                    try {
-                        verified = Security.verifyPurchaseSignature(mSignatureBase64, purchaseData, dataSignature);
-                    } catch (IOException ignored) {
-                    }
-                }
-
-                if (verified) {
-                    logDebug("Purchase signature successfully verified.");
-                } else {
-                    logError("Purchase signature verification FAILED for sku " + sku);
-                    result = new IabResult(IABHELPER_VERIFICATION_FAILED, "Signature verification failed for sku " + sku);
-                    if (mPurchaseListener != null)
-                        mPurchaseListener.onIabPurchaseFinished(result, purchase);
-                    return true;
-
-                }
-            } catch (JSONException e) {
-                logError("Failed to parse purchase data.");
-                e.printStackTrace();
-                result = new IabResult(IABHELPER_BAD_RESPONSE, "Failed to parse purchase data.");
-                if (mPurchaseListener != null)
-                    mPurchaseListener.onIabPurchaseFinished(result, null);
+                deliverPurchaseResult(purchaseListener, new IabResult(IABHELPER_UNKNOWN_ERROR,
+                        "IAB returned null purchaseData or dataSignature"));
                 return true;
             }
 
-            if (mPurchaseListener != null) {
-                mPurchaseListener.onIabPurchaseFinished(new IabResult(BILLING_RESPONSE_RESULT_OK, "Success"), purchase);
-            }
+            deliverPurchaseResult(purchaseListener,
+                    purchase -> verifyPurchaseResult(purchasingItemType, purchaseData, dataSignature, purchase));
         } else if (resultCode == Activity.RESULT_OK) {
             // result code was OK, but in-app billing response was not OK.
             logDebug("Result code was OK but in-app billing response was not OK: " + getResponseDesc(responseCode));
-            if (mPurchaseListener != null) {
-                result = new IabResult(responseCode, "Problem purchashing item.");
-                mPurchaseListener.onIabPurchaseFinished(result, null);
-            }
+            deliverPurchaseResult(purchaseListener, new IabResult(responseCode, "Problem purchashing item."));
         } else if (resultCode == Activity.RESULT_CANCELED) {
             logDebug("Purchase canceled - Response: " + getResponseDesc(responseCode));
-            result = new IabResult(IABHELPER_USER_CANCELLED, "User canceled.");
-            if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
+            deliverPurchaseResult(purchaseListener, new IabResult(IABHELPER_USER_CANCELLED, "User canceled."));
         } else {
             logError("Purchase failed. Result code: " + Integer.toString(resultCode)
                     + ". Response: " + getResponseDesc(responseCode));
-            result = new IabResult(IABHELPER_UNKNOWN_PURCHASE_RESPONSE, "Unknown purchase response.");
-            if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
+            deliverPurchaseResult(purchaseListener, new IabResult(IABHELPER_UNKNOWN_PURCHASE_RESPONSE,
+                    "Unknown purchase response."));
         }
         return true;
     }
 
+    // Computes the result of a purchase flow on the result worker
+    interface PurchaseResultTask {
+        /**
+         * @param purchase receives the purchase, if there is one
+         */
+        IabResult run(Purchase[] purchase);
+    }
+
+    private void deliverPurchaseResult(OnIabPurchaseFinishedListener listener, final IabResult result) {
+        deliverPurchaseResult(listener, purchase -> result);
+    }
+
+    /**
+     * Runs the task on the result worker and notifies the listener on the main thread.
+     * The results of all purchase flows go through the single worker thread, failures
+     * included, so the listeners are notified in the order the results arrived.
+     */
+    private void deliverPurchaseResult(final OnIabPurchaseFinishedListener listener, final PurchaseResultTask task) {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mPendingPurchaseResults.incrementAndGet();
+        mResultExecutor.execute(() -> {
+            final Purchase[] purchase = new Purchase[1];
+            IabResult result;
+            try {
+                result = task.run(purchase);
+            } catch (RuntimeException e) {
+                logError("Unexpected exception while handling purchase result: " + e);
+                result = new IabResult(IABHELPER_UNKNOWN_ERROR, "Failed to handle purchase result.");
+            }
+            final IabResult finalResult = result;
+            handler.post(() -> {
+                mPendingPurchaseResults.decrementAndGet();
+                if (listener != null) listener.onIabPurchaseFinished(finalResult, purchase[0]);
+            });
+        });
+    }
+
+    /**
+     * Parses a purchase returned by the purchase flow and verifies its signature.
+     * Called on the result worker thread.
+     *
+     * @param purchase receives the parsed purchase, left null if the data can't be parsed
+     */
+    IabResult verifyPurchaseResult(String itemType, String purchaseData, String dataSignature, Purchase[] purchase) {
+        try {
+            purchase[0] = new Purchase(itemType, purchaseData, dataSignature);
+        } catch (JSONException e) {
+            logError("Failed to parse purchase data.");
+            e.printStackTrace();
+            return new IabResult(IABHELPER_BAD_RESPONSE, "Failed to parse purchase data.");
+        }
+        String sku = purchase[0].getSku();
+        // Only allow purchase verification to be skipped if we are debuggable
+        boolean skipPurchaseVerification = this.mSkipPurchaseVerification && mDebuggable;
+        // Verify signature
+        if (!skipPurchaseVerification && !verifyPurchaseSignature(purchaseData, dataSignature)) {
+            logError("Purchase signature verification FAILED for sku " + sku);
+            return new IabResult(IABHELPER_VERIFICATION_FAILED, "Signature verification failed for sku " + sku);
+        }
+        logDebug("Purchase signature successfully verified.");
+        return new IabResult(BILLING_RESPONSE_RESULT_OK, "Success");
+    }
+
     public Inventory queryInventory(boolean querySkuDetails, List<String> moreSkus) throws IabException {
         return queryInventory(querySkuDetails, moreSkus, null);
     }
@@ -568,45 +705,127 @@ public class IabHelper {
      *                        Ignored if null or if querySkuDetails is false.
      * @throws IabException if a problem occurs while refreshing the inventory.
      */
-    public Inventory queryInventory(boolean querySkuDetails, List<String> moreItemSkus,
+    public Inventory queryInventory(final boolean querySkuDetails, final List<String> moreItemSkus,
                                     List<String> moreSubsSkus) throws IabException {
+        return queryInventory(true, querySkuDetails, moreItemSkus);
+    }
+
+    /**
+     * Queries the listing details of the given products, of both item types, without
+     * querying owned items. This method may block or take long to execute.
+     * Do not call from a UI thread. For that, use {@link #querySkuDetailsAsync}.
+     *
+     * @throws IabException if a problem occurs while querying the details.
+     */
+    public Inventory querySkuDetails(List<String> skus) throws IabException {
+        return queryInventory(false, true, skus);
+    }
+
+    /**
+     * Queries the owned items, without their listing details. This method may block or
+     * take long to execute. Do not call from a UI thread. For that, use {@link #queryPurchasesAsync}.
+     *
+     * @throws IabException if a problem occurs while querying the owned items.
+     */
+    public Inventory queryPurchases() throws IabException {
+        return queryInventory(true, false, null);
+    }
+
+    Inventory queryInventory(final boolean queryOwned, final boolean querySkuDetails,
+                             final List<String> moreSkus) throws IabException {
         checkNotDisposed();
         checkSetupDone("queryInventory");
-        try {
-            Inventory inv = new Inventory();
-            int r = queryPurchases(inv, ITEM_TYPE_INAPP);
-            if (r != BILLING_RESPONSE_RESULT_OK) {
-                throw new IabException(r, "Error refreshing inventory (querying owned items).");
-            }
 
-            if (querySkuDetails) {
-                r = querySkuDetails(ITEM_TYPE_INAPP, inv, moreItemSkus);
-                if (r != BILLING_RESPONSE_RESULT_OK) {
-                    throw new IabException(r, "Error refreshing inventory (querying prices of items).");
-                }
+        // Owned items and details of each item type are independent requests, so all of them
+        // run at once. If several fail, the first failure in this order is reported.
+        List<Callable<Inventory>> requests = new ArrayList<>();
+        if (queryOwned) {
+            requests.add(() -> queryOwnedItems(ITEM_TYPE_INAPP, querySkuDetails, moreSkus,
+                    "Error refreshing inventory (querying owned items).",
+                    "Error refreshing inventory (querying prices of items)."));
+        }
+        if (querySkuDetails && moreSkus != null) {
+            requests.add(() -> queryItemDetails(ITEM_TYPE_INAPP, moreSkus,
+                    "Error refreshing inventory (querying prices of items)."));
+        }
+
+        // if subscriptions are supported, then also query for subscriptions
+        if (mSubscriptionsSupported) {
+            if (queryOwned) {
+                requests.add(() -> queryOwnedItems(ITEM_TYPE_SUBS, querySkuDetails, moreSkus,
+                        "Error refreshing inventory (querying owned subscriptions).",
+                        "Error refreshing inventory (querying prices of subscriptions)."));
+            }
+            if (querySkuDetails && moreSkus != null) {
+                requests.add(() -> queryItemDetails(ITEM_TYPE_SUBS, moreSkus,
+                        "Error refreshing inventory (querying prices of subscriptions)."));
             }
+        }
+        if (requests.isEmpty()) {
+            return new Inventory();
+        }
 
-            // if subscriptions are supported, then also query for subscriptions
-            if (mSubscriptionsSupported) {
-                r = queryPurchases(inv, ITEM_TYPE_SUBS);
-                if (r != BILLING_RESPONSE_RESULT_OK) {
-                    throw new IabException(r, "Error refreshing inventory (querying owned subscriptions).");
-                }
+        List<Future<Inventory>> results;
+        try {
+            results = mExecutor.invokeAll(requests);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IabException(IABHELPER_UNKNOWN_ERROR, "Interrupted while refreshing inventory.", e);
+        }
 
-                if (querySkuDetails) {
-                    r = querySkuDetails(ITEM_TYPE_SUBS, inv, moreItemSkus);
-                    if (r != BILLING_RESPONSE_RESULT_OK) {
-                        throw new IabException(r, "Error refreshing inventory (querying prices of subscriptions).");
-                    }
+        Inventory inv = new Inventory();
+        for (Future<Inventory> result : results) {
+            try {
+                inv.addAll(result.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IabException) {
+                    throw (IabException) cause;
+                } else if (cause instanceof RemoteException) {
+                    throw new IabException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while refreshing inventory.", (Exception) cause);
+                } else if (cause instanceof JSONException) {
+                    throw new IabException(IABHELPER_BAD_RESPONSE, "Error parsing JSON response while refreshing inventory.", (Exception) cause);
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
                 }
+                throw new IabException(IABHELPER_UNKNOWN_ERROR, "Error refreshing inventory.", (Exception) cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IabException(IABHELPER_UNKNOWN_ERROR, "Interrupted while refreshing inventory.", e);
             }
+        }
+        return inv;
+    }
 
-            return inv;
-        } catch (RemoteException e) {
-            throw new IabException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while refreshing inventory.", e);
-        } catch (JSONException e) {
-            throw new IabException(IABHELPER_BAD_RESPONSE, "Error parsing JSON response while refreshing inventory.", e);
+    // Queries owned items of the given type. With querySkuDetails, also queries details of the
+    // owned items which are not among moreSkus (those are queried by queryItemDetails).
+    Inventory queryOwnedItems(String itemType, boolean querySkuDetails, List<String> moreSkus,
+                              String purchasesError, String detailsError)
+            throws IabException, RemoteException, JSONException {
+        Inventory inv = new Inventory();
+        int r = queryPurchases(inv, itemType);
+        if (r != BILLING_RESPONSE_RESULT_OK) {
+            throw new IabException(r, purchasesError);
+        }
+        if (querySkuDetails) {
+            List<String> ownedSkus = new ArrayList<String>(inv.getAllOwnedSkus(itemType));
+            if (moreSkus != null) {
+                ownedSkus.removeAll(new HashSet<String>(moreSkus));
+            }
+            Inventory details = queryItemDetails(itemType, ownedSkus, detailsError);
+            inv.addAll(details);
+        }
+        return inv;
+    }
+
+    Inventory queryItemDetails(String itemType, List<String> skus, String detailsError)
+            throws IabException, RemoteException, JSONException {
+        Inventory inv = new Inventory();
+        int r = querySkuDetails(itemType, inv, skus);
+        if (r != BILLING_RESPONSE_RESULT_OK) {
+            throw new IabException(r, detailsError);
         }
+        return inv;
     }
 
     /**
@@ -636,35 +855,241 @@ public class IabHelper {
     public void queryInventoryAsync(final boolean querySkuDetails,
                                     final List<String> moreSkus,
                                     final QueryInventoryFinishedListener listener) {
-        final Handler handler = new Handler();
+        listen(queryAsync("refresh inventory", () -> queryInventory(true, querySkuDetails, moreSkus), IabDeadline.NONE), listener);
+    }
+
+    public void queryInventoryAsync(QueryInventoryFinishedListener listener) {
+        queryInventoryAsync(true, null, listener);
+    }
+
+    public void queryInventoryAsync(boolean querySkuDetails, QueryInventoryFinishedListener listener) {
+        queryInventoryAsync(querySkuDetails, null, listener);
+    }
+
+    /**
+     * Asynchronous wrapper for {@link #querySkuDetails(List)}: only the listing details of
+     * the products are queried, not the owned items. This method is safe to call from a UI thread.
+     */
+    public void querySkuDetailsAsync(final List<String> skus, final QueryInventoryFinishedListener listener) {
+        querySkuDetailsAsync(skus, IabDeadline.NONE, listener);
+    }
+
+    /**
+     * Same as {@link #querySkuDetailsAsync(List, QueryInventoryFinishedListener)}, failing with
+     * {@link #IABHELPER_TIMEOUT} if the details are not there within the timeout.
+     *
+     * @param timeoutMillis time allowed from this call on, waiting for other queries included;
+     *                      0 to wait as long as it takes
+     */
+    public void querySkuDetailsAsync(final List<String> skus, long timeoutMillis, final QueryInventoryFinishedListener listener) {
+        listen(querySkuDetailsAsync(skus, timeoutMillis), listener);
+    }
+
+    /**
+     * Future variant of {@link #querySkuDetailsAsync(List, long, QueryInventoryFinishedListener)},
+     * completed on the worker thread. This method is safe to call from any thread.
+     */
+    public IabFuture<Inventory> querySkuDetailsAsync(final List<String> skus, long timeoutMillis) {
+        return queryAsync("query SKU details", () -> queryInventory(false, true, skus), timeoutMillis);
+    }
+
+    /**
+     * Asynchronous wrapper for {@link #queryPurchases()}: only the owned items are queried,
+     * not their listing details. This method is safe to call from a UI thread.
+     */
+    public void queryPurchasesAsync(final QueryInventoryFinishedListener listener) {
+        queryPurchasesAsync(IabDeadline.NONE, listener);
+    }
+
+    /**
+     * Same as {@link #queryPurchasesAsync(QueryInventoryFinishedListener)}, failing with
+     * {@link #IABHELPER_TIMEOUT} if the owned items are not there within the timeout.
+     */
+    public void queryPurchasesAsync(long timeoutMillis, final QueryInventoryFinishedListener listener) {
+        listen(queryPurchasesAsync(timeoutMillis), listener);
+    }
+
+    /**
+     * Future variant of {@link #queryPurchasesAsync(long, QueryInventoryFinishedListener)},
+     * completed on the worker thread. This method is safe to call from any thread.
+     */
+    public IabFuture<Inventory> queryPurchasesAsync(long timeoutMillis) {
+        return queryAsync("query purchases", () -> queryInventory(true, false, null), timeoutMillis);
+    }
+
+    /**
+     * Listener receiving owned items page by page, see {@link #queryPurchasesAsync(OnPurchasesPageListener, QueryInventoryFinishedListener)}.
+     */
+    public interface OnPurchasesPageListener {
+        /**
+         * Called with the verified purchases of a page of owned items.
+         *
+         * @param itemType  item type of the purchases
+         * @param purchases purchases of the page, never empty
+         */
+        void onPurchasesPage(String itemType, List<Purchase> purchases);
+    }
+
+    /**
+     * Streaming variant of {@link #queryPurchasesAsync(QueryInventoryFinishedListener)}: the verified
+     * purchases of each page of owned items are passed to the page listener as soon as the page is
+     * ready, instead of being collected into an inventory. Memory use is bounded by the page size.
+     * Pages are delivered in order on the calling thread, followed by the call to the finished
+     * listener, whose inventory is empty. If the connection is lost during the query, it is run
+     * again once reconnected, so the pages may be delivered again from the start.
+     * This method is safe to call from a UI thread.
+     */
+    public void queryPurchasesAsync(final OnPurchasesPageListener pageListener,
+                                    final QueryInventoryFinishedListener listener) {
+        queryPurchasesAsync(pageListener, IabDeadline.NONE, listener);
+    }
+
+    /**
+     * Same as {@link #queryPurchasesAsync(OnPurchasesPageListener, QueryInventoryFinishedListener)},
+     * failing with {@link #IABHELPER_TIMEOUT} if the last page is not there within the timeout.
+     * No pages are delivered after that.
+     */
+    public void queryPurchasesAsync(final OnPurchasesPageListener pageListener, long timeoutMillis,
+                                    final QueryInventoryFinishedListener listener) {
+        // the finished listener is posted through a handler of the same thread, after the pages
+        final Executor handler = IabFuture.callingThread();
+        queryPurchasesAsync(pageListener, handler, timeoutMillis).whenComplete(handler, (none, error) -> {
+            if (!mDisposed && listener != null) {
+                listener.onQueryInventoryFinished(resultOf(error, "Inventory refresh successful."), error == null ? new Inventory() : null);
+            }
+        });
+    }
+
+    /**
+     * Future variant of {@link #queryPurchasesAsync(OnPurchasesPageListener, long, QueryInventoryFinishedListener)}.
+     * Pages are delivered through the executor, which must run tasks in order, and the future is
+     * completed through it after the last page. With {@link IabFuture#DIRECT}, pages are delivered
+     * on the worker thread as soon as they are verified. This method is safe to call from any thread.
+     */
+    public IabFuture<Void> queryPurchasesAsync(final OnPurchasesPageListener pageListener, final Executor pageExecutor,
+                                               long timeoutMillis) {
+        final IabFuture<Void> streamed = new IabFuture<>();
+        final AtomicBoolean finished = new AtomicBoolean();
+        final OnPurchasesPageListener deliverPage = (itemType, page) -> {
+            if (!mDisposed) pageExecutor.execute(() -> {
+                if (!finished.get()) pageListener.onPurchasesPage(itemType, page);
+            });
+        };
+        queryAsync("stream purchases", () -> {
+            streamPurchases(ITEM_TYPE_INAPP, deliverPage);
+            if (mSubscriptionsSupported) {
+                streamPurchases(ITEM_TYPE_SUBS, deliverPage);
+            }
+            return new Inventory();
+        }, timeoutMillis).whenComplete(pageExecutor, (inv, error) -> {
+            finished.set(true);
+            if (error != null) {
+                streamed.fail(error);
+            } else {
+                streamed.complete(null);
+            }
+        });
+        return streamed;
+    }
+
+    private void streamPurchases(String itemType, OnPurchasesPageListener pageListener) throws IabException {
+        int r;
+        try {
+            r = queryPurchases(itemType, pageListener);
+        } catch (RemoteException e) {
+            throw new IabException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while refreshing inventory.", e);
+        } catch (JSONException e) {
+            throw new IabException(IABHELPER_BAD_RESPONSE, "Error parsing JSON response while refreshing inventory.", e);
+        }
+        if (r != BILLING_RESPONSE_RESULT_OK) {
+            throw new IabException(r, ITEM_TYPE_SUBS.equals(itemType)
+                    ? "Error refreshing inventory (querying owned subscriptions)."
+                    : "Error refreshing inventory (querying owned items).");
+        }
+    }
+
+    // Runs the query on a worker thread, in the inventory queue. If the timeout passes first,
+    // the query is dropped from the queue or cancelled, and the next one is started.
+    // The future is completed on the worker thread, or by the deadline.
+    IabFuture<Inventory> queryAsync(final String operation, final ServiceOperation<Inventory> query, long timeoutMillis) {
         checkNotDisposed();
         checkSetupDone("queryInventory");
-        flagStartAsync("refresh inventory");
-        (new Thread(() -> {
-            IabResult result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
-            Inventory inv = null;
+        final IabFuture<Inventory> future = new IabFuture<>();
+        final long deadline = SystemClock.elapsedRealtime() + mReconnectTimeoutMillis;
+        final IabDeadline timeout = new IabDeadline(timeoutMillis);
+        final Runnable start = () -> {
+            if (timeout.isExpired()) return;
+            runAsync(ASYNC_INVENTORY, operation, timeout, () -> callConnected(deadline, query), (inv, error) -> {
+                if (error != null) {
+                    future.fail(error);
+                } else {
+                    future.complete(inv);
+                }
+            });
+        };
+        timeout.start(() -> {
+            logDebug("Async operation timed out: " + operation);
+            if (!mAsyncQueue.remove(ASYNC_INVENTORY, start)) {
+                flagEndAsync(ASYNC_INVENTORY);
+            }
+            future.fail(new IabException(IABHELPER_TIMEOUT, "Timed out: " + operation));
+        });
+        mAsyncQueue.enqueue(ASYNC_INVENTORY, operation, start, () -> {
+            if (timeout.finish()) future.fail(new IabException(disposedResult(operation)));
+        });
+        return future;
+    }
+
+    // Runs the work of an operation of the lane on a worker thread, then frees the lane and
+    // passes the outcome to the callback, unless the deadline passed first. Unexpected exceptions
+    // of the work fail the operation with IABHELPER_UNKNOWN_ERROR; if the executor was shut down,
+    // the operation fails right away as the work will never run.
+    private <T> void runAsync(final String lane, final String operation, final IabDeadline timeout,
+                              final ServiceOperation<T> work, final IabFuture.Callback<T> callback) {
+        final Future<?> task = mExecutor.execute(() -> {
+            T value = null;
+            IabException error = new IabException(IABHELPER_UNKNOWN_ERROR, "Unexpected error in " + operation + ".");
             try {
-                inv = queryInventory(querySkuDetails, moreSkus);
+                value = work.call();
+                error = null;
             } catch (IabException ex) {
-                result = ex.getResult();
+                error = ex;
+            } catch (RuntimeException ex) {
+                logError("Unexpected exception in " + operation + ": " + ex);
+                error = new IabException(IABHELPER_UNKNOWN_ERROR, String.valueOf(ex.getMessage()), ex);
+            } finally {
+                if (timeout.finish()) {
+                    flagEndAsync(lane);
+                    callback.onComplete(value, error);
+                }
             }
+        });
+        if (task.isCancelled() && timeout.finish()) {
+            flagEndAsync(lane);
+            callback.onComplete(null, new IabException(disposedResult(operation)));
+            return;
+        }
+        timeout.setWork(task);
+    }
 
-            flagEndAsync();
+    // Result of operations cut short because the helper was disposed of
+    private static IabResult disposedResult(String operation) {
+        return new IabResult(BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, "IabHelper was disposed of during " + operation + ".");
+    }
 
-            final IabResult result_f = result;
-            final Inventory inv_f = inv;
+    // Notifies the listener about the query through a handler of the calling thread,
+    // unless disposed of meanwhile
+    private void listen(IabFuture<Inventory> future, final QueryInventoryFinishedListener listener) {
+        future.whenComplete(IabFuture.callingThread(), (inv, error) -> {
             if (!mDisposed && listener != null) {
-                handler.post(() -> listener.onQueryInventoryFinished(result_f, inv_f));
+                listener.onQueryInventoryFinished(resultOf(error, "Inventory refresh successful."), inv);
             }
-        })).start();
+        });
     }
 
-    public void queryInventoryAsync(QueryInventoryFinishedListener listener) {
-        queryInventoryAsync(true, null, listener);
-    }
-
-    public void queryInventoryAsync(boolean querySkuDetails, QueryInventoryFinishedListener listener) {
-        queryInventoryAsync(querySkuDetails, null, listener);
+    // Result of an operation, from the future's error if it failed
+    static IabResult resultOf(@Nullable IabException error, String successMessage) {
+        return error != null ? error.getResult() : new IabResult(BILLING_RESPONSE_RESULT_OK, successMessage);
     }
 
 
@@ -696,7 +1121,7 @@ public class IabHelper {
             }
 
             logDebug("Consuming sku: " + sku + ", token: " + token);
-            int response = mService.consumePurchase(3, mContext.getPackageName(), token);
+            int response = mBackend.consumePurchase(token);
             if (response == BILLING_RESPONSE_RESULT_OK) {
                 logDebug("Successfully consumed sku: " + sku);
             } else {
@@ -744,11 +1169,35 @@ public class IabHelper {
      * @param listener The listener to notify when the consumption operation finishes.
      */
     public void consumeAsync(Purchase purchase, OnConsumeFinishedListener listener) {
-        checkNotDisposed();
-        checkSetupDone("consume");
+        consumeAsync(purchase, IabDeadline.NONE, listener);
+    }
+
+    /**
+     * Same as {@link #consumeAsync(Purchase, OnConsumeFinishedListener)}, failing with
+     * {@link #IABHELPER_TIMEOUT} if the consumption is not done within the timeout.
+     * The item may still be consumed then, the next inventory query tells.
+     */
+    public void consumeAsync(final Purchase purchase, long timeoutMillis, final OnConsumeFinishedListener listener) {
+        consumeAsync(purchase, timeoutMillis).whenComplete(IabFuture.callingThread(), (consumed, error) -> {
+            if (!mDisposed && listener != null) {
+                listener.onConsumeFinished(purchase, resultOf(error, "Successful consume of sku " + purchase.getSku()));
+            }
+        });
+    }
+
+    /**
+     * Future variant of {@link #consumeAsync(Purchase, long, OnConsumeFinishedListener)}, completed
+     * with the purchase on the worker thread once it is consumed. This method is safe to call
+     * from any thread.
+     */
+    public IabFuture<Purchase> consumeAsync(final Purchase purchase, long timeoutMillis) {
         List<Purchase> purchases = new ArrayList<Purchase>();
         purchases.add(purchase);
-        consumeAsyncInternal(purchases, listener, null);
+        return consumeAsync(purchases, timeoutMillis).thenApply(IabFuture.DIRECT, results -> {
+            IabResult result = results.get(0);
+            if (result.isFailure()) throw new IabException(result);
+            return purchase;
+        });
     }
 
     /**
@@ -758,9 +1207,42 @@ public class IabHelper {
      * @param listener  The listener to notify when the consumption operation finishes.
      */
     public void consumeAsync(List<Purchase> purchases, OnConsumeMultiFinishedListener listener) {
+        consumeAsync(purchases, IabDeadline.NONE, listener);
+    }
+
+    /**
+     * Same as {@link #consumeAsync(List, OnConsumeMultiFinishedListener)}, every item fails with
+     * {@link #IABHELPER_TIMEOUT} if the consumptions are not all done within the timeout.
+     */
+    public void consumeAsync(final List<Purchase> purchases, long timeoutMillis, final OnConsumeMultiFinishedListener listener) {
+        consumeAsync(purchases, timeoutMillis).whenComplete(IabFuture.callingThread(), (results, error) -> {
+            if (!mDisposed && listener != null) {
+                listener.onConsumeMultiFinished(purchases, results);
+            }
+        });
+    }
+
+    /**
+     * Future variant of {@link #consumeAsync(List, long, OnConsumeMultiFinishedListener)}, completed
+     * on the worker thread with the result of each consumption, in the order of the purchases.
+     * It never fails, the results tell which items were consumed. This method is safe to call
+     * from any thread.
+     */
+    public IabFuture<List<IabResult>> consumeAsync(final List<Purchase> purchases, long timeoutMillis) {
         checkNotDisposed();
         checkSetupDone("consume");
-        consumeAsyncInternal(purchases, null, listener);
+        final IabFuture<List<IabResult>> future = new IabFuture<>();
+        consumeAsyncInternal(purchases, timeoutMillis, future);
+        return future;
+    }
+
+    /**
+     * Purchases of the v3 service don't need to be acknowledged, the future is already completed.
+     */
+    public IabFuture<Purchase> acknowledgeAsync(Purchase purchase, long timeoutMillis) {
+        checkNotDisposed();
+        checkSetupDone("acknowledge");
+        return IabFuture.completed(purchase);
     }
 
     /**
@@ -784,7 +1266,8 @@ public class IabHelper {
                 "-1007:Missing token/" +
                 "-1008:Unknown error/" +
                 "-1009:Subscriptions not available/" +
-                "-1010:Invalid consumption attempt").split("/");
+                "-1010:Invalid consumption attempt/" +
+                "-1011:Operation timed out").split("/");
 
         if (code <= IABHELPER_ERROR_BASE) {
             int index = IABHELPER_ERROR_BASE - code;
@@ -805,21 +1288,6 @@ public class IabHelper {
         }
     }
 
-    // Workaround to bug where sometimes response codes come as Long instead of Integer
-    int getResponseCodeFromBundle(Bundle b) {
-        Object o = b.get(RESPONSE_CODE);
-        if (o == null) {
-            logDebug("Bundle with null response code, assuming OK (known issue)");
-            return BILLING_RESPONSE_RESULT_OK;
-        } else if (o instanceof Integer) return ((Integer) o).intValue();
-        else if (o instanceof Long) return (int) ((Long) o).longValue();
-        else {
-            logError("Unexpected type for bundle response code.");
-            logError(o.getClass().getName());
-            throw new RuntimeException("Unexpected type for bundle response code: " + o.getClass().getName());
-        }
-    }
-
     // Workaround to bug where sometimes response codes come as Long instead of Integer
     int getResponseCodeFromIntent(Intent i) {
         Object o = i.getExtras().get(RESPONSE_CODE);
@@ -835,167 +1303,349 @@ public class IabHelper {
         }
     }
 
-    void flagStartAsync(String operation) {
-        if (mAsyncInProgress) throw new IllegalStateException("Can't start async operation (" +
-                operation + ") because another async operation(" + mAsyncOperation + ") is in progress.");
-        mAsyncOperation = operation;
-        mAsyncInProgress = true;
-        logDebug("Starting async operation: " + operation);
+    // Verifies the purchase signature with the public key, which is parsed only once.
+    // Outcomes are looked up in the verification cache first, if there is one.
+    boolean verifyPurchaseSignature(String purchaseData, String signature) {
+        PublicKey key;
+        synchronized (this) {
+            if (mPublicKey == null && !TextUtils.isEmpty(mSignatureBase64)) {
+                try {
+                    mPublicKey = Security.generatePublicKey(mSignatureBase64);
+                } catch (IOException e) {
+                    logError("Invalid public key: " + e.getMessage());
+                }
+            }
+            key = mPublicKey;
+        }
+        final VerificationCache cache = mVerificationCache;
+        if (cache == null) {
+            return Security.verifyPurchaseSignature(key, purchaseData, signature);
+        }
+        return cache.verify(key, purchaseData, signature);
+    }
+
+    // Blocking operation of the service, see callConnected
+    interface ServiceOperation<T> {
+        T call() throws IabException;
     }
 
-    void flagEndAsync() {
-        logDebug("Ending async operation: " + mAsyncOperation);
-        mAsyncOperation = "";
-        mAsyncInProgress = false;
+    // Runs the operation once the service is connected, waiting for it until the deadline.
+    // If the operation fails because the connection was lost meanwhile, it is run again
+    // after reconnection.
+    <T> T callConnected(long deadline, ServiceOperation<T> operation) throws IabException {
+        while (true) {
+            try {
+                if (!mReconnector.awaitConnected(deadline)) {
+                    throw new IabException(IABHELPER_REMOTE_EXCEPTION, "Billing service disconnected.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IabException(IABHELPER_UNKNOWN_ERROR, "Interrupted while waiting for billing service.", e);
+            }
+            try {
+                return operation.call();
+            } catch (IabException e) {
+                if (e.getResult().getResponse() != IABHELPER_REMOTE_EXCEPTION
+                        || mReconnector.isConnected()
+                        || SystemClock.elapsedRealtime() >= deadline) {
+                    throw e;
+                }
+                logDebug("Billing service disconnected during operation, running it again after reconnection.");
+            }
+        }
+    }
+
+    void flagEndAsync(String kind) {
+        mAsyncQueue.finish(kind);
+    }
+
+    /**
+     * Returns whether an asynchronous operation is in progress or waiting, such as a purchase
+     * flow waiting for its activity result.
+     */
+    public boolean isBusy() {
+        return mPendingPurchaseResults.get() > 0
+                || mAsyncQueue.size(ASYNC_PURCHASE) > 0
+                || mAsyncQueue.size(ASYNC_INVENTORY) > 0
+                || mAsyncQueue.size(ASYNC_CONSUME) > 0;
     }
 
 
-    int queryPurchases(Inventory inv, String itemType) throws JSONException, RemoteException {
+    int queryPurchases(final Inventory inv, final String itemType) throws JSONException, RemoteException {
+        return queryPurchases(itemType, (type, page) -> {
+            for (Purchase purchase : page) {
+                // Record ownership and token
+                inv.addPurchase(purchase);
+            }
+        });
+    }
+
+    // Queries owned items page by page, the verified purchases of each page are passed to the
+    // listener on the calling thread as soon as the page is verified, in the order of the pages
+    int queryPurchases(final String itemType, OnPurchasesPageListener pageListener) throws JSONException, RemoteException {
         // Query purchases
         logDebug("Querying owned items, item type: " + itemType);
-        logDebug("Package name: " + mContext.getPackageName());
         boolean verificationFailed = false;
         // Only allow purchase verification to be skipped if we are debuggable
-        boolean skipPurchaseVerification = (this.mSkipPurchaseVerification &&
-                ((mContext.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0));
-        String continueToken = null;
+        final boolean skipPurchaseVerification = this.mSkipPurchaseVerification && mDebuggable;
 
-        do {
-            logDebug("Calling getPurchases with continuation token: " + continueToken);
-            Bundle ownedItems = mService.getPurchases(3, mContext.getPackageName(),
-                    itemType, continueToken);
+        // the prefetched page, until it is awaited
+        Future<IabBackend.PurchasesPage> nextPage = null;
+        try {
+            IabBackend.PurchasesPage ownedItems = mBackend.getPurchases(itemType, null);
+            while (true) {
+                int response = ownedItems.response;
+                logDebug("Owned items response: " + String.valueOf(response));
+                if (response != BILLING_RESPONSE_RESULT_OK) {
+                    logDebug("getPurchases() failed: " + getResponseDesc(response));
+                    return response;
+                }
+                if (ownedItems.skus == null
+                        || ownedItems.purchaseData == null
+                        || ownedItems.signatures == null) {
+                    logError("Bundle returned from getPurchases() doesn't contain required fields.");
+                    return IABHELPER_BAD_RESPONSE;
+                }
 
-            int response = getResponseCodeFromBundle(ownedItems);
-            logDebug("Owned items response: " + String.valueOf(response));
-            if (response != BILLING_RESPONSE_RESULT_OK) {
-                logDebug("getPurchases() failed: " + getResponseDesc(response));
-                return response;
-            }
-            if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST)
-                    || !ownedItems.containsKey(RESPONSE_INAPP_PURCHASE_DATA_LIST)
-                    || !ownedItems.containsKey(RESPONSE_INAPP_SIGNATURE_LIST)) {
-                logError("Bundle returned from getPurchases() doesn't contain required fields.");
-                return IABHELPER_BAD_RESPONSE;
-            }
+                // fetch the next page while this one is being verified
+                final String continueToken = ownedItems.continuationToken;
+                logDebug("Continuation token: " + continueToken);
+                if (!TextUtils.isEmpty(continueToken)) {
+                    nextPage = mExecutor.submit(() -> mBackend.getPurchases(itemType, continueToken));
+                }
 
-            ArrayList<String> ownedSkus = ownedItems.getStringArrayList(
-                    RESPONSE_INAPP_ITEM_LIST);
-            ArrayList<String> purchaseDataList = ownedItems.getStringArrayList(
-                    RESPONSE_INAPP_PURCHASE_DATA_LIST);
-            ArrayList<String> signatureList = ownedItems.getStringArrayList(
-                    RESPONSE_INAPP_SIGNATURE_LIST);
+                final List<String> purchaseDataList = ownedItems.purchaseData;
+                final List<String> signatureList = ownedItems.signatures;
 
-            if (purchaseDataList != null) {
+                // verify and parse the items of the page in parallel
+                List<Callable<Purchase>> tasks = new ArrayList<>(purchaseDataList.size());
                 for (int i = 0; i < purchaseDataList.size(); ++i) {
-                    String purchaseData = purchaseDataList.get(i);
-                    String signature = signatureList.get(i);
-                    String sku = ownedSkus.get(i);
-                    boolean verified = false;
-                    if (skipPurchaseVerification) {
-                        verified = true;
-                    } else {
-                        try {
-                            verified = Security.verifyPurchaseSignature(mSignatureBase64, purchaseData, signature);
-                        } catch (IOException ignored) {
-
-                        }
-                    }
-                    if (verified) {
-                        logDebug("Sku is owned: " + sku);
-                        Purchase purchase = new Purchase(itemType, purchaseData, signature);
-
-                        if (TextUtils.isEmpty(purchase.getToken())) {
-                            logWarn("BUG: empty/null token!");
-                            logDebug("Purchase data: " + purchaseData);
-                        }
-
-                        // Record ownership and token
-                        inv.addPurchase(purchase);
+                    final String purchaseData = purchaseDataList.get(i);
+                    final String signature = signatureList.get(i);
+                    tasks.add(() -> verifyPurchase(itemType, purchaseData, signature, skipPurchaseVerification));
+                }
+                // and pass them on in the order of the page
+                List<Purchase> page = new ArrayList<>(tasks.size());
+                for (Future<Purchase> result : mExecutor.invokeAll(tasks)) {
+                    Purchase purchase = result.get();
+                    if (purchase != null) {
+                        page.add(purchase);
                     } else {
-                        logWarn("Purchase signature verification **FAILED**. Not adding item.");
-                        logDebug("   Purchase data: " + purchaseData);
-                        logDebug("   Signature: " + signature);
                         verificationFailed = true;
                     }
                 }
-            }
+                if (!page.isEmpty()) {
+                    pageListener.onPurchasesPage(itemType, page);
+                }
 
-            continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
-            logDebug("Continuation token: " + continueToken);
-        } while (!TextUtils.isEmpty(continueToken));
+                if (nextPage == null) {
+                    break;
+                }
+                logDebug("Calling getPurchases with continuation token: " + continueToken);
+                ownedItems = mExecutor.await(nextPage);
+                nextPage = null;
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof JSONException) throw (JSONException) cause;
+            if (cause instanceof RemoteException) throw (RemoteException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logError("Interrupted while querying owned items.");
+            return IABHELPER_UNKNOWN_ERROR;
+        } finally {
+            // verifying this page failed or the worker was interrupted, nobody waits for the next one
+            if (nextPage != null) nextPage.cancel(true);
+        }
 
         return verificationFailed ? IABHELPER_VERIFICATION_FAILED : BILLING_RESPONSE_RESULT_OK;
     }
 
-    int querySkuDetails(String itemType, Inventory inv, List<String> moreSkus)
+    // Verifies the signature and parses the purchase, returns null if verification failed
+    Purchase verifyPurchase(String itemType, String purchaseData, String signature,
+                            boolean skipPurchaseVerification) throws JSONException {
+        boolean verified = skipPurchaseVerification || verifyPurchaseSignature(purchaseData, signature);
+        if (!verified) {
+            logWarn("Purchase signature verification **FAILED**. Not adding item.");
+            logDebug("   Purchase data: " + purchaseData);
+            logDebug("   Signature: " + signature);
+            return null;
+        }
+        Purchase purchase = new Purchase(itemType, purchaseData, signature);
+        logDebug("Sku is owned: " + purchase.getSku());
+
+        if (TextUtils.isEmpty(purchase.getToken())) {
+            logWarn("BUG: empty/null token!");
+            logDebug("Purchase data: " + purchaseData);
+        }
+        return purchase;
+    }
+
+    int querySkuDetails(final String itemType, Inventory inv, List<String> moreSkus)
             throws RemoteException, JSONException {
         logDebug("Querying SKU details.");
-        ArrayList<String> skuList = new ArrayList<String>();
-        skuList.addAll(inv.getAllOwnedSkus(itemType));
+        // owned products first, then the requested ones, each of them once
+        Set<String> skuSet = new LinkedHashSet<String>(inv.getAllOwnedSkus(itemType));
         if (moreSkus != null) {
-            for (String sku : moreSkus) {
-                if (!skuList.contains(sku)) {
-                    skuList.add(sku);
-                }
-            }
+            skuSet.addAll(moreSkus);
         }
+        List<String> skuList = new ArrayList<String>(skuSet);
 
         if (skuList.size() == 0) {
             logDebug("queryPrices: nothing to do because there are no SKUs.");
             return BILLING_RESPONSE_RESULT_OK;
         }
 
-        Bundle querySkus = new Bundle();
-        querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, skuList);
-        Bundle skuDetails = mService.getSkuDetails(3, mContext.getPackageName(),
-                itemType, querySkus);
+        // split the list into requests the service accepts and run them concurrently
+        final List<List<String>> chunks = new ArrayList<>();
+        final List<Callable<List<SkuDetails>>> requests = new ArrayList<>();
+        for (int i = 0; i < skuList.size(); i += SKU_DETAILS_CHUNK_SIZE) {
+            final ArrayList<String> chunk = new ArrayList<String>(
+                    skuList.subList(i, Math.min(i + SKU_DETAILS_CHUNK_SIZE, skuList.size())));
+            chunks.add(chunk);
+            requests.add(() -> querySkuDetailsChunk(itemType, chunk));
+        }
+
+        List<Future<List<SkuDetails>>> results;
+        try {
+            results = mExecutor.invokeAll(requests);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logError("Interrupted while querying SKU details.");
+            return IABHELPER_UNKNOWN_ERROR;
+        }
+
+        // keep the details of succeeded requests, record the SKUs of failed ones
+        int failure = BILLING_RESPONSE_RESULT_OK;
+        int succeeded = 0;
+        for (int i = 0; i < results.size(); ++i) {
+            int response;
+            try {
+                for (SkuDetails d : results.get(i).get()) {
+                    logDebug("Got sku details: " + d);
+                    inv.addSkuDetails(d);
+                }
+                ++succeeded;
+                continue;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IabException) {
+                    response = ((IabException) cause).getResult().getResponse();
+                } else if (cause instanceof RemoteException) {
+                    response = IABHELPER_REMOTE_EXCEPTION;
+                } else if (cause instanceof JSONException) {
+                    response = IABHELPER_BAD_RESPONSE;
+                } else {
+                    response = IABHELPER_UNKNOWN_ERROR;
+                }
+                logError("getSkuDetails() failed for " + chunks.get(i) + ": " + cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                response = IABHELPER_UNKNOWN_ERROR;
+            }
+            for (String sku : chunks.get(i)) {
+                inv.addSkuDetailsError(sku, response);
+            }
+            if (failure == BILLING_RESPONSE_RESULT_OK) {
+                failure = response;
+            }
+        }
+        // partial results are still a success, failed SKUs are reported by the inventory
+        return succeeded > 0 ? BILLING_RESPONSE_RESULT_OK : failure;
+    }
+
+    List<SkuDetails> querySkuDetailsChunk(String itemType, ArrayList<String> skuList)
+            throws IabException, RemoteException, JSONException {
+        IabBackend.SkuDetailsList skuDetails = mBackend.getSkuDetails(itemType, skuList);
 
-        if (!skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
-            int response = getResponseCodeFromBundle(skuDetails);
+        if (skuDetails.details == null) {
+            int response = skuDetails.response;
             if (response != BILLING_RESPONSE_RESULT_OK) {
                 logDebug("getSkuDetails() failed: " + getResponseDesc(response));
-                return response;
+                throw new IabException(response, "Error querying SKU details.");
             } else {
                 logError("getSkuDetails() returned a bundle with neither an error nor a detail list.");
-                return IABHELPER_BAD_RESPONSE;
+                throw new IabException(IABHELPER_BAD_RESPONSE, "Error querying SKU details.");
             }
         }
 
-        ArrayList<String> responseList = skuDetails.getStringArrayList(
-                RESPONSE_GET_SKU_DETAILS_LIST);
+        List<String> responseList = skuDetails.details;
 
+        List<SkuDetails> result = new ArrayList<SkuDetails>(responseList.size());
         for (String thisResponse : responseList) {
-            SkuDetails d = new SkuDetails(itemType, thisResponse);
-            logDebug("Got sku details: " + d);
-            inv.addSkuDetails(d);
+            result.add(new SkuDetails(itemType, thisResponse));
         }
-        return BILLING_RESPONSE_RESULT_OK;
+        return result;
     }
 
-    void consumeAsyncInternal(final List<Purchase> purchases,
-                              final OnConsumeFinishedListener singleListener,
-                              final OnConsumeMultiFinishedListener multiListener) {
-        final Handler handler = new Handler();
-        flagStartAsync("consume");
-        (new Thread(() -> {
-            final List<IabResult> results = new ArrayList<IabResult>();
-            for (Purchase purchase : purchases) {
+    void consumeAsyncInternal(final List<Purchase> purchases, long timeoutMillis, final IabFuture<List<IabResult>> future) {
+        final long deadline = SystemClock.elapsedRealtime() + mReconnectTimeoutMillis;
+        final IabDeadline timeout = new IabDeadline(timeoutMillis);
+        final Runnable start = () -> {
+            if (timeout.isExpired()) return;
+            runAsync(ASYNC_CONSUME, "consume", timeout, () -> {
+                // consume all items concurrently, at most as many at once as the executor has threads
+                final List<Callable<IabResult>> tasks = new ArrayList<>(purchases.size());
+                for (final Purchase purchase : purchases) {
+                    tasks.add(() -> {
+                        try {
+                            callConnected(deadline, () -> {
+                                consume(purchase);
+                                return null;
+                            });
+                            return new IabResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku());
+                        } catch (IabException ex) {
+                            return ex.getResult();
+                        }
+                    });
+                }
+                final List<IabResult> results = new ArrayList<IabResult>(purchases.size());
                 try {
-                    consume(purchase);
-                    results.add(new IabResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku()));
-                } catch (IabException ex) {
-                    results.add(ex.getResult());
+                    for (Future<IabResult> result : mExecutor.invokeAll(tasks)) {
+                        try {
+                            results.add(result.get());
+                        } catch (ExecutionException ex) {
+                            logError("Unexpected exception while consuming: " + ex.getCause());
+                            results.add(new IabResult(IABHELPER_UNKNOWN_ERROR, "Unexpected exception while consuming."));
+                        } catch (CancellationException ex) {
+                            // dropped by the executor, which was shut down
+                            results.add(disposedResult("consume"));
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    while (results.size() < purchases.size()) {
+                        results.add(new IabResult(IABHELPER_UNKNOWN_ERROR, "Interrupted while consuming."));
+                    }
                 }
+                return results;
+            }, (results, error) -> future.complete(results != null ? results : failedConsumes(purchases, error.getResult())));
+        };
+        timeout.start(() -> {
+            logDebug("Async operation timed out: consume");
+            if (!mAsyncQueue.remove(ASYNC_CONSUME, start)) {
+                flagEndAsync(ASYNC_CONSUME);
             }
-
-            flagEndAsync();
-            if (!mDisposed && singleListener != null) {
-                handler.post(() -> singleListener.onConsumeFinished(purchases.get(0), results.get(0)));
-            }
-            if (!mDisposed && multiListener != null) {
-                handler.post(() -> multiListener.onConsumeMultiFinished(purchases, results));
+            final List<IabResult> results = new ArrayList<IabResult>(purchases.size());
+            for (Purchase purchase : purchases) {
+                results.add(new IabResult(IABHELPER_TIMEOUT, "Timed out consuming sku " + purchase.getSku()));
             }
-        })).start();
+            future.complete(results);
+        });
+        mAsyncQueue.enqueue(ASYNC_CONSUME, "consume", start, () -> {
+            if (timeout.finish()) future.complete(failedConsumes(purchases, disposedResult("consume")));
+        });
+    }
+
+    // Results of consumptions which all failed the same way
+    private static List<IabResult> failedConsumes(List<Purchase> purchases, IabResult result) {
+        final List<IabResult> results = new ArrayList<IabResult>(purchases.size());
+        for (int i = 0; i < purchases.size(); ++i) {
+            results.add(result);
+        }
+        return results;
     }
 
     static void logDebug(String msg) {
@@ -0,0 +1,170 @@
+package highduck.capacitor.billing;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queue of asynchronous in-app billing operations.
+ * Operations are grouped by kind: operations of the same kind run one at a time,
+ * in the order they were requested, while operations of different kinds may run
+ * concurrently. An operation stays in progress until {@link #finish} is called
+ * for its kind, after which the next pending operation of that kind is started
+ * on the thread that requested it, or on the thread finishing the previous one
+ * if the requesting thread has no Looper. Operations still waiting or in progress
+ * when the queue is closed are failed through the callback they were enqueued with.
+ */
+class IabOperationQueue {
+
+    private static class Pending {
+        final String operation;
+        // null if the operation is started by the thread finishing the previous one
+        final Handler handler;
+        final Runnable start;
+        final Runnable onClosed;
+
+        Pending(String operation, Handler handler, Runnable start, Runnable onClosed) {
+            this.operation = operation;
+            this.handler = handler;
+            this.start = start;
+            this.onClosed = onClosed;
+        }
+    }
+
+    private static class Lane {
+        // operation in progress, or null if the lane is idle
+        Pending running;
+        final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    }
+
+    private final Map<String, Lane> mLanes = new HashMap<>();
+
+    // Set once the owner is disposed of, pending operations are never started after that
+    private boolean mClosed = false;
+
+    /**
+     * Starts the operation right away if no other operation of the same kind is in progress,
+     * otherwise queues it. Queued operations are started through a {@link Handler} bound
+     * to the calling thread if it has a Looper, by the thread calling {@link #finish} otherwise.
+     *
+     * @param onClosed fails the operation if the queue is closed before it is finished,
+     *                 run right away if the queue is closed already
+     */
+    void enqueue(String kind, String operation, Runnable start, Runnable onClosed) {
+        final Pending op = new Pending(operation, Looper.myLooper() != null ? new Handler() : null, start, onClosed);
+        final boolean closed;
+        synchronized (this) {
+            closed = mClosed;
+            if (!closed) {
+                Lane lane = mLanes.get(kind);
+                if (lane == null) {
+                    lane = new Lane();
+                    mLanes.put(kind, lane);
+                }
+                if (lane.running != null) {
+                    IabHelper.logDebug("Queue async operation: " + operation + " (waiting for " + lane.running.operation + ")");
+                    lane.pending.add(op);
+                    return;
+                }
+                lane.running = op;
+            }
+        }
+        if (closed) {
+            IabHelper.logDebug("Rejecting async operation: " + operation);
+            onClosed.run();
+            return;
+        }
+        IabHelper.logDebug("Starting async operation: " + operation);
+        start.run();
+    }
+
+    /**
+     * Marks the operation of the given kind as finished and starts the next pending one.
+     */
+    void finish(String kind) {
+        final Pending next;
+        synchronized (this) {
+            Lane lane = mLanes.get(kind);
+            if (lane == null || lane.running == null) {
+                return;
+            }
+            IabHelper.logDebug("Ending async operation: " + lane.running.operation);
+            next = lane.pending.poll();
+            lane.running = next;
+        }
+        if (next != null) {
+            IabHelper.logDebug("Starting async operation: " + next.operation);
+            final Runnable start = () -> {
+                if (!isClosed()) next.start.run();
+            };
+            if (next.handler != null) {
+                next.handler.post(start);
+            } else {
+                start.run();
+            }
+        }
+    }
+
+    /**
+     * Removes an operation which has not been started yet, such as one whose deadline passed
+     * while it was waiting.
+     *
+     * @param start the runnable the operation was enqueued with
+     * @return false if the operation was started already, it is to be finished then
+     */
+    synchronized boolean remove(String kind, Runnable start) {
+        Lane lane = mLanes.get(kind);
+        if (lane == null) {
+            return false;
+        }
+        for (Pending pending : lane.pending) {
+            if (pending.start == start) {
+                IabHelper.logDebug("Removing queued async operation: " + pending.operation);
+                lane.pending.remove(pending);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of operations of the given kind in progress or waiting.
+     */
+    synchronized int size(String kind) {
+        Lane lane = mLanes.get(kind);
+        if (lane == null) {
+            return 0;
+        }
+        return lane.pending.size() + (lane.running != null ? 1 : 0);
+    }
+
+    synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Rejects new operations and fails the ones waiting or in progress, on the calling thread.
+     */
+    void close() {
+        final List<Pending> dropped = new ArrayList<>();
+        synchronized (this) {
+            mClosed = true;
+            for (Lane lane : mLanes.values()) {
+                if (lane.running != null) {
+                    dropped.add(lane.running);
+                }
+                dropped.addAll(lane.pending);
+            }
+            mLanes.clear();
+        }
+        for (Pending op : dropped) {
+            IabHelper.logDebug("Cancelling async operation: " + op.operation);
+            op.onClosed.run();
+        }
+    }
+}
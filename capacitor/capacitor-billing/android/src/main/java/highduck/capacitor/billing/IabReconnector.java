@@ -0,0 +1,166 @@
+package highduck.capacitor.billing;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+
+/**
+ * Restores the connection to the billing service when it is lost after setup, for example
+ * when the Play Store app is updated. Reconnection attempts are made with exponential backoff
+ * until one succeeds.
+ * <p>
+ * Operations started while the service is disconnected wait for it, each one until its own
+ * deadline: worker threads block in {@link #awaitConnected}, operations started from a Looper
+ * thread are queued by {@link #whenConnected} and resumed in order once the service is back.
+ */
+class IabReconnector {
+    // Delay before the first reconnection attempt, doubled after each failed attempt
+    static final long INITIAL_DELAY_MILLIS = 1000;
+    static final long MAX_DELAY_MILLIS = 60000;
+
+    interface Connector {
+        /**
+         * Starts connecting to the service, {@link #onConnected} is to be called once connected.
+         *
+         * @return false if the service is not available
+         */
+        boolean connect();
+    }
+
+    // Operation waiting for the connection, runs onTimeout when posted at its deadline
+    private class Waiter implements Runnable {
+        // bound to the thread which started the operation
+        final Handler handler = new Handler();
+        final Runnable operation;
+        final Runnable onTimeout;
+
+        Waiter(Runnable operation, Runnable onTimeout) {
+            this.operation = operation;
+            this.onTimeout = onTimeout;
+        }
+
+        @Override
+        public void run() {
+            synchronized (IabReconnector.this) {
+                if (!mWaiters.remove(this)) return;
+            }
+            onTimeout.run();
+        }
+    }
+
+    private final Connector mConnector;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mReconnect = this::reconnect;
+
+    private boolean mConnected = true;
+    private boolean mClosed = false;
+    private int mAttempts = 0;
+    // operations queued by whenConnected, in the order they were started
+    private final ArrayDeque<Waiter> mWaiters = new ArrayDeque<>();
+
+    IabReconnector(Connector connector) {
+        mConnector = connector;
+    }
+
+    synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * Blocks until the service is connected or the deadline passes.
+     *
+     * @param deadline time in {@link SystemClock#elapsedRealtime()} base
+     * @return true if the service is connected
+     */
+    synchronized boolean awaitConnected(long deadline) throws InterruptedException {
+        while (!mConnected && !mClosed) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return mConnected;
+    }
+
+    /**
+     * Runs the operation right away if the service is connected. Otherwise queues it, to be
+     * posted to the calling thread once the service is back, or runs onTimeout on that thread
+     * if the deadline passes first. This must be called from a thread with a Looper.
+     *
+     * @param deadline time in {@link SystemClock#elapsedRealtime()} base
+     */
+    void whenConnected(Runnable operation, Runnable onTimeout, long deadline) {
+        synchronized (this) {
+            if (mClosed) return;
+            if (!mConnected) {
+                Waiter waiter = new Waiter(operation, onTimeout);
+                mWaiters.add(waiter);
+                waiter.handler.postDelayed(waiter, Math.max(0, deadline - SystemClock.elapsedRealtime()));
+                IabHelper.logDebug("Billing service disconnected, operation waits for reconnection.");
+                return;
+            }
+        }
+        operation.run();
+    }
+
+    /**
+     * Called when the connection is lost, starts reconnecting.
+     */
+    synchronized void onDisconnected() {
+        if (mClosed || !mConnected) return;
+        mConnected = false;
+        mAttempts = 0;
+        mHandler.removeCallbacks(mReconnect);
+        mHandler.postDelayed(mReconnect, INITIAL_DELAY_MILLIS);
+    }
+
+    /**
+     * Called when the connection is back, resumes the waiting operations.
+     */
+    synchronized void onConnected() {
+        if (mClosed) return;
+        if (!mConnected) {
+            IabHelper.logDebug("Billing service reconnected after " + mAttempts + " attempt(s).");
+        }
+        mConnected = true;
+        mAttempts = 0;
+        mHandler.removeCallbacks(mReconnect);
+        notifyAll();
+        Waiter waiter;
+        while ((waiter = mWaiters.poll()) != null) {
+            waiter.handler.removeCallbacks(waiter);
+            waiter.handler.post(waiter.operation);
+        }
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            if (mClosed || mConnected) return;
+            ++mAttempts;
+            // the next attempt is made unless this one succeeds in the meantime
+            long delay = Math.min(INITIAL_DELAY_MILLIS << Math.min(mAttempts, 16), MAX_DELAY_MILLIS);
+            mHandler.postDelayed(mReconnect, delay);
+            IabHelper.logDebug("Reconnecting to billing service, attempt " + mAttempts);
+        }
+        if (!mConnector.connect()) {
+            IabHelper.logDebug("Billing service unavailable.");
+        }
+    }
+
+    /**
+     * Stops reconnecting and drops the waiting operations, blocked threads return false.
+     */
+    synchronized void close() {
+        mClosed = true;
+        mConnected = false;
+        mHandler.removeCallbacks(mReconnect);
+        notifyAll();
+        Waiter waiter;
+        while ((waiter = mWaiters.poll()) != null) {
+            waiter.handler.removeCallbacks(waiter);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package highduck.capacitor.billing;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+/**
+ * Client of the Google Play in-app billing service (version 3), the calls {@link ServiceBackend}
+ * makes. It is the proxy the AIDL compiler generates for {@code IInAppBillingService}, written
+ * out so the plugin does not depend on a copy of the interface: the Play Billing Library bundles
+ * one in some versions only. The service checks the interface descriptor, so it keeps the name
+ * of the original interface; the transaction codes follow the order of its first five methods,
+ * which never changed.
+ */
+class InAppBillingService {
+    static final String DESCRIPTOR = "com.android.vending.billing.IInAppBillingService";
+
+    static final int TRANSACTION_IS_BILLING_SUPPORTED = IBinder.FIRST_CALL_TRANSACTION;
+    static final int TRANSACTION_GET_SKU_DETAILS = IBinder.FIRST_CALL_TRANSACTION + 1;
+    static final int TRANSACTION_GET_BUY_INTENT = IBinder.FIRST_CALL_TRANSACTION + 2;
+    static final int TRANSACTION_GET_PURCHASES = IBinder.FIRST_CALL_TRANSACTION + 3;
+    static final int TRANSACTION_CONSUME_PURCHASE = IBinder.FIRST_CALL_TRANSACTION + 4;
+
+    private final IBinder mRemote;
+
+    InAppBillingService(IBinder remote) {
+        mRemote = remote;
+    }
+
+    int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeInt(apiVersion);
+            data.writeString(packageName);
+            data.writeString(type);
+            mRemote.transact(TRANSACTION_IS_BILLING_SUPPORTED, data, reply, 0);
+            reply.readException();
+            return reply.readInt();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeInt(apiVersion);
+            data.writeString(packageName);
+            data.writeString(type);
+            writeBundle(data, skusBundle);
+            mRemote.transact(TRANSACTION_GET_SKU_DETAILS, data, reply, 0);
+            reply.readException();
+            return readBundle(reply);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type,
+                        String developerPayload) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeInt(apiVersion);
+            data.writeString(packageName);
+            data.writeString(sku);
+            data.writeString(type);
+            data.writeString(developerPayload);
+            mRemote.transact(TRANSACTION_GET_BUY_INTENT, data, reply, 0);
+            reply.readException();
+            return readBundle(reply);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeInt(apiVersion);
+            data.writeString(packageName);
+            data.writeString(type);
+            data.writeString(continuationToken);
+            mRemote.transact(TRANSACTION_GET_PURCHASES, data, reply, 0);
+            reply.readException();
+            return readBundle(reply);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    int consumePurchase(int apiVersion, String packageName, String purchaseToken) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeInt(apiVersion);
+            data.writeString(packageName);
+            data.writeString(purchaseToken);
+            mRemote.transact(TRANSACTION_CONSUME_PURCHASE, data, reply, 0);
+            reply.readException();
+            return reply.readInt();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    // `in Bundle` arguments and Bundle results are written with a null flag first
+    private static void writeBundle(Parcel parcel, Bundle bundle) {
+        if (bundle != null) {
+            parcel.writeInt(1);
+            bundle.writeToParcel(parcel, 0);
+        } else {
+            parcel.writeInt(0);
+        }
+    }
+
+    private static Bundle readBundle(Parcel parcel) {
+        return parcel.readInt() != 0 ? Bundle.CREATOR.createFromParcel(parcel) : null;
+    }
+}
@@ -15,18 +15,27 @@
 
 package highduck.capacitor.billing;
 
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents a block of information about in-app items.
  * An Inventory is returned by such methods as {@link IabHelper#queryInventory}.
+ * <p>
+ * Purchases are also indexed by item type, so per-type lookups do not scan the whole inventory.
+ * Collections returned by the package-private getters are read-only views, not copies:
+ * they reflect later changes of the inventory.
  */
 public class Inventory {
     Map<String,SkuDetails> mSkuMap = new HashMap<String,SkuDetails>();
-    Map<String,Purchase> mPurchaseMap = new HashMap<String,Purchase>();
+    Map<String,Purchase> mPurchaseMap = new LinkedHashMap<String,Purchase>();
+    // purchases of mPurchaseMap by item type, then by product ID
+    Map<String,Map<String,Purchase>> mPurchasesByType = new HashMap<String,Map<String,Purchase>>();
+    Map<String,Integer> mSkuErrorMap = new HashMap<String,Integer>();
 
     Inventory() { }
 
@@ -50,6 +59,14 @@ public class Inventory {
         return mSkuMap.containsKey(sku);
     }
 
+    /**
+     * Returns the response code of the failed request for the product's details,
+     * or null if its details were not requested or the request succeeded.
+     */
+    public Integer getSkuDetailsError(String sku) {
+        return mSkuErrorMap.get(sku);
+    }
+
     /**
      * Erase a purchase (locally) from the inventory, given its product ID. This just
      * modifies the Inventory object locally and has no effect on the server! This is
@@ -59,33 +76,57 @@ public class Inventory {
      * a new Inventory.
      */
     public void erasePurchase(String sku) {
-        if (mPurchaseMap.containsKey(sku)) mPurchaseMap.remove(sku);
+        Purchase p = mPurchaseMap.remove(sku);
+        if (p != null) purchasesOfType(p.getItemType()).remove(sku);
     }
 
-    /** Returns a list of all owned product IDs. */
-    List<String> getAllOwnedSkus() {
-        return new ArrayList<String>(mPurchaseMap.keySet());
+    /** Returns all owned product IDs. */
+    Set<String> getAllOwnedSkus() {
+        return Collections.unmodifiableSet(mPurchaseMap.keySet());
     }
 
-    /** Returns a list of all owned product IDs of a given type */
-    List<String> getAllOwnedSkus(String itemType) {
-        List<String> result = new ArrayList<String>();
-        for (Purchase p : mPurchaseMap.values()) {
-            if (p.getItemType().equals(itemType)) result.add(p.getSku());
-        }
-        return result;
+    /** Returns the owned product IDs of a given type */
+    Set<String> getAllOwnedSkus(String itemType) {
+        Map<String,Purchase> purchases = mPurchasesByType.get(itemType);
+        if (purchases == null) return Collections.emptySet();
+        return Collections.unmodifiableSet(purchases.keySet());
     }
 
-    /** Returns a list of all purchases. */
-    List<Purchase> getAllPurchases() {
-        return new ArrayList<Purchase>(mPurchaseMap.values());
+    /** Returns all purchases, in the order they were added. */
+    Collection<Purchase> getAllPurchases() {
+        return Collections.unmodifiableCollection(mPurchaseMap.values());
     }
 
     void addSkuDetails(SkuDetails d) {
         mSkuMap.put(d.getSku(), d);
     }
 
+    void addSkuDetailsError(String sku, int response) {
+        mSkuErrorMap.put(sku, response);
+    }
+
     void addPurchase(Purchase p) {
-        mPurchaseMap.put(p.getSku(), p);
+        Purchase previous = mPurchaseMap.put(p.getSku(), p);
+        if (previous != null && !previous.getItemType().equals(p.getItemType())) {
+            purchasesOfType(previous.getItemType()).remove(p.getSku());
+        }
+        purchasesOfType(p.getItemType()).put(p.getSku(), p);
+    }
+
+    void addAll(Inventory other) {
+        mSkuMap.putAll(other.mSkuMap);
+        for (Purchase p : other.mPurchaseMap.values()) {
+            addPurchase(p);
+        }
+        mSkuErrorMap.putAll(other.mSkuErrorMap);
+    }
+
+    private Map<String,Purchase> purchasesOfType(String itemType) {
+        Map<String,Purchase> purchases = mPurchasesByType.get(itemType);
+        if (purchases == null) {
+            purchases = new LinkedHashMap<String,Purchase>();
+            mPurchasesByType.put(itemType, purchases);
+        }
+        return purchases;
     }
 }
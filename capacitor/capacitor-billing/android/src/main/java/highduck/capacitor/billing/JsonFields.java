@@ -0,0 +1,148 @@
+package highduck.capacitor.billing;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Reads the fields of a JSON object one by one, without building a JSONObject tree.
+ * Values are coerced like the {@code opt*} methods of JSONObject: missing or mistyped
+ * values fall back to empty strings and zeros, null reads as {@code "null"} and numbers
+ * are normalized the way JSONTokener parses them. The reader is lenient like JSONTokener,
+ * with one difference: unquoted literals such as {@code 0x1F} are read as strings, not
+ * as hexadecimal or octal numbers.
+ */
+final class JsonFields {
+
+    interface Visitor {
+        /**
+         * Called for each top-level field. Must consume the value, or call
+         * {@link JsonReader#skipValue()} for fields it does not need.
+         */
+        void field(String name, JsonReader reader) throws IOException;
+    }
+
+    private JsonFields() {
+    }
+
+    static void read(String json, Visitor visitor) throws JSONException {
+        if (json == null) {
+            throw new JSONException("Null JSON string");
+        }
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                visitor.field(reader.nextName(), reader);
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException("Invalid JSON object: " + e.getMessage());
+        }
+    }
+
+    static String nextString(JsonReader reader) throws IOException {
+        Object value = nextValue(reader);
+        return value instanceof String ? (String) value : String.valueOf(value);
+    }
+
+    static long nextLong(JsonReader reader) throws IOException {
+        Object value = nextValue(reader);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            try {
+                return (long) Double.parseDouble((String) value);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return 0;
+    }
+
+    static int nextInt(JsonReader reader) throws IOException {
+        Object value = nextValue(reader);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value instanceof String) {
+            try {
+                return (int) Double.parseDouble((String) value);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return 0;
+    }
+
+    static boolean nextBoolean(JsonReader reader) throws IOException {
+        Object value = nextValue(reader);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return value instanceof String && "true".equalsIgnoreCase((String) value);
+    }
+
+    // Reads a value into the same objects JSONTokener would produce
+    private static Object nextValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case NUMBER:
+                return number(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case BEGIN_OBJECT:
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    put(object, reader.nextName(), nextValue(reader));
+                }
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(nextValue(reader));
+                }
+                reader.endArray();
+                return array;
+            default:
+                return reader.nextString();
+        }
+    }
+
+    private static void put(JSONObject object, String name, Object value) throws IOException {
+        try {
+            object.put(name, value);
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    // Same rules as JSONTokener: integers become Integer or Long, anything else a Double
+    private static Object number(String literal) {
+        if (literal.indexOf('.') == -1) {
+            try {
+                long value = Long.parseLong(literal);
+                if (value <= Integer.MAX_VALUE && value >= Integer.MIN_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        try {
+            return Double.valueOf(literal);
+        } catch (NumberFormatException ignored) {
+            return literal;
+        }
+    }
+}
@@ -0,0 +1,749 @@
+package highduck.capacitor.billing;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClient.BillingResponseCode;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetailsParams;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Billing engine on the Play Billing Library. A single connection to the billing service is
+ * kept and restored with backoff when it is lost. Listings and consumptions are asynchronous
+ * calls of the library, so no worker thread is blocked on them, and purchases made outside
+ * of a purchase flow are pushed by the library to the {@link OnPurchasesUpdatedListener}.
+ * <p>
+ * The library calls back on the main thread, the state of connections and purchase flows
+ * is only used there. Owned items are read from the library's purchase cache and verified
+ * on a single worker thread, which keeps results in order. Queries of owned items complete
+ * on that worker, other operations on the main thread. Purchases are acknowledged by
+ * {@link #acknowledgeAsync} only, once the app granted them: the library refunds purchases
+ * which are neither acknowledged nor consumed within a few days.
+ */
+class PlayBillingEngine implements BillingEngine, BillingClientStateListener, PurchasesUpdatedListener {
+
+    /**
+     * Creates the client of the library, tests replace it with a fake.
+     */
+    interface ClientFactory {
+        BillingClient create(Context context, PurchasesUpdatedListener listener);
+    }
+
+    private final BillingClient mClient;
+    private final boolean mDebuggable;
+    private final String mSignatureBase64;
+    // parsed on first use, on the worker thread
+    private PublicKey mPublicKey = null;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // reads owned items and verifies purchases, a single thread keeps them in order
+    private final IabExecutor mWorker = new IabExecutor("PlayBilling", 1);
+    // purchase flows run one at a time
+    private final IabOperationQueue mPurchaseQueue = new IabOperationQueue();
+    private final IabReconnector mReconnector;
+    // operations started but not finished yet, purchase flows excepted
+    private final AtomicInteger mPendingOperations = new AtomicInteger();
+
+    private volatile boolean mSkipPurchaseVerification = false;
+    private volatile long mReconnectTimeoutMillis = IabHelper.RECONNECT_TIMEOUT_MILLIS;
+    private volatile VerificationCache mVerificationCache = null;
+    private volatile OnPurchasesUpdatedListener mPurchasesUpdatedListener = null;
+
+    private volatile boolean mSetupDone = false;
+    private volatile boolean mDisposed = false;
+    private volatile boolean mSubscriptionsSupported = false;
+    private IabFuture<Void> mSetupFuture = null;
+
+    // purchase flow waiting for its result in onPurchasesUpdated
+    private IabFuture<Purchase> mPurchaseFuture = null;
+    private String mPurchasingSku = null;
+    private String mPurchasingItemType = null;
+
+    PlayBillingEngine(Context ctx, String base64PublicKey) {
+        this(ctx, base64PublicKey, (context, listener) -> BillingClient.newBuilder(context)
+                .setListener(listener)
+                .enablePendingPurchases()
+                .build());
+    }
+
+    PlayBillingEngine(Context ctx, String base64PublicKey, ClientFactory clientFactory) {
+        ApplicationInfo info = ctx.getApplicationContext().getApplicationInfo();
+        mDebuggable = info != null && (info.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        mSignatureBase64 = base64PublicKey;
+        mClient = clientFactory.create(ctx.getApplicationContext(), this);
+        mReconnector = new IabReconnector(() -> {
+            if (mDisposed) return false;
+            mClient.startConnection(this);
+            return true;
+        });
+    }
+
+    @Override
+    public void setSkipPurchaseVerification(boolean shouldSkipPurchaseVerification) {
+        mSkipPurchaseVerification = shouldSkipPurchaseVerification;
+    }
+
+    @Override
+    public void setReconnectTimeout(long millis) {
+        mReconnectTimeoutMillis = millis;
+    }
+
+    @Override
+    public void setVerificationCache(@Nullable VerificationCache cache) {
+        mVerificationCache = cache;
+    }
+
+    @Override
+    public void setPurchasesUpdatedListener(@Nullable OnPurchasesUpdatedListener listener) {
+        mPurchasesUpdatedListener = listener;
+    }
+
+    @Override
+    public IabFuture<Void> startSetup() {
+        checkNotDisposed();
+        if (mSetupDone) throw new IllegalStateException("Billing engine is already set up.");
+        IabHelper.logDebug("Starting Play Billing setup.");
+        final IabFuture<Void> future = new IabFuture<>();
+        mHandler.post(() -> {
+            mSetupFuture = future;
+            mClient.startConnection(this);
+        });
+        return future;
+    }
+
+    @Override
+    public void onBillingSetupFinished(BillingResult billingResult) {
+        if (mDisposed) return;
+        final boolean connected = billingResult.getResponseCode() == BillingResponseCode.OK;
+        if (mSetupDone) {
+            // reconnection attempt
+            if (connected) mReconnector.onConnected();
+            return;
+        }
+        final IabFuture<Void> future = mSetupFuture;
+        mSetupFuture = null;
+        final IabResult result;
+        if (connected) {
+            mSubscriptionsSupported = mClient.isFeatureSupported(BillingClient.FeatureType.SUBSCRIPTIONS)
+                    .getResponseCode() == BillingResponseCode.OK;
+            mSetupDone = true;
+            IabHelper.logDebug("Play Billing setup successful. Subscriptions " + (mSubscriptionsSupported ? "" : "NOT ") + "supported.");
+            result = new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Setup successful.");
+        } else {
+            IabHelper.logDebug("Play Billing setup failed: " + billingResult.getDebugMessage());
+            result = toResult(billingResult, "Error setting up Play Billing.");
+        }
+        if (future != null) settle(future, result, null);
+    }
+
+    @Override
+    public void onBillingServiceDisconnected() {
+        if (mDisposed) return;
+        if (mSetupDone) {
+            IabHelper.logDebug("Play Billing service disconnected.");
+            mReconnector.onDisconnected();
+            return;
+        }
+        final IabFuture<Void> future = mSetupFuture;
+        mSetupFuture = null;
+        if (future != null) future.fail(new IabException(IabHelper.IABHELPER_REMOTE_EXCEPTION,
+                "Billing service disconnected during setup."));
+    }
+
+    @Override
+    public void dispose() {
+        IabHelper.logDebug("Disposing Play Billing engine.");
+        mSetupDone = false;
+        mDisposed = true;
+        mReconnector.close();
+        mPurchaseQueue.close();
+        mWorker.shutdown();
+        mClient.endConnection();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return mDisposed;
+    }
+
+    @Override
+    public boolean isBusy() {
+        return mPendingOperations.get() > 0 || mPurchaseQueue.size(IabHelper.ASYNC_PURCHASE) > 0;
+    }
+
+    private void checkNotDisposed() {
+        if (mDisposed)
+            throw new IllegalStateException("Billing engine was disposed of, so it cannot be used.");
+    }
+
+    private void checkSetupDone(String operation) {
+        if (!mSetupDone) {
+            IabHelper.logError("Illegal state for operation (" + operation + "): Play Billing is not set up.");
+            throw new IllegalStateException("Play Billing is not set up. Can't perform operation: " + operation);
+        }
+    }
+
+    // Runs the operation on the main thread once the service is connected, or runs onDisconnected
+    // there if the service is not back within the reconnect timeout. If the operation is not
+    // finished by the deadline, onTimeout is run there instead and its result is dropped.
+    private void startOperation(final String operation, final IabDeadline timeout, final Runnable action,
+                                final Runnable onDisconnected, final Runnable onTimeout) {
+        final long deadline = SystemClock.elapsedRealtime() + mReconnectTimeoutMillis;
+        mPendingOperations.incrementAndGet();
+        timeout.start(() -> {
+            IabHelper.logDebug("Operation timed out: " + operation);
+            mPendingOperations.decrementAndGet();
+            if (!mDisposed) onTimeout.run();
+        });
+        mHandler.post(() -> {
+            if (mDisposed || timeout.isExpired()) return;
+            IabHelper.logDebug("Starting operation: " + operation);
+            mReconnector.whenConnected(() -> {
+                if (!timeout.isExpired()) action.run();
+            }, onDisconnected, deadline);
+        });
+    }
+
+    // Ends an operation started by startOperation, then completes its future unless disposed of.
+    // Nothing is done if the operation timed out already.
+    private void finishOperation(IabDeadline timeout, Runnable notify) {
+        if (!timeout.finish()) return;
+        mPendingOperations.decrementAndGet();
+        if (!mDisposed) notify.run();
+    }
+
+    private List<String> itemTypes() {
+        return mSubscriptionsSupported
+                ? Arrays.asList(IabHelper.ITEM_TYPE_INAPP, IabHelper.ITEM_TYPE_SUBS)
+                : Collections.singletonList(IabHelper.ITEM_TYPE_INAPP);
+    }
+
+    @Override
+    public IabFuture<Purchase> launchPurchaseFlow(final Activity act, final String sku, final String itemType,
+                                                  int requestCode, String extraData) {
+        checkNotDisposed();
+        checkSetupDone("launchPurchaseFlow");
+        final long deadline = SystemClock.elapsedRealtime() + mReconnectTimeoutMillis;
+        final IabFuture<Purchase> future = new IabFuture<>();
+        mHandler.post(() -> mPurchaseQueue.enqueue(IabHelper.ASYNC_PURCHASE, "launchPurchaseFlow", () -> mReconnector.whenConnected(
+                () -> startPurchaseFlow(act, sku, itemType, future),
+                () -> finishPurchaseFlow(future, new IabResult(IabHelper.IABHELPER_REMOTE_EXCEPTION,
+                        "Billing service disconnected while starting purchase flow.")),
+                deadline), () -> future.fail(new IabException(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
+                "Billing engine was disposed of during purchase flow."))));
+        return future;
+    }
+
+    private void startPurchaseFlow(final Activity act, final String sku, final String itemType,
+                                   final IabFuture<Purchase> future) {
+        if (mDisposed) return;
+        if (itemType.equals(IabHelper.ITEM_TYPE_SUBS) && !mSubscriptionsSupported) {
+            finishPurchaseFlow(future, new IabResult(IabHelper.IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE,
+                    "Subscriptions are not available."));
+            return;
+        }
+        // the library launches purchase flows from the listing of the product
+        IabHelper.logDebug("Querying listing of " + sku + " to launch purchase flow, item type: " + itemType);
+        SkuDetailsParams params = SkuDetailsParams.newBuilder()
+                .setSkusList(Collections.singletonList(sku))
+                .setType(itemType)
+                .build();
+        mClient.querySkuDetailsAsync(params, (billingResult, list) -> {
+            if (mDisposed) return;
+            if (billingResult.getResponseCode() != BillingResponseCode.OK) {
+                IabHelper.logError("Unable to buy item, Error response: " + billingResult.getDebugMessage());
+                finishPurchaseFlow(future, toResult(billingResult, "Unable to buy item"));
+                return;
+            }
+            com.android.billingclient.api.SkuDetails details = null;
+            if (list != null) {
+                for (com.android.billingclient.api.SkuDetails d : list) {
+                    if (sku.equals(d.getSku())) details = d;
+                }
+            }
+            if (details == null) {
+                finishPurchaseFlow(future, new IabResult(IabHelper.BILLING_RESPONSE_RESULT_ITEM_UNAVAILABLE,
+                        "Unable to buy item"));
+                return;
+            }
+            IabHelper.logDebug("Launching purchase flow for " + sku);
+            mPurchaseFuture = future;
+            mPurchasingSku = sku;
+            mPurchasingItemType = itemType;
+            BillingResult launched = mClient.launchBillingFlow(act,
+                    BillingFlowParams.newBuilder().setSkuDetails(details).build());
+            if (launched.getResponseCode() != BillingResponseCode.OK) {
+                IabHelper.logError("Unable to launch purchase flow: " + launched.getDebugMessage());
+                mPurchaseFuture = null;
+                mPurchasingSku = null;
+                mPurchasingItemType = null;
+                finishPurchaseFlow(future, toResult(launched, "Unable to buy item"));
+            }
+        });
+    }
+
+    private void finishPurchaseFlow(IabFuture<Purchase> future, IabResult result) {
+        mPurchaseQueue.finish(IabHelper.ASYNC_PURCHASE);
+        future.fail(new IabException(result));
+    }
+
+    /**
+     * Purchases of the purchase flow in progress, or made outside of it, such as pending
+     * purchases which were completed.
+     */
+    @Override
+    public void onPurchasesUpdated(final BillingResult billingResult,
+                                   @Nullable List<com.android.billingclient.api.Purchase> purchases) {
+        if (mDisposed) return;
+        final IabFuture<Purchase> future = mPurchaseFuture;
+        final String purchasingSku = mPurchasingSku;
+        final String purchasingItemType = mPurchasingItemType;
+        final boolean inFlow = purchasingSku != null;
+        mPurchaseFuture = null;
+        mPurchasingSku = null;
+        mPurchasingItemType = null;
+        if (inFlow) {
+            // the next purchase flow may start while this one is verified
+            mPurchaseQueue.finish(IabHelper.ASYNC_PURCHASE);
+        }
+
+        if (billingResult.getResponseCode() != BillingResponseCode.OK) {
+            IabHelper.logDebug("Purchase failed: " + billingResult.getDebugMessage());
+            if (inFlow) {
+                future.fail(new IabException(billingResult.getResponseCode() == BillingResponseCode.USER_CANCELED
+                        ? new IabResult(IabHelper.IABHELPER_USER_CANCELLED, "User canceled.")
+                        : toResult(billingResult, "Problem purchashing item.")));
+            }
+            return;
+        }
+
+        final List<com.android.billingclient.api.Purchase> updated =
+                purchases != null ? new ArrayList<>(purchases) : Collections.emptyList();
+        mPendingOperations.incrementAndGet();
+        mWorker.execute(() -> {
+            IabResult flowResult = new IabResult(IabHelper.IABHELPER_BAD_RESPONSE, "Purchase missing from purchase result.");
+            Purchase flowPurchase = null;
+            final List<Purchase> others = new ArrayList<>();
+            // item types of the purchases made outside of the flow, looked up when there are some
+            Map<String, String> ownedTypes = null;
+            for (com.android.billingclient.api.Purchase p : updated) {
+                final boolean fromFlow = inFlow && purchasingSku.equals(p.getSku());
+                if (p.getPurchaseState() != com.android.billingclient.api.Purchase.PurchaseState.PURCHASED) {
+                    // pending purchases are sent again once they are completed
+                    IabHelper.logDebug("Purchase of " + p.getSku() + " is pending.");
+                    if (fromFlow) flowResult = new IabResult(IabHelper.IABHELPER_UNKNOWN_PURCHASE_RESPONSE, "Purchase is pending.");
+                    continue;
+                }
+                final String itemType;
+                if (fromFlow) {
+                    itemType = purchasingItemType;
+                } else {
+                    if (ownedTypes == null) ownedTypes = queryItemTypes();
+                    itemType = ownedTypes.get(p.getPurchaseToken());
+                    if (itemType == null) {
+                        // the next restore reports it
+                        IabHelper.logWarn("Item type of " + p.getSku() + " is unknown, not reporting purchase.");
+                        continue;
+                    }
+                }
+                Purchase purchase = verifyPurchase(itemType, p);
+                if (fromFlow) {
+                    flowPurchase = purchase;
+                    flowResult = purchase != null
+                            ? new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Success")
+                            : new IabResult(IabHelper.IABHELPER_VERIFICATION_FAILED, "Signature verification failed for sku " + p.getSku());
+                } else if (purchase != null) {
+                    others.add(purchase);
+                }
+            }
+            final IabResult result = flowResult;
+            final Purchase purchase = flowPurchase;
+            mHandler.post(() -> {
+                mPendingOperations.decrementAndGet();
+                if (mDisposed) return;
+                if (inFlow) settle(future, result, purchase);
+                final OnPurchasesUpdatedListener updatedListener = mPurchasesUpdatedListener;
+                if (updatedListener != null && !others.isEmpty()) updatedListener.onPurchasesUpdated(others);
+            });
+        });
+    }
+
+    /**
+     * Purchase flows of the library run in its own activity, their results are delivered
+     * to {@link #onPurchasesUpdated}.
+     */
+    @Override
+    public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
+        return false;
+    }
+
+    @Override
+    public IabFuture<Inventory> querySkuDetailsAsync(final List<String> skus, long timeoutMillis) {
+        checkNotDisposed();
+        checkSetupDone("querySkuDetails");
+        final List<String> itemTypes = itemTypes();
+        final IabDeadline timeout = new IabDeadline(timeoutMillis, mHandler);
+        final IabFuture<Inventory> future = new IabFuture<>();
+        startOperation("query SKU details", timeout, () -> {
+            final Inventory inv = new Inventory();
+            if (skus.isEmpty()) {
+                finishQuery(timeout, future, new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful."), inv);
+                return;
+            }
+            // both item types are queried at once, if both fail the first failure in this order is reported
+            final IabResult[] results = new IabResult[itemTypes.size()];
+            final int[] remaining = {itemTypes.size()};
+            for (int i = 0; i < itemTypes.size(); ++i) {
+                final int index = i;
+                final String itemType = itemTypes.get(i);
+                SkuDetailsParams params = SkuDetailsParams.newBuilder().setSkusList(skus).setType(itemType).build();
+                mClient.querySkuDetailsAsync(params, (billingResult, list) -> {
+                    IabResult result = toResult(billingResult, "Error refreshing inventory (querying prices of items).");
+                    if (result.isSuccess() && list != null) {
+                        try {
+                            for (com.android.billingclient.api.SkuDetails d : list) {
+                                inv.addSkuDetails(new SkuDetails(itemType, d.getOriginalJson()));
+                            }
+                        } catch (JSONException e) {
+                            result = new IabResult(IabHelper.IABHELPER_BAD_RESPONSE, "Error parsing JSON response while refreshing inventory.");
+                        }
+                    }
+                    results[index] = result;
+                    if (--remaining[0] == 0) {
+                        finishQuery(timeout, future, firstFailure(results), inv);
+                    }
+                });
+            }
+        }, () -> finishQuery(timeout, future, disconnected(), null),
+                () -> future.fail(timedOut("query SKU details")));
+        return future;
+    }
+
+    /**
+     * Completes on the worker thread, right after the owned items are verified.
+     */
+    @Override
+    public IabFuture<Inventory> queryPurchasesAsync(long timeoutMillis) {
+        checkNotDisposed();
+        checkSetupDone("queryPurchases");
+        final List<String> itemTypes = itemTypes();
+        final IabDeadline timeout = new IabDeadline(timeoutMillis, mHandler);
+        final IabFuture<Inventory> future = new IabFuture<>();
+        startOperation("query purchases", timeout, () -> timeout.setWork(mWorker.execute(() -> {
+            final Inventory inv = new Inventory();
+            IabResult result = new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
+            for (String itemType : itemTypes) {
+                result = queryPurchases(itemType, (type, page) -> {
+                    for (Purchase purchase : page) {
+                        inv.addPurchase(purchase);
+                    }
+                });
+                if (result.isFailure()) break;
+            }
+            finishQuery(timeout, future, result, inv);
+        })), () -> finishQuery(timeout, future, disconnected(), null),
+                () -> future.fail(timedOut("query purchases")));
+        return future;
+    }
+
+    /**
+     * The library reads owned items from its cache all at once, each item type is delivered as a page.
+     */
+    @Override
+    public IabFuture<Void> queryPurchasesAsync(final IabHelper.OnPurchasesPageListener pageListener,
+                                               final Executor pageExecutor, long timeoutMillis) {
+        checkNotDisposed();
+        checkSetupDone("queryPurchases");
+        final List<String> itemTypes = itemTypes();
+        final IabDeadline timeout = new IabDeadline(timeoutMillis, mHandler);
+        final IabFuture<Void> future = new IabFuture<>();
+        startOperation("stream purchases", timeout, () -> timeout.setWork(mWorker.execute(() -> {
+            IabResult result = new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
+            for (String itemType : itemTypes) {
+                result = queryPurchases(itemType, (type, page) -> pageExecutor.execute(() -> {
+                    if (!mDisposed && !timeout.isExpired()) pageListener.onPurchasesPage(type, page);
+                }));
+                if (result.isFailure()) break;
+            }
+            final IabResult result_f = result;
+            // after the pages, which may still be waiting in the executor
+            pageExecutor.execute(() -> finishQuery(timeout, future, result_f, null));
+        })), () -> finishQuery(timeout, future, disconnected(), null),
+                () -> pageExecutor.execute(() -> future.fail(timedOut("stream purchases"))));
+        return future;
+    }
+
+    // Reads the owned items of the type from the library's cache and verifies them, on the worker thread
+    private IabResult queryPurchases(String itemType, IabHelper.OnPurchasesPageListener pageListener) {
+        IabHelper.logDebug("Querying owned items, item type: " + itemType);
+        com.android.billingclient.api.Purchase.PurchasesResult owned = mClient.queryPurchases(itemType);
+        if (owned.getResponseCode() != BillingResponseCode.OK) {
+            IabHelper.logDebug("queryPurchases() failed: " + owned.getBillingResult().getDebugMessage());
+            return toResult(owned.getBillingResult(), IabHelper.ITEM_TYPE_SUBS.equals(itemType)
+                    ? "Error refreshing inventory (querying owned subscriptions)."
+                    : "Error refreshing inventory (querying owned items).");
+        }
+        boolean verificationFailed = false;
+        final List<Purchase> page = new ArrayList<>();
+        if (owned.getPurchasesList() != null) {
+            for (com.android.billingclient.api.Purchase p : owned.getPurchasesList()) {
+                if (p.getPurchaseState() != com.android.billingclient.api.Purchase.PurchaseState.PURCHASED) {
+                    continue;
+                }
+                Purchase purchase = verifyPurchase(itemType, p);
+                if (purchase != null) {
+                    page.add(purchase);
+                } else {
+                    verificationFailed = true;
+                }
+            }
+        }
+        if (!page.isEmpty()) {
+            pageListener.onPurchasesPage(itemType, page);
+        }
+        return verificationFailed
+                ? new IabResult(IabHelper.IABHELPER_VERIFICATION_FAILED, "Error refreshing inventory (querying owned items).")
+                : new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
+    }
+
+    // Purchases pushed outside of a purchase flow don't tell their item type, the owned items
+    // of each type are read from the library's cache to find it, on the worker thread
+    private Map<String, String> queryItemTypes() {
+        final Map<String, String> types = new HashMap<>();
+        for (String itemType : itemTypes()) {
+            com.android.billingclient.api.Purchase.PurchasesResult owned = mClient.queryPurchases(itemType);
+            if (owned.getResponseCode() != BillingResponseCode.OK || owned.getPurchasesList() == null) {
+                IabHelper.logDebug("queryPurchases() failed: " + owned.getBillingResult().getDebugMessage());
+                continue;
+            }
+            for (com.android.billingclient.api.Purchase p : owned.getPurchasesList()) {
+                types.put(p.getPurchaseToken(), itemType);
+            }
+        }
+        return types;
+    }
+
+    private <T> void finishQuery(IabDeadline timeout, final IabFuture<T> future, final IabResult result, final T value) {
+        finishOperation(timeout, () -> settle(future, result, value));
+    }
+
+    // Completes the future with the value, or fails it if the result is a failure
+    private static <T> void settle(IabFuture<T> future, IabResult result, T value) {
+        if (result.isFailure()) {
+            future.fail(new IabException(result));
+        } else {
+            future.complete(value);
+        }
+    }
+
+    @Override
+    public IabFuture<Purchase> consumeAsync(final Purchase purchase, long timeoutMillis) {
+        return consumeAsync(Collections.singletonList(purchase), timeoutMillis).thenApply(IabFuture.DIRECT, results -> {
+            IabResult result = results.get(0);
+            if (result.isFailure()) throw new IabException(result);
+            return purchase;
+        });
+    }
+
+    /**
+     * The consumptions already sent to the library when the deadline passes are not cancelled.
+     */
+    @Override
+    public IabFuture<List<IabResult>> consumeAsync(List<Purchase> purchases, long timeoutMillis) {
+        checkNotDisposed();
+        checkSetupDone("consume");
+        final List<Purchase> toConsume = new ArrayList<>(purchases);
+        final IabDeadline timeout = new IabDeadline(timeoutMillis, mHandler);
+        final IabFuture<List<IabResult>> future = new IabFuture<>();
+        startOperation("consume", timeout, () -> consumeAll(timeout, toConsume, future), () -> {
+            final List<IabResult> results = new ArrayList<>(toConsume.size());
+            for (Purchase purchase : toConsume) {
+                results.add(new IabResult(IabHelper.IABHELPER_REMOTE_EXCEPTION,
+                        "Billing service disconnected while consuming sku " + purchase.getSku()));
+            }
+            finishConsume(timeout, future, results);
+        }, () -> {
+            final List<IabResult> results = new ArrayList<>(toConsume.size());
+            for (Purchase purchase : toConsume) {
+                results.add(new IabResult(IabHelper.IABHELPER_TIMEOUT, "Timed out consuming sku " + purchase.getSku()));
+            }
+            future.complete(results);
+        });
+        return future;
+    }
+
+    // Consumes all purchases at once, on the main thread
+    private void consumeAll(final IabDeadline timeout, final List<Purchase> purchases,
+                            final IabFuture<List<IabResult>> future) {
+        final IabResult[] results = new IabResult[purchases.size()];
+        final int[] remaining = {purchases.size()};
+        final Runnable done = () -> {
+            if (--remaining[0] == 0) {
+                finishConsume(timeout, future, Arrays.asList(results));
+            }
+        };
+        if (purchases.isEmpty()) {
+            finishConsume(timeout, future, Collections.emptyList());
+            return;
+        }
+        for (int i = 0; i < purchases.size(); ++i) {
+            final int index = i;
+            final Purchase purchase = purchases.get(i);
+            final String sku = purchase.getSku();
+            if (!IabHelper.ITEM_TYPE_INAPP.equals(purchase.getItemType())) {
+                results[index] = new IabResult(IabHelper.IABHELPER_INVALID_CONSUMPTION,
+                        "Items of type '" + purchase.getItemType() + "' can't be consumed.");
+                done.run();
+                continue;
+            }
+            if (TextUtils.isEmpty(purchase.getToken())) {
+                IabHelper.logError("Can't consume " + sku + ". No token.");
+                results[index] = new IabResult(IabHelper.IABHELPER_MISSING_TOKEN,
+                        "PurchaseInfo is missing token for sku: " + sku + " " + purchase);
+                done.run();
+                continue;
+            }
+            IabHelper.logDebug("Consuming sku: " + sku + ", token: " + purchase.getToken());
+            mClient.consumeAsync(ConsumeParams.newBuilder().setPurchaseToken(purchase.getToken()).build(),
+                    (billingResult, token) -> {
+                        results[index] = billingResult.getResponseCode() == BillingResponseCode.OK
+                                ? new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + sku)
+                                : toResult(billingResult, "Error consuming sku " + sku);
+                        done.run();
+                    });
+        }
+    }
+
+    private void finishConsume(IabDeadline timeout, final IabFuture<List<IabResult>> future, final List<IabResult> results) {
+        finishOperation(timeout, () -> future.complete(results));
+    }
+
+    /**
+     * Acknowledgements already sent to the library when the deadline passes are not cancelled.
+     */
+    @Override
+    public IabFuture<Purchase> acknowledgeAsync(final Purchase purchase, long timeoutMillis) {
+        checkNotDisposed();
+        checkSetupDone("acknowledge");
+        final String sku = purchase.getSku();
+        if (purchase.isAcknowledged()) {
+            return IabFuture.completed(purchase);
+        }
+        if (TextUtils.isEmpty(purchase.getToken())) {
+            IabHelper.logError("Can't acknowledge " + sku + ". No token.");
+            return IabFuture.failed(new IabException(IabHelper.IABHELPER_MISSING_TOKEN,
+                    "PurchaseInfo is missing token for sku: " + sku + " " + purchase));
+        }
+        final IabDeadline timeout = new IabDeadline(timeoutMillis, mHandler);
+        final IabFuture<Purchase> future = new IabFuture<>();
+        startOperation("acknowledge", timeout, () -> {
+            IabHelper.logDebug("Acknowledging sku: " + sku + ", token: " + purchase.getToken());
+            mClient.acknowledgePurchase(AcknowledgePurchaseParams.newBuilder().setPurchaseToken(purchase.getToken()).build(),
+                    billingResult -> finishQuery(timeout, future, billingResult.getResponseCode() == BillingResponseCode.OK
+                            ? new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Successful acknowledgement of sku " + sku)
+                            : toResult(billingResult, "Error acknowledging sku " + sku), purchase));
+        }, () -> finishQuery(timeout, future, disconnected(), null),
+                () -> future.fail(timedOut("acknowledge")));
+        return future;
+    }
+
+    // Verifies the signature and parses the purchase, returns null if verification failed.
+    // Called on the worker thread.
+    private Purchase verifyPurchase(String itemType, com.android.billingclient.api.Purchase p) {
+        final String purchaseData = p.getOriginalJson();
+        final String signature = p.getSignature();
+        // Only allow purchase verification to be skipped if we are debuggable
+        final boolean skipPurchaseVerification = mSkipPurchaseVerification && mDebuggable;
+        if (!skipPurchaseVerification && !verifyPurchaseSignature(purchaseData, signature)) {
+            IabHelper.logWarn("Purchase signature verification **FAILED**. Not adding item.");
+            IabHelper.logDebug("   Purchase data: " + purchaseData);
+            IabHelper.logDebug("   Signature: " + signature);
+            return null;
+        }
+        final Purchase purchase;
+        try {
+            purchase = new Purchase(itemType, purchaseData, signature);
+        } catch (JSONException e) {
+            IabHelper.logError("Failed to parse purchase data.");
+            return null;
+        }
+        return purchase;
+    }
+
+    // Verifies the purchase signature with the public key, which is parsed only once
+    private boolean verifyPurchaseSignature(String purchaseData, String signature) {
+        if (mPublicKey == null && !TextUtils.isEmpty(mSignatureBase64)) {
+            try {
+                mPublicKey = Security.generatePublicKey(mSignatureBase64);
+            } catch (IOException e) {
+                IabHelper.logError("Invalid public key: " + e.getMessage());
+            }
+        }
+        final VerificationCache cache = mVerificationCache;
+        if (cache == null) {
+            return Security.verifyPurchaseSignature(mPublicKey, purchaseData, signature);
+        }
+        return cache.verify(mPublicKey, purchaseData, signature);
+    }
+
+    private static IabResult disconnected() {
+        return new IabResult(IabHelper.IABHELPER_REMOTE_EXCEPTION, "Billing service disconnected.");
+    }
+
+    private static IabException timedOut(String operation) {
+        return new IabException(IabHelper.IABHELPER_TIMEOUT, "Timed out: " + operation);
+    }
+
+    private static IabResult firstFailure(IabResult[] results) {
+        for (IabResult result : results) {
+            if (result.isFailure()) return result;
+        }
+        return results[0];
+    }
+
+    private static IabResult toResult(BillingResult billingResult, String message) {
+        return new IabResult(toResponse(billingResult.getResponseCode()), message);
+    }
+
+    // Response codes of the library are the ones of the v3 service, except for its own errors
+    private static int toResponse(int code) {
+        switch (code) {
+            case BillingResponseCode.SERVICE_DISCONNECTED:
+            case BillingResponseCode.SERVICE_TIMEOUT:
+                return IabHelper.IABHELPER_REMOTE_EXCEPTION;
+            case BillingResponseCode.FEATURE_NOT_SUPPORTED:
+                return IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE;
+            case BillingResponseCode.USER_CANCELED:
+                return IabHelper.IABHELPER_USER_CANCELLED;
+            default:
+                return code;
+        }
+    }
+}
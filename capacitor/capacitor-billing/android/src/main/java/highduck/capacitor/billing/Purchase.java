@@ -16,7 +16,6 @@
 package highduck.capacitor.billing;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * Represents an in-app billing purchase.
@@ -32,18 +31,32 @@ public class Purchase {
     String mToken;
     String mOriginalJson;
     String mSignature;
+    boolean mAcknowledged;  // only in receipts of the Play Billing Library
 
     public Purchase(String itemType, String jsonPurchaseInfo, String signature) throws JSONException {
         mItemType = itemType;
         mOriginalJson = jsonPurchaseInfo;
-        JSONObject o = new JSONObject(mOriginalJson);
-        mOrderId = o.optString("orderId");
-        mPackageName = o.optString("packageName");
-        mSku = o.optString("productId");
-        mPurchaseTime = o.optLong("purchaseTime");
-        mPurchaseState = o.optInt("purchaseState");
-        mDeveloperPayload = o.optString("developerPayload");
-        mToken = o.optString("token", o.optString("purchaseToken"));
+        mOrderId = "";
+        mPackageName = "";
+        mSku = "";
+        mDeveloperPayload = "";
+        // pull the needed fields in a single pass, the original JSON is kept as is
+        final String[] tokens = new String[2];
+        JsonFields.read(mOriginalJson, (name, reader) -> {
+            switch (name) {
+                case "orderId": mOrderId = JsonFields.nextString(reader); break;
+                case "packageName": mPackageName = JsonFields.nextString(reader); break;
+                case "productId": mSku = JsonFields.nextString(reader); break;
+                case "purchaseTime": mPurchaseTime = JsonFields.nextLong(reader); break;
+                case "purchaseState": mPurchaseState = JsonFields.nextInt(reader); break;
+                case "developerPayload": mDeveloperPayload = JsonFields.nextString(reader); break;
+                case "token": tokens[0] = JsonFields.nextString(reader); break;
+                case "purchaseToken": tokens[1] = JsonFields.nextString(reader); break;
+                case "acknowledged": mAcknowledged = JsonFields.nextBoolean(reader); break;
+                default: reader.skipValue(); break;
+            }
+        });
+        mToken = tokens[0] != null ? tokens[0] : (tokens[1] != null ? tokens[1] : "");
         mSignature = signature;
     }
 
@@ -57,6 +70,7 @@ public class Purchase {
     public String getToken() { return mToken; }
     public String getOriginalJson() { return mOriginalJson; }
     public String getSignature() { return mSignature; }
+    public boolean isAcknowledged() { return mAcknowledged; }
 
     @Override
     public String toString() { return "PurchaseInfo(type:" + mItemType + "):" + mOriginalJson; }
@@ -0,0 +1,283 @@
+package highduck.capacitor.billing;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Append-only journal of verified purchases which are not consumed yet.
+ * Every record is synced to disk before the method returns, so a purchase is never lost
+ * if the app dies between the purchase flow and the consumption. On the next start,
+ * {@link #getPending()} lists the unfinished purchases without querying the inventory.
+ * <p>
+ * Each line of the file is a JSON record: a purchase ({@code type}, {@code data},
+ * {@code signature}) or the token of a finished one ({@code finished}). A torn last
+ * line left by a crash is ignored.
+ * <p>
+ * Every purchase recorded in this process gets a sequence number. {@link #mark()} taken
+ * before an inventory query lets {@link #retainOwned(Collection, long)} leave alone the
+ * purchases recorded while the query was running, which the inventory may not list yet.
+ * <p>
+ * The {@code *Async} methods run on the single journal thread, in the order they are called,
+ * so callers on the main thread do not wait for the disk. Their futures complete once the
+ * records are synced.
+ */
+class PurchaseJournal {
+    private static final String FILE_NAME = "capacitor.billing.journal";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // the file is rewritten with the pending purchases only, once it holds this many finished records
+    private static final int COMPACT_THRESHOLD = 32;
+
+    private final File mFile;
+    // unfinished purchases by token, in the order they were made
+    private final Map<String, Purchase> mPending = new LinkedHashMap<>();
+    // sequence numbers of the pending purchases recorded by this process, loaded ones have none
+    private final Map<String, Long> mSequences = new HashMap<>();
+    private long mSequence = 0;
+    private int mFinishedRecords = 0;
+    private boolean mLoaded = false;
+    private final IabExecutor mExecutor = new IabExecutor("PurchaseJournal", 1);
+
+    PurchaseJournal(File directory) {
+        mFile = new File(directory, FILE_NAME);
+    }
+
+    IabFuture<List<Purchase>> getPendingAsync() {
+        return submit(this::getPending);
+    }
+
+    IabFuture<Void> addAsync(final Purchase purchase) {
+        return submit(() -> {
+            add(purchase);
+            return null;
+        });
+    }
+
+    IabFuture<Void> finishAsync(final Purchase purchase) {
+        return submit(() -> {
+            finish(purchase);
+            return null;
+        });
+    }
+
+    IabFuture<Void> retainOwnedAsync(final Collection<Purchase> owned, final long mark) {
+        return submit(() -> {
+            retainOwned(owned, mark);
+            return null;
+        });
+    }
+
+    private <T> IabFuture<T> submit(final Callable<T> task) {
+        final IabFuture<T> future = new IabFuture<>();
+        mExecutor.execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Exception e) {
+                IabHelper.logError("Unexpected exception in purchase journal: " + e);
+                future.fail(new IabException(IabHelper.IABHELPER_UNKNOWN_ERROR, "Purchase journal failed.", e));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Returns verified purchases which were recorded but not finished yet.
+     */
+    synchronized List<Purchase> getPending() {
+        load();
+        return new ArrayList<>(mPending.values());
+    }
+
+    /**
+     * Records a verified purchase.
+     */
+    synchronized void add(Purchase purchase) {
+        load();
+        if (mPending.containsKey(purchase.getToken())) {
+            return;
+        }
+        try {
+            append(toRecord(purchase));
+            mPending.put(purchase.getToken(), purchase);
+            mSequences.put(purchase.getToken(), ++mSequence);
+        } catch (JSONException | IOException e) {
+            IabHelper.logError("Unable to record purchase in journal: " + e);
+        }
+    }
+
+    /**
+     * Records that the purchase was consumed.
+     */
+    synchronized void finish(Purchase purchase) {
+        load();
+        if (mPending.remove(purchase.getToken()) == null) {
+            return;
+        }
+        mSequences.remove(purchase.getToken());
+        try {
+            append(new JSONObject().put("finished", purchase.getToken()));
+            ++mFinishedRecords;
+            if (mFinishedRecords >= COMPACT_THRESHOLD) {
+                compact();
+            }
+        } catch (JSONException | IOException e) {
+            IabHelper.logError("Unable to record finished purchase in journal: " + e);
+        }
+    }
+
+    /**
+     * Returns the sequence number of the last recorded purchase, to be taken before
+     * querying the inventory passed to {@link #retainOwned(Collection, long)}.
+     */
+    synchronized long mark() {
+        return mSequence;
+    }
+
+    /**
+     * Finishes the pending purchases which are no longer owned according to a full inventory.
+     * Only purchases recorded up to {@code mark} are considered: the ones recorded later
+     * may be missing from an inventory queried before they were made.
+     */
+    synchronized void retainOwned(Collection<Purchase> owned, long mark) {
+        load();
+        Set<String> ownedTokens = new HashSet<>();
+        for (Purchase purchase : owned) {
+            ownedTokens.add(purchase.getToken());
+        }
+        List<Purchase> finished = new ArrayList<>();
+        for (Purchase purchase : mPending.values()) {
+            Long sequence = mSequences.get(purchase.getToken());
+            if ((sequence == null || sequence <= mark) && !ownedTokens.contains(purchase.getToken())) {
+                finished.add(purchase);
+            }
+        }
+        for (Purchase purchase : finished) {
+            finish(purchase);
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        boolean damaged = false;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    JSONObject record = new JSONObject(line);
+                    String finished = record.optString("finished", null);
+                    if (finished != null) {
+                        mPending.remove(finished);
+                        ++mFinishedRecords;
+                    } else {
+                        Purchase purchase = new Purchase(record.getString("type"),
+                                record.getString("data"), record.getString("signature"));
+                        mPending.put(purchase.getToken(), purchase);
+                    }
+                } catch (JSONException e) {
+                    IabHelper.logWarn("Skipping invalid purchase journal record.");
+                    damaged = true;
+                }
+            }
+        } catch (IOException e) {
+            IabHelper.logError("Unable to read purchase journal: " + e);
+            return;
+        }
+        // rewrite a torn tail, so the next record does not get appended to it
+        try {
+            if (damaged || !endsWithNewLine()) {
+                compact();
+            }
+        } catch (IOException | JSONException e) {
+            IabHelper.logError("Unable to repair purchase journal: " + e);
+        }
+    }
+
+    private boolean endsWithNewLine() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            long length = file.length();
+            if (length == 0) {
+                return true;
+            }
+            file.seek(length - 1);
+            return file.read() == '\n';
+        }
+    }
+
+    private static JSONObject toRecord(Purchase purchase) throws JSONException {
+        JSONObject record = new JSONObject();
+        record.put("type", purchase.getItemType());
+        record.put("data", purchase.getOriginalJson());
+        record.put("signature", purchase.getSignature());
+        return record;
+    }
+
+    private void append(JSONObject record) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.write((record.toString() + "\n").getBytes(UTF_8));
+            out.flush();
+            out.getFD().sync();
+        }
+    }
+
+    // Rewrites the journal with the pending purchases only, replacing the file atomically
+    private void compact() throws IOException, JSONException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp, false)) {
+            StringBuilder sb = new StringBuilder();
+            for (Purchase purchase : mPending.values()) {
+                sb.append(toRecord(purchase).toString()).append('\n');
+            }
+            out.write(sb.toString().getBytes(UTF_8));
+            out.flush();
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Unable to replace " + mFile);
+        }
+        mFinishedRecords = 0;
+        syncDirectory();
+    }
+
+    // Makes the rename durable, the directory entry is not synced with the file
+    private void syncDirectory() {
+        try {
+            FileDescriptor directory = Os.open(mFile.getParent(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(directory);
+            } finally {
+                Os.close(directory);
+            }
+        } catch (ErrnoException e) {
+            // the rename still happened, it is only not guaranteed to survive a power loss
+            IabHelper.logWarn("Unable to sync purchase journal directory: " + e);
+        }
+    }
+}
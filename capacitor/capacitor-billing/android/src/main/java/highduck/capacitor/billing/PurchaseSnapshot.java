@@ -0,0 +1,81 @@
+package highduck.capacitor.billing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Last known set of owned purchases. Each update is compared with the snapshot,
+ * so that only the purchases which were added, removed or changed state are reported.
+ */
+class PurchaseSnapshot {
+
+    static class Diff {
+        final List<Purchase> added = new ArrayList<>();
+        final List<Purchase> removed = new ArrayList<>();
+        final List<Purchase> changed = new ArrayList<>();
+
+        boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+        }
+    }
+
+    // owned purchases by purchase token
+    private final Map<String, Purchase> mPurchases = new HashMap<>();
+
+    /**
+     * Replaces the snapshot with a full inventory of owned purchases.
+     */
+    synchronized Diff update(Collection<Purchase> purchases) {
+        Diff diff = new Diff();
+        Map<String, Purchase> previous = new HashMap<>(mPurchases);
+        mPurchases.clear();
+        for (Purchase purchase : purchases) {
+            String key = key(purchase);
+            mPurchases.put(key, purchase);
+            compare(previous.remove(key), purchase, diff);
+        }
+        diff.removed.addAll(previous.values());
+        return diff;
+    }
+
+    /**
+     * Adds a single purchase, such as the result of a purchase flow.
+     */
+    synchronized Diff put(Purchase purchase) {
+        Diff diff = new Diff();
+        compare(mPurchases.put(key(purchase), purchase), purchase, diff);
+        return diff;
+    }
+
+    /**
+     * Removes a single purchase, such as a consumed one.
+     */
+    synchronized Diff remove(Purchase purchase) {
+        Diff diff = new Diff();
+        Purchase previous = mPurchases.remove(key(purchase));
+        if (previous != null) {
+            diff.removed.add(previous);
+        }
+        return diff;
+    }
+
+    synchronized void clear() {
+        mPurchases.clear();
+    }
+
+    private static void compare(Purchase previous, Purchase purchase, Diff diff) {
+        if (previous == null) {
+            diff.added.add(purchase);
+        } else if (previous.getPurchaseState() != purchase.getPurchaseState()) {
+            diff.changed.add(purchase);
+        }
+    }
+
+    private static String key(Purchase purchase) {
+        String token = purchase.getToken();
+        return token != null && !token.isEmpty() ? token : purchase.getItemType() + "/" + purchase.getSku();
+    }
+}
@@ -24,6 +24,19 @@ public class Security {
     private static final String KEY_FACTORY_ALGORITHM = "RSA";
     private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
 
+    // Signature instances are not thread-safe and costly to look up, keep one per thread
+    private static final ThreadLocal<Signature> SIGNATURE = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance(SIGNATURE_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                // "RSA" is guaranteed to be available.
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
     /**
      * Verifies that the data was signed with the given signature, and returns the verified
      * purchase.
@@ -46,6 +59,25 @@ public class Security {
         return verify(key, signedData, signature);
     }
 
+    /**
+     * Verifies that the data was signed with the given signature, using an already parsed
+     * public key. Prefer this one when verifying many purchases with the same key.
+     *
+     * @param publicKey  public key associated with the developer account
+     * @param signedData the signed JSON string (signed, not encrypted)
+     * @param signature  the signature for the data, signed with the private key
+     */
+    public static boolean verifyPurchaseSignature(PublicKey publicKey, String signedData,
+                                                  String signature) {
+        if (TextUtils.isEmpty(signedData) || publicKey == null
+                || TextUtils.isEmpty(signature)) {
+            Log.w(TAG, "Purchase verification failed: missing data.");
+            return false;
+        }
+
+        return verify(publicKey, signedData, signature);
+    }
+
     /**
      * Generates a PublicKey instance from a string containing the Base64-encoded public key.
      *
@@ -86,7 +118,7 @@ public class Security {
             return false;
         }
         try {
-            Signature signatureAlgorithm = Signature.getInstance(SIGNATURE_ALGORITHM);
+            Signature signatureAlgorithm = SIGNATURE.get();
             signatureAlgorithm.initVerify(publicKey);
             signatureAlgorithm.update(signedData.getBytes());
             if (!signatureAlgorithm.verify(signatureBytes)) {
@@ -94,9 +126,6 @@ public class Security {
                 return false;
             }
             return true;
-        } catch (NoSuchAlgorithmException e) {
-            // "RSA" is guaranteed to be available.
-            throw new RuntimeException(e);
         } catch (InvalidKeyException e) {
             Log.w(TAG, "Invalid key specification.");
         } catch (SignatureException e) {
@@ -0,0 +1,135 @@
+package highduck.capacitor.billing;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.ResolveInfo;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link IabBackend} bound to the Google Play in-app billing service (version 3).
+ * Calls go through {@link InAppBillingService}, the plugin's own client of the service interface.
+ */
+class ServiceBackend implements IabBackend {
+    private static final int API_VERSION = 3;
+
+    private final Context mContext;
+    private final String mPackageName;
+
+    // Connection to the service
+    private volatile InAppBillingService mService;
+    private ServiceConnection mServiceConn;
+
+    // bindService was called
+    private boolean mBound = false;
+
+    ServiceBackend(Context context) {
+        mContext = context.getApplicationContext();
+        mPackageName = mContext.getPackageName();
+    }
+
+    @Override
+    public boolean connect(final ConnectionListener listener) {
+        mServiceConn = new ServiceConnection() {
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                mService = null;
+                listener.onDisconnected();
+            }
+
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                mService = new InAppBillingService(service);
+                listener.onConnected();
+            }
+        };
+
+        Intent serviceIntent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
+        serviceIntent.setPackage("com.android.vending");
+        final List<ResolveInfo> services = mContext.getPackageManager()
+                .queryIntentServices(serviceIntent, 0);
+        if (services == null || services.isEmpty()) {
+            // no service available to handle that Intent
+            return false;
+        }
+        mContext.bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE);
+        mBound = true;
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        if (mServiceConn != null && mBound) {
+            IabHelper.logDebug("Unbinding from service.");
+            mContext.unbindService(mServiceConn);
+            mBound = false;
+        }
+        mServiceConn = null;
+        mService = null;
+    }
+
+    @Override
+    public int isBillingSupported(String itemType) throws RemoteException {
+        return service().isBillingSupported(API_VERSION, mPackageName, itemType);
+    }
+
+    @Override
+    public PurchasesPage getPurchases(String itemType, String continuationToken) throws RemoteException {
+        Bundle ownedItems = service().getPurchases(API_VERSION, mPackageName, itemType, continuationToken);
+        return new PurchasesPage(getResponseCodeFromBundle(ownedItems),
+                ownedItems.getStringArrayList(IabHelper.RESPONSE_INAPP_ITEM_LIST),
+                ownedItems.getStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST),
+                ownedItems.getStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST),
+                ownedItems.getString(IabHelper.INAPP_CONTINUATION_TOKEN));
+    }
+
+    @Override
+    public SkuDetailsList getSkuDetails(String itemType, List<String> skus) throws RemoteException {
+        Bundle querySkus = new Bundle();
+        querySkus.putStringArrayList(IabHelper.GET_SKU_DETAILS_ITEM_LIST, new ArrayList<String>(skus));
+        Bundle skuDetails = service().getSkuDetails(API_VERSION, mPackageName, itemType, querySkus);
+        return new SkuDetailsList(getResponseCodeFromBundle(skuDetails),
+                skuDetails.getStringArrayList(IabHelper.RESPONSE_GET_SKU_DETAILS_LIST));
+    }
+
+    @Override
+    public BuyIntent getBuyIntent(String sku, String itemType, String developerPayload) throws RemoteException {
+        Bundle buyIntentBundle = service().getBuyIntent(API_VERSION, mPackageName, sku, itemType, developerPayload);
+        return new BuyIntent(getResponseCodeFromBundle(buyIntentBundle),
+                buyIntentBundle.getParcelable(IabHelper.RESPONSE_BUY_INTENT));
+    }
+
+    @Override
+    public int consumePurchase(String purchaseToken) throws RemoteException {
+        return service().consumePurchase(API_VERSION, mPackageName, purchaseToken);
+    }
+
+    private InAppBillingService service() throws RemoteException {
+        InAppBillingService service = mService;
+        if (service == null) {
+            throw new RemoteException();
+        }
+        return service;
+    }
+
+    // Workaround to bug where sometimes response codes come as Long instead of Integer
+    static int getResponseCodeFromBundle(Bundle b) {
+        Object o = b.get(IabHelper.RESPONSE_CODE);
+        if (o == null) {
+            IabHelper.logDebug("Bundle with null response code, assuming OK (known issue)");
+            return IabHelper.BILLING_RESPONSE_RESULT_OK;
+        } else if (o instanceof Integer) return ((Integer) o).intValue();
+        else if (o instanceof Long) return (int) ((Long) o).longValue();
+        else {
+            IabHelper.logError("Unexpected type for bundle response code.");
+            IabHelper.logError(o.getClass().getName());
+            throw new RuntimeException("Unexpected type for bundle response code: " + o.getClass().getName());
+        }
+    }
+}
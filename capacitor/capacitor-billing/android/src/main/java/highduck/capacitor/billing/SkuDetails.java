@@ -16,7 +16,6 @@
 package highduck.capacitor.billing;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * Represents an in-app product's listing details.
@@ -37,19 +36,31 @@ public class SkuDetails {
     public SkuDetails(String itemType, String jsonSkuDetails) throws JSONException {
         mItemType = itemType;
         mJson = jsonSkuDetails;
-        JSONObject o = new JSONObject(mJson);
-        mSku = o.optString("productId");
-        mType = o.optString("type");
-        mPrice = o.optString("price");
-        mTitle = o.optString("title");
-        mDescription = o.optString("description");
+        mSku = "";
+        mType = "";
+        mPrice = "";
+        mTitle = "";
+        mDescription = "";
+        // pull the needed fields in a single pass, the original JSON is kept as is
+        JsonFields.read(mJson, (name, reader) -> {
+            switch (name) {
+                case "productId": mSku = JsonFields.nextString(reader); break;
+                case "type": mType = JsonFields.nextString(reader); break;
+                case "price": mPrice = JsonFields.nextString(reader); break;
+                case "title": mTitle = JsonFields.nextString(reader); break;
+                case "description": mDescription = JsonFields.nextString(reader); break;
+                default: reader.skipValue(); break;
+            }
+        });
     }
 
+    public String getItemType() { return mItemType; }
     public String getSku() { return mSku; }
     public String getType() { return mType; }
     public String getPrice() { return mPrice; }
     public String getTitle() { return mTitle; }
     public String getDescription() { return mDescription; }
+    public String getOriginalJson() { return mJson; }
 
     @Override
     public String toString() {
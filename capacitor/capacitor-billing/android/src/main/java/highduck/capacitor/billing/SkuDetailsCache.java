@@ -0,0 +1,171 @@
+package highduck.capacitor.billing;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Disk-backed cache of product listing details, keyed by item type and product ID.
+ * Entries are kept in shared preferences, so they survive restarts and the store can
+ * be shown before the billing service is connected. Entries older than the TTL are
+ * still returned, the caller is expected to refresh them in the background.
+ * <p>
+ * Products a refresh no longer returns are removed and remembered as missing, so they are
+ * reported as failed instead of being served from the cache. Missing products are only
+ * remembered in memory, and go stale after the TTL like entries.
+ * <p>
+ * Ages are measured with {@link SystemClock#elapsedRealtime()}, so changing the wall clock
+ * does not make entries look fresh. Only entries loaded from disk are aged by the wall clock
+ * time they were stored at, and those stored in the future are considered stale.
+ */
+class SkuDetailsCache {
+    private static final String PREFERENCES_NAME = "capacitor.billing.sku_details";
+
+    private static class Entry {
+        final SkuDetails details;
+        // when the details were fetched, in elapsedRealtime() base
+        final long elapsed;
+
+        Entry(SkuDetails details, long elapsed) {
+            this.details = details;
+            this.elapsed = elapsed;
+        }
+    }
+
+    private final SharedPreferences mPreferences;
+    private final long mTtlMillis;
+    // parsed entries by item type and product ID, loaded from preferences on first access
+    private Map<String, Entry> mEntries = null;
+    // when products were found missing, by product ID, in elapsedRealtime() base
+    private final Map<String, Long> mMissing = new HashMap<>();
+
+    SkuDetailsCache(Context context, long ttlMillis) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the cached details of the product of the item type, or null.
+     */
+    synchronized SkuDetails get(String itemType, String sku) {
+        Entry entry = entries().get(key(itemType, sku));
+        return entry != null ? entry.details : null;
+    }
+
+    /**
+     * Returns the cached details of the product, or null. If both item types are cached
+     * under the same product ID, the in-app product is returned.
+     */
+    synchronized SkuDetails get(String sku) {
+        Entry entry = entry(sku);
+        return entry != null ? entry.details : null;
+    }
+
+    /**
+     * Returns true if the product is not cached or the details {@link #get(String)} returns
+     * are older than the TTL.
+     */
+    synchronized boolean isStale(String sku) {
+        Entry entry = entry(sku);
+        if (entry != null) {
+            return SystemClock.elapsedRealtime() - entry.elapsed >= mTtlMillis;
+        }
+        Long missing = mMissing.get(sku);
+        return missing == null || SystemClock.elapsedRealtime() - missing >= mTtlMillis;
+    }
+
+    /**
+     * Returns true if the product is not cached because the last refresh did not return it.
+     */
+    synchronized boolean isMissing(String sku) {
+        return entry(sku) == null && mMissing.containsKey(sku);
+    }
+
+    /**
+     * Stores fresh details of the product.
+     *
+     * @return true if the listing (title, description or price) differs from the cached one
+     */
+    synchronized boolean put(SkuDetails details) {
+        final String key = key(details.getItemType(), details.getSku());
+        Entry previous = entries().put(key, new Entry(details, SystemClock.elapsedRealtime()));
+        mMissing.remove(details.getSku());
+        mPreferences.edit()
+                .putString(key, System.currentTimeMillis() + "\n" + details.getOriginalJson())
+                .apply();
+        return previous != null && !sameListing(previous.details, details);
+    }
+
+    /**
+     * Removes the product of both item types, such as a product which is no longer listed.
+     * It is reported as missing until it is stored again.
+     */
+    synchronized void remove(String sku) {
+        final String inapp = key(IabHelper.ITEM_TYPE_INAPP, sku);
+        final String subs = key(IabHelper.ITEM_TYPE_SUBS, sku);
+        entries().remove(inapp);
+        entries().remove(subs);
+        mMissing.put(sku, SystemClock.elapsedRealtime());
+        mPreferences.edit().remove(inapp).remove(subs).apply();
+    }
+
+    synchronized void clear() {
+        entries().clear();
+        mMissing.clear();
+        mPreferences.edit().clear().apply();
+    }
+
+    private Map<String, Entry> entries() {
+        if (mEntries == null) {
+            mEntries = new HashMap<>();
+            for (Map.Entry<String, ?> e : mPreferences.getAll().entrySet()) {
+                Entry entry = parse(e.getKey(), e.getValue());
+                if (entry != null) {
+                    mEntries.put(e.getKey(), entry);
+                }
+            }
+        }
+        return mEntries;
+    }
+
+    private Entry entry(String sku) {
+        Entry entry = entries().get(key(IabHelper.ITEM_TYPE_INAPP, sku));
+        return entry != null ? entry : entries().get(key(IabHelper.ITEM_TYPE_SUBS, sku));
+    }
+
+    private static String key(String itemType, String sku) {
+        return itemType + "/" + sku;
+    }
+
+    private Entry parse(String key, Object value) {
+        int typeEnd = key.indexOf('/');
+        if (typeEnd < 0 || !(value instanceof String)) {
+            return null;
+        }
+        String data = (String) value;
+        int timeEnd = data.indexOf('\n');
+        if (timeEnd < 0) {
+            return null;
+        }
+        try {
+            long time = Long.parseLong(data.substring(0, timeEnd));
+            SkuDetails details = new SkuDetails(key.substring(0, typeEnd), data.substring(timeEnd + 1));
+            long age = System.currentTimeMillis() - time;
+            return new Entry(details, SystemClock.elapsedRealtime() - (age >= 0 ? age : mTtlMillis));
+        } catch (NumberFormatException | JSONException e) {
+            IabHelper.logWarn("Dropping invalid cached SKU details: " + key);
+            return null;
+        }
+    }
+
+    private static boolean sameListing(SkuDetails a, SkuDetails b) {
+        return a.getPrice().equals(b.getPrice())
+                && a.getTitle().equals(b.getTitle())
+                && a.getDescription().equals(b.getDescription());
+    }
+}
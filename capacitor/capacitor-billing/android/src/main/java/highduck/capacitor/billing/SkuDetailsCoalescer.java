@@ -0,0 +1,138 @@
+package highduck.capacitor.billing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Coalesces overlapping SKU details queries. A query for products which are already being
+ * queried attaches to the queries in flight instead of starting its own, only the products
+ * nobody is querying yet are fetched. Each query gets an inventory with the details of all
+ * of its products once every query it depends on has finished, the first failure wins.
+ * <p>
+ * Queries sent to the service run with the timeout of the coalescer, not the one of the
+ * query which started them, so a caller giving up early does not fail the others attached
+ * to the same flight. A query fails with {@link IabHelper#IABHELPER_TIMEOUT} once its own
+ * timeout passes, or earlier if a flight it attached to times out.
+ */
+class SkuDetailsCoalescer {
+
+    // Query sent to the service
+    private static class Flight {
+        final BillingEngine helper;
+        final IabFuture<Inventory> inventory = new IabFuture<>();
+
+        Flight(BillingEngine helper) {
+            this.helper = helper;
+        }
+    }
+
+    // flights in progress by the products they query
+    private final Map<String, Flight> mFlights = new HashMap<>();
+    private final long mFlightTimeoutMillis;
+
+    /**
+     * @param flightTimeoutMillis timeout of the queries sent to the service, {@link IabDeadline#NONE} for none
+     */
+    SkuDetailsCoalescer(long flightTimeoutMillis) {
+        mFlightTimeoutMillis = flightTimeoutMillis;
+    }
+
+    /**
+     * Queries the details of the products, sharing the queries already in flight.
+     * The products nobody is querying yet are queried through the given helper.
+     * The future fails with {@link IabHelper#IABHELPER_TIMEOUT} if the details are not there
+     * within the timeout, it is completed on the thread the last flight finishes on.
+     * Flights of a disposed helper fail with {@link IabHelper#BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE}.
+     */
+    IabFuture<Inventory> query(BillingEngine helper, List<String> skus, long timeoutMillis) {
+        final Flight flight = new Flight(helper);
+        final Set<String> missingSet = new LinkedHashSet<>();
+        final List<IabFuture<Inventory>> flights = new ArrayList<>();
+        final Set<Flight> abandoned = new LinkedHashSet<>();
+        final boolean fetch;
+        synchronized (this) {
+            Set<Flight> pending = new LinkedHashSet<>();
+            for (String sku : skus) {
+                Flight other = mFlights.get(sku);
+                // the results of a disposed helper may never arrive
+                if (other != null && other.helper.isDisposed()) {
+                    abandoned.add(other);
+                    mFlights.values().removeAll(Collections.singleton(other));
+                    other = null;
+                }
+                if (other != null) {
+                    pending.add(other);
+                } else {
+                    missingSet.add(sku);
+                }
+            }
+            fetch = !missingSet.isEmpty() || pending.isEmpty();
+            if (fetch) {
+                for (String sku : missingSet) {
+                    mFlights.put(sku, flight);
+                }
+                pending.add(flight);
+            }
+            for (Flight other : pending) {
+                flights.add(other.inventory);
+            }
+        }
+        for (Flight other : abandoned) {
+            other.inventory.fail(new IabException(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
+                    "Billing service connection released."));
+        }
+        final List<String> missing = new ArrayList<>(missingSet);
+        if (missing.size() < skus.size()) {
+            IabHelper.logDebug("Coalescing SKU details query, fetching " + missing.size() + " of " + skus.size() + " products.");
+        }
+        if (fetch) {
+            IabFuture<Inventory> fetched;
+            try {
+                fetched = helper.querySkuDetailsAsync(missing, mFlightTimeoutMillis);
+            } catch (IllegalStateException e) {
+                fetched = IabFuture.failed(new IabException(IabHelper.IABHELPER_UNKNOWN_ERROR, e.getMessage()));
+            }
+            fetched.whenComplete(IabFuture.DIRECT, (inv, error) -> onFlightFinished(flight, missing, inv, error));
+        }
+
+        // flights keep running, their results are still shared with the other queries
+        final IabFuture<Inventory> request = new IabFuture<>();
+        final IabDeadline timeout = new IabDeadline(timeoutMillis);
+        timeout.start(() -> request.fail(new IabException(IabHelper.IABHELPER_TIMEOUT, "Timed out: query SKU details")));
+        IabFuture.allOf(flights).whenComplete(IabFuture.DIRECT, (inventories, error) -> {
+            if (!timeout.finish()) {
+                return;
+            }
+            if (error != null) {
+                request.fail(error);
+                return;
+            }
+            Inventory merged = new Inventory();
+            for (Inventory inv : inventories) {
+                merged.addAll(inv);
+            }
+            request.complete(merged);
+        });
+        return request;
+    }
+
+    private void onFlightFinished(Flight flight, List<String> skus, Inventory inv, IabException error) {
+        synchronized (this) {
+            for (String sku : skus) {
+                if (mFlights.get(sku) == flight) {
+                    mFlights.remove(sku);
+                }
+            }
+        }
+        if (error != null) {
+            flight.inventory.fail(error);
+        } else {
+            flight.inventory.complete(inv);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package highduck.capacitor.billing;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Base64;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of purchase signature verification outcomes. Receipts and their signatures
+ * never change, so a receipt verified once with a key does not need to be verified again,
+ * which makes periodic inventory refreshes of long-lived subscriptions almost free.
+ * <p>
+ * Entries are keyed by a SHA-256 digest of the public key, the receipt and the signature,
+ * the least recently used ones are evicted once the cache is full. If persistent, the
+ * entries are also kept in shared preferences, so they survive restarts.
+ */
+class VerificationCache {
+    private static final String PREFERENCES_NAME = "capacitor.billing.verifications";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // MessageDigest instances are not thread-safe, keep one per thread
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                // SHA-256 is guaranteed to be available.
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private final int mMaxEntries;
+    // null if the cache is kept in memory only
+    private final SharedPreferences mPreferences;
+    // outcomes by digest, in access order, loaded from preferences on first access
+    private LinkedHashMap<String, Boolean> mEntries = null;
+
+    /**
+     * Creates a cache kept in memory only.
+     */
+    VerificationCache(int maxEntries) {
+        mMaxEntries = maxEntries;
+        mPreferences = null;
+    }
+
+    /**
+     * Creates a cache kept in shared preferences as well.
+     */
+    VerificationCache(Context context, int maxEntries) {
+        mMaxEntries = maxEntries;
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the digest identifying the receipt signed with the signature and verified with the key.
+     */
+    static String digest(PublicKey key, String signedData, String signature) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        update(digest, key.getEncoded());
+        update(digest, signedData.getBytes(UTF_8));
+        update(digest, signature.getBytes(UTF_8));
+        return Base64.encodeToString(digest.digest(), Base64.NO_WRAP);
+    }
+
+    // Each part is prefixed with its length, so that parts can't be shifted into each other
+    private static void update(MessageDigest digest, byte[] part) {
+        int length = part.length;
+        digest.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        digest.update(part);
+    }
+
+    /**
+     * Verifies the signature of the receipt with the key, unless the outcome is cached.
+     */
+    boolean verify(PublicKey key, String signedData, String signature) {
+        if (key == null || TextUtils.isEmpty(signedData) || TextUtils.isEmpty(signature)) {
+            return Security.verifyPurchaseSignature(key, signedData, signature);
+        }
+        final String digest = digest(key, signedData, signature);
+        Boolean verified = get(digest);
+        if (verified == null) {
+            verified = Security.verifyPurchaseSignature(key, signedData, signature);
+            put(digest, verified);
+        }
+        return verified;
+    }
+
+    /**
+     * Returns the cached outcome of the verification, or null if it was not verified yet.
+     */
+    synchronized Boolean get(String digest) {
+        return entries().get(digest);
+    }
+
+    synchronized void put(String digest, boolean verified) {
+        Map<String, Boolean> entries = entries();
+        if (entries.put(digest, verified) != null) {
+            return;
+        }
+        SharedPreferences.Editor editor = mPreferences != null ? mPreferences.edit().putBoolean(digest, verified) : null;
+        evict(editor);
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    synchronized int size() {
+        return entries().size();
+    }
+
+    synchronized void clear() {
+        entries().clear();
+        if (mPreferences != null) {
+            mPreferences.edit().clear().apply();
+        }
+    }
+
+    private Map<String, Boolean> entries() {
+        if (mEntries == null) {
+            mEntries = new LinkedHashMap<>(16, 0.75f, true);
+            if (mPreferences != null) {
+                // the access order is not persisted, entries restored from preferences are evicted first
+                for (Map.Entry<String, ?> e : mPreferences.getAll().entrySet()) {
+                    if (e.getValue() instanceof Boolean) {
+                        mEntries.put(e.getKey(), (Boolean) e.getValue());
+                    }
+                }
+                SharedPreferences.Editor editor = mPreferences.edit();
+                if (evict(editor)) {
+                    editor.apply();
+                }
+            }
+        }
+        return mEntries;
+    }
+
+    // Removes the least recently used entries above the limit, from preferences as well if given
+    private boolean evict(SharedPreferences.Editor editor) {
+        boolean evicted = false;
+        while (mEntries.size() > mMaxEntries) {
+            String eldest = mEntries.keySet().iterator().next();
+            mEntries.remove(eldest);
+            if (editor != null) {
+                editor.remove(eldest);
+            }
+            evicted = true;
+        }
+        return evicted;
+    }
+}
@@ -0,0 +1,149 @@
+package highduck.capacitor.billing;
+
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class AutoConsumerTest {
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeBillingBackend backend;
+    private IabHelper helper;
+    private PurchaseJournal journal;
+
+    @Before
+    public void setUp() {
+        backend = new FakeBillingBackend().setLatency(1);
+        helper = new IabHelper(ApplicationProvider.getApplicationContext(), backend.getBase64PublicKey(), backend);
+        final AtomicInteger setupResponse = new AtomicInteger(Integer.MIN_VALUE);
+        helper.startSetup(result -> setupResponse.set(result.getResponse()));
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_OK, setupResponse.get());
+        journal = new PurchaseJournal(folder.getRoot());
+    }
+
+    @After
+    public void tearDown() {
+        helper.dispose();
+    }
+
+    private static Set<String> skus(String... skus) {
+        return new HashSet<>(Arrays.asList(skus));
+    }
+
+    private static List<String> skusOf(List<Purchase> purchases) {
+        List<String> skus = new ArrayList<>();
+        for (Purchase purchase : purchases) {
+            skus.add(purchase.getSku());
+        }
+        Collections.sort(skus);
+        return skus;
+    }
+
+    private Set<String> ownedSkus() {
+        Set<String> skus = new HashSet<>();
+        for (FakeBillingBackend.OwnedItem item : backend.getOwned()) {
+            skus.add(item.sku);
+        }
+        return skus;
+    }
+
+    // Runs the main looper until the future is done, callbacks of the helper are posted there
+    private static <T> T await(IabFuture<T> future) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!future.isDone()) {
+            assertTrue("Timed out waiting for auto-consume", System.currentTimeMillis() < deadline);
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(1);
+        }
+        return future.get();
+    }
+
+    @Test
+    public void onlyAllowlistedConsumablesAreConsumed() throws Exception {
+        backend.addPurchase("gems", IabHelper.ITEM_TYPE_INAPP);
+        backend.addPurchase("coins", IabHelper.ITEM_TYPE_INAPP);
+        backend.addPurchase("premium", IabHelper.ITEM_TYPE_INAPP);
+        backend.addPurchase("vip", IabHelper.ITEM_TYPE_SUBS);
+        AutoConsumer consumer = new AutoConsumer(skus("gems", "coins", "vip"), journal);
+
+        final List<Purchase> granted = new ArrayList<>();
+        List<Purchase> consumed = await(consumer.run(helper, TIMEOUT_MILLIS, purchases -> {
+            granted.addAll(purchases);
+            return true;
+        }));
+
+        assertEquals(Arrays.asList("coins", "gems"), skusOf(granted));
+        assertEquals(Arrays.asList("coins", "gems"), skusOf(consumed));
+        // non-consumables and subscriptions stay owned even if listed
+        assertEquals(skus("premium", "vip"), ownedSkus());
+        assertEquals(2, backend.getConsumedCount());
+    }
+
+    @Test
+    public void journaledPurchasesAreLeftToTheApp() throws Exception {
+        FakeBillingBackend.OwnedItem journaled = backend.addPurchase("gems", IabHelper.ITEM_TYPE_INAPP);
+        backend.addPurchase("coins", IabHelper.ITEM_TYPE_INAPP);
+        journal.add(new Purchase(IabHelper.ITEM_TYPE_INAPP, journaled.purchaseData, journaled.signature));
+        AutoConsumer consumer = new AutoConsumer(skus("gems", "coins"), journal);
+
+        List<Purchase> consumed = await(consumer.run(helper, TIMEOUT_MILLIS, purchases -> true));
+
+        assertEquals(Collections.singletonList("coins"), skusOf(consumed));
+        assertEquals(skus("gems"), ownedSkus());
+    }
+
+    @Test
+    public void nothingIsConsumedWithoutListener() throws Exception {
+        backend.addPurchase("gems", IabHelper.ITEM_TYPE_INAPP);
+        AutoConsumer consumer = new AutoConsumer(skus("gems"), journal);
+
+        List<Purchase> consumed = await(consumer.run(helper, TIMEOUT_MILLIS, purchases -> false));
+
+        assertTrue(consumed.isEmpty());
+        assertEquals(skus("gems"), ownedSkus());
+        assertEquals(0, backend.getConsumedCount());
+    }
+
+    @Test
+    public void emptyAllowlistDoesNotQuery() throws Exception {
+        backend.addPurchase("gems", IabHelper.ITEM_TYPE_INAPP);
+        int calls = backend.getCallCount();
+        AutoConsumer consumer = new AutoConsumer(Collections.<String>emptySet(), journal);
+
+        List<Purchase> consumed = await(consumer.run(helper, TIMEOUT_MILLIS, purchases -> {
+            throw new AssertionError("Nothing to consume");
+        }));
+
+        assertTrue(consumed.isEmpty());
+        assertEquals(calls, backend.getCallCount());
+        assertEquals(skus("gems"), ownedSkus());
+    }
+}
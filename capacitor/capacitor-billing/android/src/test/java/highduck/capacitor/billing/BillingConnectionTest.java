@@ -0,0 +1,213 @@
+package highduck.capacitor.billing;
+
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class BillingConnectionTest {
+    private static final long IDLE_TIMEOUT_MILLIS = 1000;
+
+    private final List<FakeBillingEngine> engines = new ArrayList<>();
+
+    private BillingConnection newConnection() {
+        return new BillingConnection(() -> {
+            FakeBillingEngine engine = new FakeBillingEngine();
+            synchronized (engines) {
+                engines.add(engine);
+            }
+            return engine;
+        }, IDLE_TIMEOUT_MILLIS);
+    }
+
+    private FakeBillingEngine connected(BillingConnection connection) throws Exception {
+        IabFuture<BillingEngine> future = connection.connect();
+        FakeBillingEngine engine = engines.get(engines.size() - 1);
+        engine.setup.complete(null);
+        assertSame(engine, future.get());
+        assertTrue(connection.isConnected());
+        return engine;
+    }
+
+    private static void advance(long millis) {
+        shadowOf(Looper.getMainLooper()).idleFor(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void idleConnectionIsReleasedAfterTimeout() throws Exception {
+        BillingConnection connection = newConnection();
+        FakeBillingEngine engine = connected(connection);
+
+        connection.onStop();
+        advance(IDLE_TIMEOUT_MILLIS - 1);
+        assertTrue(connection.isConnected());
+        advance(1);
+        assertFalse(connection.isConnected());
+        assertNull(connection.getHelper());
+        assertTrue(engine.disposed);
+
+        // the next call sets up a new engine
+        assertTrue(connected(connection) != engine);
+        assertEquals(2, engines.size());
+    }
+
+    @Test
+    public void startCancelsRelease() throws Exception {
+        BillingConnection connection = newConnection();
+        FakeBillingEngine engine = connected(connection);
+
+        connection.onStop();
+        advance(IDLE_TIMEOUT_MILLIS / 2);
+        connection.onStart();
+        advance(IDLE_TIMEOUT_MILLIS * 3);
+
+        assertTrue(connection.isConnected());
+        assertFalse(engine.disposed);
+    }
+
+    @Test
+    public void busyEngineIsReleasedOnceIdle() throws Exception {
+        BillingConnection connection = newConnection();
+        FakeBillingEngine engine = connected(connection);
+        engine.busy = true;
+
+        connection.onStop();
+        advance(IDLE_TIMEOUT_MILLIS);
+        assertTrue(connection.isConnected());
+        advance(IDLE_TIMEOUT_MILLIS * 2);
+        assertTrue(connection.isConnected());
+
+        engine.busy = false;
+        advance(IDLE_TIMEOUT_MILLIS);
+        assertFalse(connection.isConnected());
+        assertTrue(engine.disposed);
+    }
+
+    @Test
+    public void startDuringBusyCheckIsNotUndoneByRepost() throws Exception {
+        final BillingConnection connection = newConnection();
+        FakeBillingEngine engine = connected(connection);
+        engine.busy = true;
+        final Thread[] starter = new Thread[1];
+        final AtomicBoolean checked = new AtomicBoolean();
+        // the activity starts again on another thread while the expired timeout checks the engine
+        engine.onBusyCheck = () -> {
+            if (checked.compareAndSet(false, true)) {
+                starter[0] = new Thread(connection::onStart);
+                starter[0].start();
+                try {
+                    starter[0].join(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        connection.onStop();
+        advance(IDLE_TIMEOUT_MILLIS);
+        starter[0].join();
+        engine.busy = false;
+        advance(IDLE_TIMEOUT_MILLIS * 3);
+
+        assertTrue(connection.isConnected());
+        assertFalse(engine.disposed);
+    }
+
+    @Test
+    public void concurrentConnectsShareSetup() throws Exception {
+        final BillingConnection connection = newConnection();
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<IabFuture<BillingEngine>> futures = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; ++i) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                IabFuture<BillingEngine> future = connection.connect();
+                synchronized (futures) {
+                    futures.add(future);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(1, engines.size());
+        assertEquals(threads, futures.size());
+        for (IabFuture<BillingEngine> future : futures) {
+            assertFalse(future.isDone());
+        }
+        engines.get(0).setup.complete(null);
+        for (IabFuture<BillingEngine> future : futures) {
+            assertSame(engines.get(0), future.get());
+        }
+        assertSame(engines.get(0), connection.connect().get());
+    }
+
+    @Test
+    public void releaseDuringSetupFailsPendingConnect() throws Exception {
+        BillingConnection connection = newConnection();
+        IabFuture<BillingEngine> future = connection.connect();
+        FakeBillingEngine engine = engines.get(0);
+
+        connection.release();
+        assertTrue(engine.disposed);
+        try {
+            future.get();
+            fail();
+        } catch (IabException e) {
+            assertEquals(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, e.getResult().getResponse());
+        }
+
+        // the late setup result of the released engine is ignored
+        engine.setup.complete(null);
+        assertFalse(connection.isConnected());
+        assertTrue(connected(connection) != engine);
+    }
+
+    @Test
+    public void failedSetupDisposesEngine() throws Exception {
+        BillingConnection connection = newConnection();
+        IabFuture<BillingEngine> future = connection.connect();
+        FakeBillingEngine engine = engines.get(0);
+
+        engine.setup.fail(new IabException(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, "No service"));
+        try {
+            future.get();
+            fail();
+        } catch (IabException e) {
+            assertEquals(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, e.getResult().getResponse());
+        }
+        assertTrue(engine.disposed);
+        assertFalse(connection.isConnected());
+        assertTrue(connected(connection) != engine);
+    }
+}
@@ -0,0 +1,362 @@
+package highduck.capacitor.billing;
+
+import android.os.RemoteException;
+import android.util.Base64;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process billing service for load tests. Owned items are signed with a generated key,
+ * so the helper verifies them like real receipts. Latency, page size, failure rate and
+ * subscription support can be changed at any time, also while requests are running.
+ * <p>
+ * Behaves like the Google Play service where it matters for the helper: owned items are
+ * returned in pages with continuation tokens, at most {@link #MAX_SKU_DETAILS_QUERY} SKUs
+ * may be queried at once, and an item can be consumed only once.
+ */
+class FakeBillingBackend implements IabBackend {
+    static final String PACKAGE_NAME = "com.example.game";
+
+    // getSkuDetails() rejects larger queries with DEVELOPER_ERROR, like the Play service
+    static final int MAX_SKU_DETAILS_QUERY = 20;
+
+    static class OwnedItem {
+        final String sku;
+        final String itemType;
+        final String token;
+        final String purchaseData;
+        final String signature;
+
+        OwnedItem(String sku, String itemType, String token, String purchaseData, String signature) {
+            this.sku = sku;
+            this.itemType = itemType;
+            this.token = token;
+            this.purchaseData = purchaseData;
+            this.signature = signature;
+        }
+    }
+
+    private final KeyPair mKeyPair;
+    private final String mBase64PublicKey;
+
+    // owned items by purchase token, in the order of purchase
+    private final Map<String, OwnedItem> mOwned = new LinkedHashMap<>();
+    private final AtomicInteger mNextOrder = new AtomicInteger();
+
+    private volatile long mLatencyMillis = 0;
+    private volatile long mNextPageLatencyMillis = 0;
+    private volatile int mPageSize = 100;
+    private volatile double mFailureRate = 0;
+    private volatile boolean mSubscriptionsSupported = true;
+    private volatile boolean mConnected = false;
+    private volatile boolean mAvailable = true;
+    private volatile ConnectionListener mListener = null;
+    private final AtomicInteger mConnects = new AtomicInteger();
+
+    private final AtomicInteger mCalls = new AtomicInteger();
+    private final AtomicInteger mFailures = new AtomicInteger();
+    private final AtomicInteger mConsumed = new AtomicInteger();
+    private final AtomicInteger mSkuDetailsQueried = new AtomicInteger();
+    private final AtomicInteger mActiveCalls = new AtomicInteger();
+    private final AtomicInteger mMaxActiveCalls = new AtomicInteger();
+
+    FakeBillingBackend() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            mKeyPair = generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        mBase64PublicKey = Base64.encodeToString(mKeyPair.getPublic().getEncoded(), Base64.NO_WRAP);
+    }
+
+    /** Returns the key to pass to {@link IabHelper}, matching the signatures of owned items. */
+    String getBase64PublicKey() {
+        return mBase64PublicKey;
+    }
+
+    /** Sets the time each call blocks for, like an IPC round-trip to the Play service. */
+    FakeBillingBackend setLatency(long millis) {
+        mLatencyMillis = millis;
+        return this;
+    }
+
+    /** Sets the time getPurchases() calls for further pages block for, in addition to the latency. */
+    FakeBillingBackend setNextPageLatency(long millis) {
+        mNextPageLatencyMillis = millis;
+        return this;
+    }
+
+    /** Sets the number of owned items returned by one getPurchases() call. */
+    FakeBillingBackend setPageSize(int pageSize) {
+        mPageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Sets the probability of a call failing. A failing call either returns
+     * {@link IabHelper#BILLING_RESPONSE_RESULT_ERROR} or throws a {@link RemoteException}.
+     */
+    FakeBillingBackend setFailureRate(double rate) {
+        mFailureRate = rate;
+        return this;
+    }
+
+    FakeBillingBackend setSubscriptionsSupported(boolean supported) {
+        mSubscriptionsSupported = supported;
+        return this;
+    }
+
+    /** Makes connection attempts fail, like when the Play Store app is being updated. */
+    FakeBillingBackend setAvailable(boolean available) {
+        mAvailable = available;
+        return this;
+    }
+
+    /** Drops the connection, like when the service process is killed. */
+    void killService() {
+        mConnected = false;
+        ConnectionListener listener = mListener;
+        if (listener != null) {
+            listener.onDisconnected();
+        }
+    }
+
+    /** Returns the number of connection attempts, including the first one. */
+    int getConnectCount() { return mConnects.get(); }
+
+    static String sku(int index) {
+        return String.format(Locale.US, "item_%04d", index);
+    }
+
+    /**
+     * Adds an owned item with a signed receipt.
+     */
+    OwnedItem addPurchase(String sku, String itemType) {
+        int order = mNextOrder.incrementAndGet();
+        String token = "token." + itemType + "." + order + "." + sku;
+        String data = "{\"orderId\":\"GPA.0000-" + String.format(Locale.US, "%08d", order) + "\","
+                + "\"packageName\":\"" + PACKAGE_NAME + "\","
+                + "\"productId\":\"" + sku + "\","
+                + "\"purchaseTime\":" + (1600000000000L + order * 1000L) + ","
+                + "\"purchaseState\":0,"
+                + "\"developerPayload\":\"\","
+                + "\"purchaseToken\":\"" + token + "\"}";
+        OwnedItem item = new OwnedItem(sku, itemType, token, data, sign(data));
+        synchronized (mOwned) {
+            mOwned.put(token, item);
+        }
+        return item;
+    }
+
+    List<OwnedItem> getOwned() {
+        synchronized (mOwned) {
+            return new ArrayList<>(mOwned.values());
+        }
+    }
+
+    static String skuDetailsJson(String sku, String itemType) {
+        int hash = Math.abs(sku.hashCode() % 100);
+        return "{\"productId\":\"" + sku + "\","
+                + "\"type\":\"" + itemType + "\","
+                + "\"price\":\"$" + hash + ".99\","
+                + "\"price_amount_micros\":" + (hash * 1000000L + 990000L) + ","
+                + "\"price_currency_code\":\"USD\","
+                + "\"title\":\"" + sku + " (Example Game)\","
+                + "\"description\":\"Description of " + sku + "\"}";
+    }
+
+    /** Returns the number of calls made to the service, including failed ones. */
+    int getCallCount() { return mCalls.get(); }
+
+    /** Returns the number of calls which failed on purpose. */
+    int getFailureCount() { return mFailures.get(); }
+
+    /** Returns the number of products whose details were requested, counting repeats. */
+    int getSkuDetailsQueriedCount() { return mSkuDetailsQueried.get(); }
+
+    /** Returns the number of successful consumptions. */
+    int getConsumedCount() { return mConsumed.get(); }
+
+    /** Returns the number of calls in progress. */
+    int getActiveCallCount() { return mActiveCalls.get(); }
+
+    /** Returns the highest number of calls in progress at the same time. */
+    int getMaxConcurrentCalls() { return mMaxActiveCalls.get(); }
+
+    @Override
+    public boolean connect(ConnectionListener listener) {
+        mConnects.incrementAndGet();
+        if (!mAvailable) {
+            return false;
+        }
+        mListener = listener;
+        mConnected = true;
+        listener.onConnected();
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        mConnected = false;
+        mListener = null;
+    }
+
+    @Override
+    public int isBillingSupported(String itemType) throws RemoteException {
+        checkConnected();
+        if (IabHelper.ITEM_TYPE_SUBS.equals(itemType) && !mSubscriptionsSupported) {
+            return IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE;
+        }
+        return IabHelper.BILLING_RESPONSE_RESULT_OK;
+    }
+
+    @Override
+    public PurchasesPage getPurchases(String itemType, String continuationToken) throws RemoteException {
+        int failure = beginCall(continuationToken != null ? mNextPageLatencyMillis : 0);
+        try {
+            if (failure != IabHelper.BILLING_RESPONSE_RESULT_OK) {
+                return new PurchasesPage(failure, null, null, null, null);
+            }
+            List<OwnedItem> items = new ArrayList<>();
+            for (OwnedItem item : getOwned()) {
+                if (item.itemType.equals(itemType)) {
+                    items.add(item);
+                }
+            }
+            int start = continuationToken != null ? Integer.parseInt(continuationToken) : 0;
+            int end = Math.min(items.size(), start + mPageSize);
+            List<String> skus = new ArrayList<>();
+            List<String> data = new ArrayList<>();
+            List<String> signatures = new ArrayList<>();
+            for (int i = start; i < end; ++i) {
+                OwnedItem item = items.get(i);
+                skus.add(item.sku);
+                data.add(item.purchaseData);
+                signatures.add(item.signature);
+            }
+            String next = end < items.size() ? String.valueOf(end) : null;
+            return new PurchasesPage(IabHelper.BILLING_RESPONSE_RESULT_OK, skus, data, signatures, next);
+        } finally {
+            endCall();
+        }
+    }
+
+    @Override
+    public SkuDetailsList getSkuDetails(String itemType, List<String> skus) throws RemoteException {
+        int failure = beginCall();
+        try {
+            if (failure != IabHelper.BILLING_RESPONSE_RESULT_OK) {
+                return new SkuDetailsList(failure, null);
+            }
+            if (skus.size() > MAX_SKU_DETAILS_QUERY) {
+                return new SkuDetailsList(IabHelper.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR, null);
+            }
+            mSkuDetailsQueried.addAndGet(skus.size());
+            List<String> details = new ArrayList<>(skus.size());
+            for (String sku : skus) {
+                details.add(skuDetailsJson(sku, itemType));
+            }
+            return new SkuDetailsList(IabHelper.BILLING_RESPONSE_RESULT_OK, details);
+        } finally {
+            endCall();
+        }
+    }
+
+    @Override
+    public BuyIntent getBuyIntent(String sku, String itemType, String developerPayload) throws RemoteException {
+        beginCall();
+        endCall();
+        // there is no purchase UI to run in process, purchases are made through addPurchase()
+        return new BuyIntent(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, null);
+    }
+
+    @Override
+    public int consumePurchase(String purchaseToken) throws RemoteException {
+        int failure = beginCall();
+        try {
+            if (failure != IabHelper.BILLING_RESPONSE_RESULT_OK) {
+                return failure;
+            }
+            OwnedItem item;
+            synchronized (mOwned) {
+                item = mOwned.get(purchaseToken);
+                if (item == null || !IabHelper.ITEM_TYPE_INAPP.equals(item.itemType)) {
+                    return IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+                }
+                mOwned.remove(purchaseToken);
+            }
+            mConsumed.incrementAndGet();
+            return IabHelper.BILLING_RESPONSE_RESULT_OK;
+        } finally {
+            endCall();
+        }
+    }
+
+    private void checkConnected() throws RemoteException {
+        if (!mConnected) {
+            throw new RemoteException();
+        }
+    }
+
+    private int beginCall() throws RemoteException {
+        return beginCall(0);
+    }
+
+    // Counts the call, waits for the latency and decides whether it fails.
+    // Returns the error response to fail with, or OK.
+    private int beginCall(long extraLatencyMillis) throws RemoteException {
+        checkConnected();
+        mCalls.incrementAndGet();
+        int active = mActiveCalls.incrementAndGet();
+        int max = mMaxActiveCalls.get();
+        while (active > max && !mMaxActiveCalls.compareAndSet(max, active)) {
+            max = mMaxActiveCalls.get();
+        }
+        try {
+            if (mLatencyMillis + extraLatencyMillis > 0) {
+                Thread.sleep(mLatencyMillis + extraLatencyMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            endCall();
+            throw new RemoteException();
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (mFailureRate > 0 && random.nextDouble() < mFailureRate) {
+            mFailures.incrementAndGet();
+            if (random.nextBoolean()) {
+                endCall();
+                throw new RemoteException();
+            }
+            return IabHelper.BILLING_RESPONSE_RESULT_ERROR;
+        }
+        return IabHelper.BILLING_RESPONSE_RESULT_OK;
+    }
+
+    private void endCall() {
+        mActiveCalls.decrementAndGet();
+    }
+
+    private String sign(String data) {
+        try {
+            Signature signature = Signature.getInstance("SHA1withRSA");
+            signature.initSign(mKeyPair.getPrivate());
+            signature.update(data.getBytes());
+            return Base64.encodeToString(signature.sign(), Base64.NO_WRAP);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
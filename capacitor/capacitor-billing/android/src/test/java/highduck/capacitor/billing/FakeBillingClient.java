@@ -0,0 +1,239 @@
+package highduck.capacitor.billing;
+
+import android.app.Activity;
+import android.util.Base64;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.PriceChangeConfirmationListener;
+import com.android.billingclient.api.PriceChangeFlowParams;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.RewardLoadParams;
+import com.android.billingclient.api.RewardResponseListener;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsParams;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+import org.json.JSONException;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Play Billing Library client for tests of {@link PlayBillingEngine}. Receipts are signed with
+ * a generated key, so the engine verifies them like real ones. Responses are delivered right
+ * away on the calling thread; purchase flows only record the launched product, the test
+ * completes them with {@link #deliver}.
+ */
+class FakeBillingClient extends BillingClient {
+
+    private final KeyPair mKeyPair;
+    private final String mBase64PublicKey;
+
+    // owned items by purchase token, with their item type
+    private final Map<String, Purchase> mOwned = new LinkedHashMap<>();
+    private final Map<String, String> mOwnedTypes = new LinkedHashMap<>();
+    // listings by product id, with their item type
+    private final Map<String, String> mProducts = new LinkedHashMap<>();
+    private int mNextOrder = 0;
+    private boolean mReady = false;
+
+    // listener the engine passed to the client factory
+    volatile PurchasesUpdatedListener purchasesListener = null;
+    volatile int setupResponse = BillingResponseCode.OK;
+    volatile boolean subscriptionsSupported = true;
+    volatile int acknowledgeResponse = BillingResponseCode.OK;
+    // products of the launched purchase flows
+    final List<String> launched = Collections.synchronizedList(new ArrayList<>());
+    // tokens of the acknowledgements
+    final List<String> acknowledged = Collections.synchronizedList(new ArrayList<>());
+
+    FakeBillingClient() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            mKeyPair = generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        mBase64PublicKey = Base64.encodeToString(mKeyPair.getPublic().getEncoded(), Base64.NO_WRAP);
+    }
+
+    /** Returns the key to pass to the engine, matching the signatures of the receipts. */
+    String getBase64PublicKey() {
+        return mBase64PublicKey;
+    }
+
+    synchronized void addProduct(String sku, String itemType) {
+        mProducts.put(sku, itemType);
+    }
+
+    /**
+     * Adds an owned item with a signed receipt, not acknowledged yet. The item is
+     * not delivered to the listener, see {@link #deliver}.
+     */
+    synchronized Purchase addPurchase(String sku, String itemType, boolean pending) {
+        int order = ++mNextOrder;
+        String token = "token." + itemType + "." + order + "." + sku;
+        String data = "{\"orderId\":\"GPA.0000-" + String.format(Locale.US, "%08d", order) + "\","
+                + "\"packageName\":\"" + FakeBillingBackend.PACKAGE_NAME + "\","
+                + "\"productId\":\"" + sku + "\","
+                + "\"purchaseTime\":" + (1600000000000L + order * 1000L) + ","
+                + "\"purchaseState\":" + (pending ? 4 : 0) + ","
+                + "\"purchaseToken\":\"" + token + "\","
+                + "\"acknowledged\":false}";
+        Purchase purchase = receipt(data);
+        mOwned.put(token, purchase);
+        mOwnedTypes.put(token, itemType);
+        return purchase;
+    }
+
+    /** Completes a pending purchase, the returned receipt is the one the library sends then. */
+    synchronized Purchase completePending(Purchase pending) {
+        Purchase purchase = receipt(pending.getOriginalJson().replace("\"purchaseState\":4", "\"purchaseState\":0"));
+        mOwned.put(purchase.getPurchaseToken(), purchase);
+        return purchase;
+    }
+
+    /** Sends purchases to the listener, like the library once a purchase flow or a payment finished. */
+    void deliver(int responseCode, Purchase... purchases) {
+        purchasesListener.onPurchasesUpdated(result(responseCode), purchases.length > 0 ? Arrays.asList(purchases) : null);
+    }
+
+    synchronized List<Purchase> getOwned() {
+        return new ArrayList<>(mOwned.values());
+    }
+
+    private Purchase receipt(String data) {
+        try {
+            return new Purchase(data, sign(data));
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String sign(String data) {
+        try {
+            Signature signature = Signature.getInstance("SHA1withRSA");
+            signature.initSign(mKeyPair.getPrivate());
+            signature.update(data.getBytes());
+            return Base64.encodeToString(signature.sign(), Base64.NO_WRAP);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static BillingResult result(int responseCode) {
+        return BillingResult.newBuilder().setResponseCode(responseCode).setDebugMessage("").build();
+    }
+
+    @Override
+    public boolean isReady() {
+        return mReady;
+    }
+
+    @Override
+    public BillingResult isFeatureSupported(String feature) {
+        return result(FeatureType.SUBSCRIPTIONS.equals(feature) && subscriptionsSupported
+                ? BillingResponseCode.OK
+                : BillingResponseCode.FEATURE_NOT_SUPPORTED);
+    }
+
+    @Override
+    public void startConnection(BillingClientStateListener listener) {
+        mReady = setupResponse == BillingResponseCode.OK;
+        listener.onBillingSetupFinished(result(setupResponse));
+    }
+
+    @Override
+    public void endConnection() {
+        mReady = false;
+    }
+
+    @Override
+    public BillingResult launchBillingFlow(Activity activity, BillingFlowParams params) {
+        launched.add(params.getSkuDetails().getSku());
+        return result(BillingResponseCode.OK);
+    }
+
+    @Override
+    public BillingResult launchPriceChangeConfirmationFlow(Activity activity, PriceChangeFlowParams params,
+                                                           PriceChangeConfirmationListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized Purchase.PurchasesResult queryPurchases(String skuType) {
+        List<Purchase> purchases = new ArrayList<>();
+        for (Map.Entry<String, Purchase> entry : mOwned.entrySet()) {
+            if (skuType.equals(mOwnedTypes.get(entry.getKey()))) {
+                purchases.add(entry.getValue());
+            }
+        }
+        return new Purchase.PurchasesResult(result(BillingResponseCode.OK), purchases);
+    }
+
+    @Override
+    public void querySkuDetailsAsync(SkuDetailsParams params, SkuDetailsResponseListener listener) {
+        List<SkuDetails> list = new ArrayList<>();
+        synchronized (this) {
+            for (String sku : params.getSkusList()) {
+                String itemType = mProducts.get(sku);
+                if (params.getSkuType().equals(itemType)) {
+                    try {
+                        list.add(new SkuDetails(FakeBillingBackend.skuDetailsJson(sku, itemType)));
+                    } catch (JSONException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        }
+        listener.onSkuDetailsResponse(result(BillingResponseCode.OK), list);
+    }
+
+    @Override
+    public void consumeAsync(ConsumeParams params, ConsumeResponseListener listener) {
+        boolean owned;
+        synchronized (this) {
+            owned = mOwned.remove(params.getPurchaseToken()) != null;
+            mOwnedTypes.remove(params.getPurchaseToken());
+        }
+        listener.onConsumeResponse(result(owned ? BillingResponseCode.OK : BillingResponseCode.ITEM_NOT_OWNED),
+                params.getPurchaseToken());
+    }
+
+    @Override
+    public void queryPurchaseHistoryAsync(String skuType, PurchaseHistoryResponseListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void loadRewardedSku(RewardLoadParams params, RewardResponseListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void acknowledgePurchase(AcknowledgePurchaseParams params, AcknowledgePurchaseResponseListener listener) {
+        if (acknowledgeResponse == BillingResponseCode.OK) {
+            acknowledged.add(params.getPurchaseToken());
+        }
+        listener.onAcknowledgePurchaseResponse(result(acknowledgeResponse));
+    }
+}
@@ -0,0 +1,119 @@
+package highduck.capacitor.billing;
+
+import android.app.Activity;
+import android.content.Intent;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Engine driven by the test: the setup and the SKU details queries complete when
+ * the test completes their futures. Other operations are not supported.
+ */
+class FakeBillingEngine implements BillingEngine {
+
+    static class SkuDetailsQuery {
+        final List<String> skus;
+        final long timeoutMillis;
+        final IabFuture<Inventory> result = new IabFuture<>();
+
+        SkuDetailsQuery(List<String> skus, long timeoutMillis) {
+            this.skus = skus;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    final IabFuture<Void> setup = new IabFuture<>();
+    final List<SkuDetailsQuery> skuDetailsQueries = Collections.synchronizedList(new ArrayList<>());
+    volatile boolean busy = false;
+    volatile boolean disposed = false;
+    // called from isBusy, to run code while the engine is checked
+    volatile Runnable onBusyCheck = null;
+
+    @Override
+    public void setSkipPurchaseVerification(boolean shouldSkipPurchaseVerification) {
+    }
+
+    @Override
+    public void setReconnectTimeout(long millis) {
+    }
+
+    @Override
+    public void setVerificationCache(@Nullable VerificationCache cache) {
+    }
+
+    @Override
+    public void setPurchasesUpdatedListener(@Nullable OnPurchasesUpdatedListener listener) {
+    }
+
+    @Override
+    public IabFuture<Void> startSetup() {
+        return setup;
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+
+    @Override
+    public boolean isBusy() {
+        Runnable check = onBusyCheck;
+        if (check != null) {
+            check.run();
+        }
+        return busy;
+    }
+
+    @Override
+    public IabFuture<Purchase> launchPurchaseFlow(Activity act, String sku, String itemType, int requestCode, String extraData) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
+        return false;
+    }
+
+    @Override
+    public IabFuture<Inventory> querySkuDetailsAsync(List<String> skus, long timeoutMillis) {
+        SkuDetailsQuery query = new SkuDetailsQuery(skus, timeoutMillis);
+        skuDetailsQueries.add(query);
+        return query.result;
+    }
+
+    @Override
+    public IabFuture<Inventory> queryPurchasesAsync(long timeoutMillis) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public IabFuture<Void> queryPurchasesAsync(IabHelper.OnPurchasesPageListener pageListener, Executor pageExecutor,
+                                               long timeoutMillis) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public IabFuture<Purchase> consumeAsync(Purchase purchase, long timeoutMillis) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public IabFuture<List<IabResult>> consumeAsync(List<Purchase> purchases, long timeoutMillis) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public IabFuture<Purchase> acknowledgeAsync(Purchase purchase, long timeoutMillis) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,122 @@
+package highduck.capacitor.billing;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class IabExecutorTest {
+
+    @Test
+    public void tasksAfterShutdownAreCancelled() {
+        IabExecutor executor = new IabExecutor("test", 1);
+        executor.shutdown();
+
+        final AtomicInteger runs = new AtomicInteger();
+        Future<?> future = executor.execute(runs::incrementAndGet);
+
+        assertTrue(future.isCancelled());
+        assertEquals(0, runs.get());
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    @Test
+    public void queuedTasksAreCancelledOnShutdown() throws Exception {
+        IabExecutor executor = new IabExecutor("test", 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<?> running = executor.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        final AtomicInteger runs = new AtomicInteger();
+        List<Future<?>> queued = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            queued.add(executor.execute(runs::incrementAndGet));
+        }
+        executor.shutdown();
+
+        for (Future<?> future : queued) {
+            assertTrue(future.isCancelled());
+        }
+        // the running task is interrupted and finishes on its own
+        running.get(10, TimeUnit.SECONDS);
+        assertEquals(0, runs.get());
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    @Test
+    public void invokeAllAfterShutdownReturnsCancelledFutures() throws Exception {
+        IabExecutor executor = new IabExecutor("test", 2);
+        executor.shutdown();
+
+        List<Future<Integer>> results = executor.invokeAll(Arrays.asList(() -> 1, () -> 2, () -> 3));
+
+        assertEquals(3, results.size());
+        // the last task runs inline on the calling thread, the others were rejected
+        assertTrue(results.get(0).isCancelled());
+        assertTrue(results.get(1).isCancelled());
+        assertFalse(results.get(2).isCancelled());
+        assertEquals(Integer.valueOf(3), results.get(2).get());
+    }
+
+    @Test
+    public void interruptedInvokeAllCancelsRunningTasks() throws Exception {
+        final IabExecutor executor = new IabExecutor("test", 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        // the first task runs on the pool thread until interrupted, the last one inline
+        final List<Callable<Integer>> tasks = Arrays.asList(() -> {
+            started.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return 1;
+        }, () -> {
+            // not interruptible, the interrupt is meant for the wait of invokeAll
+            while (started.getCount() > 0) {
+                Thread.yield();
+            }
+            return 2;
+        });
+        Thread caller = new Thread(() -> {
+            try {
+                executor.invokeAll(tasks);
+            } catch (InterruptedException e) {
+                cancelled.countDown();
+            }
+        });
+        caller.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        caller.interrupt();
+
+        assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,183 @@
+package highduck.capacitor.billing;
+
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class IabFutureTest {
+
+    private static IabException error(int response) {
+        return new IabException(response, "Failed with " + response);
+    }
+
+    private static IabException failure(IabFuture<?> future) throws Exception {
+        try {
+            future.get();
+            fail();
+        } catch (IabException e) {
+            return e;
+        }
+        return null;
+    }
+
+    @Test
+    public void callbacksRunInRegistrationOrder() throws Exception {
+        IabFuture<String> future = new IabFuture<>();
+        List<String> calls = new ArrayList<>();
+        future.whenComplete(IabFuture.DIRECT, (value, error) -> calls.add("first " + value));
+        future.whenComplete(IabFuture.DIRECT, (value, error) -> calls.add("second " + value));
+        assertTrue(calls.isEmpty());
+
+        future.complete("done");
+        // callbacks registered once done run right away
+        future.whenComplete(IabFuture.DIRECT, (value, error) -> calls.add("late " + value));
+
+        assertEquals(Arrays.asList("first done", "second done", "late done"), calls);
+    }
+
+    @Test
+    public void callbacksRunThroughTheirExecutor() throws Exception {
+        IabFuture<String> future = new IabFuture<>();
+        List<String> calls = new ArrayList<>();
+        future.whenComplete(IabFuture.mainThread(), (value, error) -> calls.add("posted " + value));
+        future.whenComplete(IabFuture.DIRECT, (value, error) -> calls.add("direct " + value));
+
+        future.complete("done");
+        assertEquals(Collections.singletonList("direct done"), calls);
+
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(Arrays.asList("direct done", "posted done"), calls);
+    }
+
+    @Test
+    public void onlyTheFirstOutcomeCounts() throws Exception {
+        IabFuture<String> future = new IabFuture<>();
+        List<String> calls = new ArrayList<>();
+        future.whenComplete(IabFuture.DIRECT, (value, error) -> calls.add(value));
+
+        assertTrue(future.complete("first"));
+        assertFalse(future.complete("second"));
+        assertFalse(future.fail(error(IabHelper.IABHELPER_TIMEOUT)));
+
+        assertTrue(future.isDone());
+        assertEquals("first", future.get());
+        assertEquals(Collections.singletonList("first"), calls);
+
+        IabFuture<String> failed = new IabFuture<>();
+        IabException error = error(IabHelper.IABHELPER_TIMEOUT);
+        assertTrue(failed.fail(error));
+        assertFalse(failed.complete("late"));
+        assertSame(error, failure(failed));
+    }
+
+    @Test
+    public void throwingCallbacksDoNotStopTheOthers() throws Exception {
+        IabFuture<String> future = new IabFuture<>();
+        List<String> calls = new ArrayList<>();
+        future.whenComplete(IabFuture.DIRECT, (value, error) -> {
+            throw new IllegalStateException("Broken callback");
+        });
+        future.whenComplete(IabFuture.DIRECT, (value, error) -> calls.add(value));
+        future.whenComplete(IabFuture.mainThread(), (value, error) -> {
+            throw new IllegalStateException("Broken posted callback");
+        });
+
+        assertTrue(future.complete("done"));
+        assertEquals(Collections.singletonList("done"), calls);
+        // neither the completing thread nor the looper get the exception
+        future.whenComplete(IabFuture.DIRECT, (value, error) -> {
+            throw new IllegalStateException("Broken late callback");
+        });
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    @Test
+    public void exceptionsOfFunctionsFailTheNextFuture() throws Exception {
+        IabFuture<String> future = IabFuture.completed("done");
+
+        IabFuture<String> mapped = future.thenApply(IabFuture.DIRECT, value -> value + "!");
+        assertEquals("done!", mapped.get());
+
+        IabException error = error(IabHelper.BILLING_RESPONSE_RESULT_ERROR);
+        assertSame(error, failure(future.thenApply(IabFuture.DIRECT, value -> {
+            throw error;
+        })));
+        assertEquals(IabHelper.IABHELPER_UNKNOWN_ERROR, failure(future.thenApply(IabFuture.DIRECT, value -> {
+            throw new IllegalStateException("Not set up");
+        })).getResult().getResponse());
+        assertEquals(IabHelper.IABHELPER_UNKNOWN_ERROR, failure(future.<String>thenCompose(IabFuture.DIRECT, value -> {
+            throw new IllegalStateException("Not set up");
+        })).getResult().getResponse());
+
+        // failures skip the functions
+        IabFuture<String> failed = IabFuture.failed(error);
+        assertSame(error, failure(failed.thenApply(IabFuture.DIRECT, value -> {
+            throw new AssertionError("Not called");
+        })));
+        assertSame(error, failure(failed.<String>thenCompose(IabFuture.DIRECT, value -> {
+            throw new AssertionError("Not called");
+        })));
+    }
+
+    @Test
+    public void thenComposeFollowsTheNextOperation() throws Exception {
+        IabFuture<String> next = new IabFuture<>();
+        IabFuture<String> composed = IabFuture.completed("first").thenCompose(IabFuture.DIRECT, value -> next);
+        assertFalse(composed.isDone());
+
+        IabException error = error(IabHelper.IABHELPER_REMOTE_EXCEPTION);
+        next.fail(error);
+        assertSame(error, failure(composed));
+    }
+
+    @Test
+    public void allOfKeepsTheOrderOfTheFutures() throws Exception {
+        IabFuture<String> first = new IabFuture<>();
+        IabFuture<String> second = new IabFuture<>();
+        IabFuture<List<String>> all = IabFuture.allOf(Arrays.asList(first, second));
+
+        second.complete("b");
+        assertFalse(all.isDone());
+        first.complete("a");
+
+        assertEquals(Arrays.asList("a", "b"), all.get());
+        assertTrue(IabFuture.allOf(Collections.<IabFuture<String>>emptyList()).get().isEmpty());
+    }
+
+    @Test
+    public void allOfFailsWithTheFirstFailureInOrder() throws Exception {
+        IabFuture<String> first = new IabFuture<>();
+        IabFuture<String> second = new IabFuture<>();
+        IabFuture<String> third = new IabFuture<>();
+        IabFuture<List<String>> all = IabFuture.allOf(Arrays.asList(first, second, third));
+        IabException secondError = error(IabHelper.BILLING_RESPONSE_RESULT_ERROR);
+        IabException thirdError = error(IabHelper.IABHELPER_TIMEOUT);
+
+        third.fail(thirdError);
+        assertFalse(all.isDone());
+        first.complete("a");
+        assertFalse(all.isDone());
+        second.fail(secondError);
+
+        assertSame(secondError, failure(all));
+    }
+}
@@ -0,0 +1,519 @@
+package highduck.capacitor.billing;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Runs thousands of concurrent billing operations against {@link FakeBillingBackend}.
+ * These are the operations the Billing plugin calls one-to-one, so lost callbacks,
+ * double consumptions or unexpected errors here would reach the JS side as well.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class IabHelperStressTest {
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    // errors the fake service fails with, and how the helper reports them
+    private static final Set<Integer> EXPECTED_FAILURES = new HashSet<>(Arrays.asList(
+            IabHelper.BILLING_RESPONSE_RESULT_ERROR,
+            IabHelper.IABHELPER_REMOTE_EXCEPTION));
+
+    private FakeBillingBackend backend;
+    private IabHelper helper;
+
+    @Before
+    public void setUp() {
+        backend = new FakeBillingBackend().setLatency(1).setPageSize(25);
+        helper = new IabHelper(ApplicationProvider.getApplicationContext(), backend.getBase64PublicKey(), backend);
+        final AtomicInteger setupResponse = new AtomicInteger(Integer.MIN_VALUE);
+        helper.startSetup(result -> setupResponse.set(result.getResponse()));
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_OK, setupResponse.get());
+    }
+
+    @After
+    public void tearDown() {
+        helper.dispose();
+    }
+
+    private static List<String> skus(int count) {
+        List<String> skus = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            skus.add(FakeBillingBackend.sku(i));
+        }
+        return skus;
+    }
+
+    // Runs the main looper until the condition holds, callbacks of async operations are posted there
+    private static void idleMainLooperUntil(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.call()) {
+            assertTrue("Timed out waiting for billing callbacks", System.currentTimeMillis() < deadline);
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void concurrentInventoryQueries() throws Exception {
+        for (int i = 0; i < 120; ++i) {
+            backend.addPurchase(FakeBillingBackend.sku(i), i % 4 == 0 ? IabHelper.ITEM_TYPE_SUBS : IabHelper.ITEM_TYPE_INAPP);
+        }
+        final List<String> moreSkus = skus(100);
+        final int inappCount = 90;
+        final int subsCount = 30;
+
+        ExecutorService callers = Executors.newFixedThreadPool(32);
+        try {
+            List<Callable<Inventory>> queries = new ArrayList<>();
+            for (int i = 0; i < 1000; ++i) {
+                queries.add(() -> helper.queryInventory(true, moreSkus));
+            }
+            for (Future<Inventory> result : callers.invokeAll(queries)) {
+                Inventory inv = result.get();
+                assertEquals(inappCount + subsCount, inv.getAllPurchases().size());
+                assertEquals(inappCount, inv.getAllOwnedSkus(IabHelper.ITEM_TYPE_INAPP).size());
+                assertEquals(subsCount, inv.getAllOwnedSkus(IabHelper.ITEM_TYPE_SUBS).size());
+                for (String sku : moreSkus) {
+                    assertTrue(sku, inv.hasDetails(sku));
+                }
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        // details are never requested in chunks larger than the service accepts
+        assertEquals(0, backend.getFailureCount());
+    }
+
+    @Test
+    public void queuedConsumptionsConsumeEachItemOnce() throws Exception {
+        final int count = 2000;
+        List<Purchase> purchases = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            FakeBillingBackend.OwnedItem item = backend.addPurchase(FakeBillingBackend.sku(i), IabHelper.ITEM_TYPE_INAPP);
+            purchases.add(new Purchase(item.itemType, item.purchaseData, item.signature));
+        }
+
+        final Set<String> consumedTokens = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        final AtomicInteger consumeCallbacks = new AtomicInteger();
+        final AtomicInteger inventoryCallbacks = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        int inventoryQueries = 0;
+        for (int i = 0; i < count; ++i) {
+            helper.consumeAsync(purchases.get(i), (purchase, result) -> {
+                if (result.isSuccess()) {
+                    assertTrue("Consumed twice: " + purchase.getToken(), consumedTokens.add(purchase.getToken()));
+                } else {
+                    failures.incrementAndGet();
+                }
+                consumeCallbacks.incrementAndGet();
+            });
+            // inventory refreshes are interleaved with consumptions, like a store screen does
+            if (i % 20 == 0) {
+                ++inventoryQueries;
+                helper.queryInventoryAsync(false, (result, inv) -> {
+                    if (!result.isSuccess()) {
+                        failures.incrementAndGet();
+                    }
+                    inventoryCallbacks.incrementAndGet();
+                });
+            }
+        }
+
+        final int expectedInventoryCallbacks = inventoryQueries;
+        idleMainLooperUntil(() -> consumeCallbacks.get() == count
+                && inventoryCallbacks.get() == expectedInventoryCallbacks);
+
+        assertEquals(0, failures.get());
+        assertEquals(count, consumedTokens.size());
+        assertEquals(count, backend.getConsumedCount());
+        assertTrue(backend.getOwned().isEmpty());
+
+        // consuming again finds nothing to consume
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger response = new AtomicInteger();
+        helper.consumeAsync(purchases.get(0), (purchase, result) -> {
+            response.set(result.getResponse());
+            done.countDown();
+        });
+        idleMainLooperUntil(() -> done.getCount() == 0);
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED, response.get());
+    }
+
+    @Test
+    public void batchConsumptionsRunConcurrently() throws Exception {
+        final int batches = 50;
+        final int batchSize = 40;
+        final AtomicInteger callbacks = new AtomicInteger();
+        final AtomicInteger consumed = new AtomicInteger();
+        for (int b = 0; b < batches; ++b) {
+            List<Purchase> batch = new ArrayList<>(batchSize);
+            for (int i = 0; i < batchSize; ++i) {
+                FakeBillingBackend.OwnedItem item = backend.addPurchase(FakeBillingBackend.sku(i), IabHelper.ITEM_TYPE_INAPP);
+                batch.add(new Purchase(item.itemType, item.purchaseData, item.signature));
+            }
+            helper.consumeAsync(batch, (purchases, results) -> {
+                for (IabResult result : results) {
+                    if (result.isSuccess()) consumed.incrementAndGet();
+                }
+                callbacks.incrementAndGet();
+            });
+        }
+        idleMainLooperUntil(() -> callbacks.get() == batches);
+
+        assertEquals(batches * batchSize, consumed.get());
+        assertEquals(batches * batchSize, backend.getConsumedCount());
+        assertTrue(backend.getMaxConcurrentCalls() > 1);
+    }
+
+    @Test
+    public void fastPathsQueryOnlyWhatIsNeeded() throws Exception {
+        for (int i = 0; i < 30; ++i) {
+            backend.addPurchase(FakeBillingBackend.sku(i), IabHelper.ITEM_TYPE_INAPP);
+        }
+
+        Inventory details = helper.querySkuDetails(skus(40));
+        assertEquals(0, details.getAllPurchases().size());
+        assertTrue(details.hasDetails(FakeBillingBackend.sku(39)));
+        // two chunks of 20 for each item type, no getPurchases() call
+        assertEquals(4, backend.getCallCount());
+
+        Inventory purchases = helper.queryPurchases();
+        assertEquals(30, purchases.getAllPurchases().size());
+        assertFalse(purchases.hasDetails(FakeBillingBackend.sku(0)));
+        assertEquals(80, backend.getSkuDetailsQueriedCount());
+    }
+
+    @Test
+    public void purchasesAreStreamedPageByPage() throws Exception {
+        for (int i = 0; i < 160; ++i) {
+            backend.addPurchase(FakeBillingBackend.sku(i), i < 120 ? IabHelper.ITEM_TYPE_INAPP : IabHelper.ITEM_TYPE_SUBS);
+        }
+        final List<String> streamed = new ArrayList<>();
+        final AtomicInteger pages = new AtomicInteger();
+        final AtomicInteger largestPage = new AtomicInteger();
+        final AtomicInteger pagesAfterFinish = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicInteger response = new AtomicInteger(Integer.MIN_VALUE);
+        helper.queryPurchasesAsync((itemType, page) -> {
+            if (finished.get() > 0) pagesAfterFinish.incrementAndGet();
+            pages.incrementAndGet();
+            largestPage.set(Math.max(largestPage.get(), page.size()));
+            for (Purchase purchase : page) {
+                assertEquals(itemType, purchase.getItemType());
+                streamed.add(purchase.getSku());
+            }
+        }, (result, inv) -> {
+            response.set(result.getResponse());
+            assertEquals(0, inv.getAllPurchases().size());
+            finished.incrementAndGet();
+        });
+        idleMainLooperUntil(() -> finished.get() > 0);
+
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_OK, response.get());
+        assertEquals(1, finished.get());
+        assertEquals(0, pagesAfterFinish.get());
+        // 5 pages of 25 items and 2 pages of subscriptions, in order
+        assertEquals(7, pages.get());
+        assertEquals(25, largestPage.get());
+        assertEquals(skus(160), streamed);
+    }
+
+    @Test
+    public void verificationOutcomesAreMemoized() throws Exception {
+        final VerificationCache cache = new VerificationCache(20);
+        helper.setVerificationCache(cache);
+        List<FakeBillingBackend.OwnedItem> items = new ArrayList<>();
+        for (int i = 0; i < 30; ++i) {
+            items.add(backend.addPurchase(FakeBillingBackend.sku(i), IabHelper.ITEM_TYPE_INAPP));
+        }
+
+        assertEquals(30, helper.queryPurchases().getAllPurchases().size());
+        // least recently used outcomes are evicted
+        assertEquals(20, cache.size());
+        assertEquals(30, helper.queryPurchases().getAllPurchases().size());
+        assertEquals(20, cache.size());
+
+        // a cached outcome is returned without verifying the receipt again
+        FakeBillingBackend.OwnedItem item = items.get(29);
+        String digest = VerificationCache.digest(Security.generatePublicKey(backend.getBase64PublicKey()),
+                item.purchaseData, item.signature);
+        assertEquals(Boolean.TRUE, cache.get(digest));
+        cache.put(digest, false);
+        assertFalse(helper.verifyPurchaseSignature(item.purchaseData, item.signature));
+    }
+
+    @Test
+    public void overlappingSkuDetailsQueriesAreCoalesced() throws Exception {
+        final SkuDetailsCoalescer coalescer = new SkuDetailsCoalescer(IabDeadline.NONE);
+        final List<String> catalog = skus(60);
+        final int queries = 100;
+        final AtomicInteger callbacks = new AtomicInteger();
+        final AtomicInteger incomplete = new AtomicInteger();
+        for (int i = 0; i < queries; ++i) {
+            // sliding windows of 20 products over the catalog, like store screens opening at once
+            final List<String> window = catalog.subList(i % 40, i % 40 + 20);
+            coalescer.query(helper, window, IabDeadline.NONE).whenComplete(IabFuture.DIRECT, (inv, error) -> {
+                for (String sku : window) {
+                    if (error != null || !inv.hasDetails(sku)) incomplete.incrementAndGet();
+                }
+                callbacks.incrementAndGet();
+            });
+        }
+        idleMainLooperUntil(() -> callbacks.get() == queries);
+
+        assertEquals(0, incomplete.get());
+        // without coalescing, each query would fetch all of its 20 products
+        assertTrue(backend.getSkuDetailsQueriedCount() < queries * 20);
+    }
+
+    @Test
+    public void operationsWaitForReconnection() throws Exception {
+        final int count = 200;
+        List<Purchase> purchases = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            FakeBillingBackend.OwnedItem item = backend.addPurchase(FakeBillingBackend.sku(i), IabHelper.ITEM_TYPE_INAPP);
+            purchases.add(new Purchase(item.itemType, item.purchaseData, item.signature));
+        }
+        backend.setAvailable(false);
+        backend.killService();
+
+        final AtomicInteger consumed = new AtomicInteger();
+        final AtomicInteger callbacks = new AtomicInteger();
+        for (Purchase purchase : purchases) {
+            helper.consumeAsync(purchase, (p, result) -> {
+                if (result.isSuccess()) consumed.incrementAndGet();
+                callbacks.incrementAndGet();
+            });
+        }
+        // the first attempts fail, operations keep waiting
+        shadowOf(Looper.getMainLooper()).idleFor(5, TimeUnit.SECONDS);
+        assertEquals(0, callbacks.get());
+
+        backend.setAvailable(true);
+        shadowOf(Looper.getMainLooper()).idleFor(IabReconnector.MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        idleMainLooperUntil(() -> callbacks.get() == count);
+
+        assertEquals(count, consumed.get());
+        assertEquals(count, backend.getConsumedCount());
+        assertTrue(backend.getConnectCount() > 2);
+    }
+
+    @Test
+    public void operationsFailAfterReconnectTimeout() throws Exception {
+        helper.setReconnectTimeout(100);
+        backend.setAvailable(false);
+        backend.killService();
+
+        final AtomicInteger response = new AtomicInteger(Integer.MIN_VALUE);
+        helper.queryInventoryAsync(false, (result, inv) -> response.set(result.getResponse()));
+        shadowOf(Looper.getMainLooper()).idleFor(1, TimeUnit.SECONDS);
+        idleMainLooperUntil(() -> response.get() != Integer.MIN_VALUE);
+
+        assertEquals(IabHelper.IABHELPER_REMOTE_EXCEPTION, response.get());
+    }
+
+    @Test
+    public void stalledOperationsTimeOutAndReleaseTheQueue() throws Exception {
+        backend.setLatency(10 * TIMEOUT_MILLIS);
+        final AtomicInteger stalled = new AtomicInteger(Integer.MIN_VALUE);
+        final AtomicInteger queued = new AtomicInteger(Integer.MIN_VALUE);
+        helper.queryPurchasesAsync(200, (result, inv) -> stalled.set(result.getResponse()));
+        helper.querySkuDetailsAsync(skus(5), 500, (result, inv) -> queued.set(result.getResponse()));
+        assertEquals(2, helper.mAsyncQueue.size(IabHelper.ASYNC_INVENTORY));
+
+        // the stalled query gives its place to the next one
+        shadowOf(Looper.getMainLooper()).idleFor(200, TimeUnit.MILLISECONDS);
+        assertEquals(IabHelper.IABHELPER_TIMEOUT, stalled.get());
+        assertEquals(Integer.MIN_VALUE, queued.get());
+        assertEquals(1, helper.mAsyncQueue.size(IabHelper.ASYNC_INVENTORY));
+
+        shadowOf(Looper.getMainLooper()).idleFor(300, TimeUnit.MILLISECONDS);
+        assertEquals(IabHelper.IABHELPER_TIMEOUT, queued.get());
+        assertFalse(helper.isBusy());
+
+        // the workers are interrupted instead of waiting for the service
+        idleMainLooperUntil(() -> backend.getActiveCallCount() == 0);
+    }
+
+    @Test
+    public void failedPageCancelsThePrefetchedOne() throws Exception {
+        backend.setPageSize(1).setNextPageLatency(10 * TIMEOUT_MILLIS);
+        backend.addPurchase("gems", IabHelper.ITEM_TYPE_INAPP);
+        backend.addPurchase("coins", IabHelper.ITEM_TYPE_INAPP);
+
+        try {
+            helper.queryPurchases(IabHelper.ITEM_TYPE_INAPP, (itemType, page) -> {
+                throw new IllegalStateException("Broken listener");
+            });
+            fail();
+        } catch (IllegalStateException expected) {
+            // the query failed on the first page
+        }
+
+        // the worker fetching the second page is interrupted instead of waiting for the service
+        idleMainLooperUntil(() -> backend.getActiveCallCount() == 0);
+    }
+
+    @Test
+    public void unexpectedExceptionsFailTheOperationAndReleaseTheQueue() throws Exception {
+        IabFuture<Inventory> broken = helper.queryAsync("broken query", () -> {
+            throw new IllegalStateException("Broken");
+        }, TIMEOUT_MILLIS);
+        IabFuture<Inventory> next = helper.queryPurchasesAsync(TIMEOUT_MILLIS);
+
+        idleMainLooperUntil(() -> broken.isDone() && next.isDone());
+        try {
+            broken.get();
+            fail();
+        } catch (IabException e) {
+            assertEquals(IabHelper.IABHELPER_UNKNOWN_ERROR, e.getResult().getResponse());
+        }
+        assertTrue(next.get().getAllPurchases().isEmpty());
+        assertFalse(helper.isBusy());
+    }
+
+    @Test
+    public void disposeFailsWaitingOperations() throws Exception {
+        backend.addPurchase("gems", IabHelper.ITEM_TYPE_INAPP);
+        Purchase purchase = helper.queryInventory(false, null).getPurchase("gems");
+        backend.setLatency(10 * TIMEOUT_MILLIS);
+        IabFuture<Inventory> stalled = helper.queryPurchasesAsync(TIMEOUT_MILLIS);
+        IabFuture<Inventory> queued = helper.querySkuDetailsAsync(skus(5), TIMEOUT_MILLIS);
+        IabFuture<List<IabResult>> consumed = helper.consumeAsync(Collections.singletonList(purchase), TIMEOUT_MILLIS);
+        // owned items and subscriptions of the stalled query, and the consumption
+        idleMainLooperUntil(() -> backend.getActiveCallCount() == 3);
+
+        helper.dispose();
+
+        for (IabFuture<Inventory> query : Arrays.asList(stalled, queued)) {
+            assertTrue(query.isDone());
+            try {
+                query.get();
+                fail();
+            } catch (IabException e) {
+                assertEquals(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, e.getResult().getResponse());
+            }
+        }
+        assertTrue(consumed.isDone());
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, consumed.get().get(0).getResponse());
+        // the workers are interrupted instead of waiting for the service
+        idleMainLooperUntil(() -> backend.getActiveCallCount() == 0);
+    }
+
+    @Test
+    public void failuresAreReportedWithKnownErrors() throws Exception {
+        for (int i = 0; i < 200; ++i) {
+            backend.addPurchase(FakeBillingBackend.sku(i), IabHelper.ITEM_TYPE_INAPP);
+        }
+        backend.setFailureRate(0.1);
+        final List<String> moreSkus = skus(60);
+
+        ExecutorService callers = Executors.newFixedThreadPool(16);
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        try {
+            List<Callable<Void>> queries = new ArrayList<>();
+            for (int i = 0; i < 500; ++i) {
+                queries.add(() -> {
+                    try {
+                        Inventory inv = helper.queryInventory(true, moreSkus);
+                        // partial listing failures are reported per SKU, purchases are all or nothing
+                        assertEquals(200, inv.getAllPurchases().size());
+                        for (String sku : moreSkus) {
+                            Integer error = inv.getSkuDetailsError(sku);
+                            assertTrue(inv.hasDetails(sku) || (error != null && EXPECTED_FAILURES.contains(error)));
+                        }
+                        succeeded.incrementAndGet();
+                    } catch (IabException e) {
+                        assertTrue("Unexpected error: " + e.getResult(),
+                                EXPECTED_FAILURES.contains(e.getResult().getResponse()));
+                        failed.incrementAndGet();
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> result : callers.invokeAll(queries)) {
+                result.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+
+        assertEquals(500, succeeded.get() + failed.get());
+        assertTrue(backend.getFailureCount() > 0);
+    }
+
+    @Test
+    public void purchaseResultsAreDeliveredOnTheMainThreadInOrder() throws Exception {
+        final int requestCode = 10001;
+        final int count = 60;
+        final List<Integer> delivered = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> responses = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger offMainThread = new AtomicInteger();
+        final String otherSignature = backend.addPurchase(FakeBillingBackend.sku(count), IabHelper.ITEM_TYPE_INAPP).signature;
+        for (int i = 0; i < count; ++i) {
+            FakeBillingBackend.OwnedItem item = backend.addPurchase(FakeBillingBackend.sku(i), IabHelper.ITEM_TYPE_INAPP);
+            final int index = i;
+            helper.mRequestCode = requestCode;
+            helper.mPurchasingItemType = IabHelper.ITEM_TYPE_INAPP;
+            helper.mPurchaseListener = (result, purchase) -> {
+                if (Looper.myLooper() != Looper.getMainLooper()) offMainThread.incrementAndGet();
+                delivered.add(index);
+                responses.add(result.getResponse());
+            };
+            // verified purchases, cancellations and purchases signed for another receipt
+            Intent data = new Intent()
+                    .putExtra(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_OK)
+                    .putExtra(IabHelper.RESPONSE_INAPP_PURCHASE_DATA, item.purchaseData)
+                    .putExtra(IabHelper.RESPONSE_INAPP_SIGNATURE, i % 3 == 2 ? otherSignature : item.signature);
+            int resultCode = i % 3 == 1 ? Activity.RESULT_CANCELED : Activity.RESULT_OK;
+            assertTrue(helper.handleActivityResult(requestCode, resultCode, data));
+        }
+        // nothing is delivered before the main looper runs
+        assertEquals(0, delivered.size());
+
+        idleMainLooperUntil(() -> delivered.size() == count);
+        assertEquals(0, offMainThread.get());
+        for (int i = 0; i < count; ++i) {
+            assertEquals(i, (int) delivered.get(i));
+            int expected = i % 3 == 0 ? IabHelper.BILLING_RESPONSE_RESULT_OK
+                    : i % 3 == 1 ? IabHelper.IABHELPER_USER_CANCELLED
+                    : IabHelper.IABHELPER_VERIFICATION_FAILED;
+            assertEquals(expected, (int) responses.get(i));
+        }
+        assertFalse(helper.isBusy());
+    }
+}
@@ -0,0 +1,73 @@
+package highduck.capacitor.billing;
+
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class IabOperationQueueTest {
+
+    @Test
+    public void operationsOfAKindRunOneAtATime() {
+        IabOperationQueue queue = new IabOperationQueue();
+        List<String> events = new ArrayList<>();
+        queue.enqueue("a", "first", () -> events.add("first"), () -> events.add("first closed"));
+        queue.enqueue("a", "second", () -> events.add("second"), () -> events.add("second closed"));
+        queue.enqueue("b", "other", () -> events.add("other"), () -> events.add("other closed"));
+        assertEquals(Arrays.asList("first", "other"), events);
+        assertEquals(2, queue.size("a"));
+
+        queue.finish("a");
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertEquals(Arrays.asList("first", "other", "second"), events);
+        assertEquals(1, queue.size("a"));
+    }
+
+    @Test
+    public void closeFailsWaitingAndRunningOperations() {
+        IabOperationQueue queue = new IabOperationQueue();
+        List<String> events = new ArrayList<>();
+        queue.enqueue("a", "running", () -> { }, () -> events.add("running closed"));
+        queue.enqueue("a", "waiting", () -> events.add("waiting"), () -> events.add("waiting closed"));
+        queue.enqueue("b", "finished", () -> { }, () -> events.add("finished closed"));
+        queue.finish("b");
+
+        queue.close();
+
+        assertEquals(Arrays.asList("running closed", "waiting closed"), events);
+        assertEquals(0, queue.size("a"));
+        // finishing the cancelled operation starts nothing
+        queue.finish("a");
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void operationsAreRejectedOnceClosed() {
+        IabOperationQueue queue = new IabOperationQueue();
+        queue.close();
+        List<String> events = new ArrayList<>();
+
+        queue.enqueue("a", "late", () -> events.add("late"), () -> events.add("late closed"));
+
+        assertEquals(Collections.singletonList("late closed"), events);
+        assertTrue(queue.isClosed());
+        assertEquals(0, queue.size("a"));
+    }
+}
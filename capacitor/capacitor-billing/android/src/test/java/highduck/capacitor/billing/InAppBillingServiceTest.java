@@ -0,0 +1,101 @@
+package highduck.capacitor.billing;
+
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Parcel;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class InAppBillingServiceTest {
+
+    // Service side of the interface, as the stub generated from the v3 AIDL reads the calls
+    private static class FakeService extends Binder {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) {
+            data.enforceInterface(InAppBillingService.DESCRIPTOR);
+            final int apiVersion = data.readInt();
+            final String packageName = data.readString();
+            switch (code) {
+                case InAppBillingService.TRANSACTION_IS_BILLING_SUPPORTED:
+                    calls.add("isBillingSupported " + apiVersion + " " + packageName + " " + data.readString());
+                    reply.writeNoException();
+                    reply.writeInt(IabHelper.BILLING_RESPONSE_RESULT_OK);
+                    return true;
+                case InAppBillingService.TRANSACTION_GET_SKU_DETAILS: {
+                    final String type = data.readString();
+                    final Bundle skus = data.readInt() != 0 ? Bundle.CREATOR.createFromParcel(data) : null;
+                    calls.add("getSkuDetails " + type + " " + skus.getStringArrayList(IabHelper.GET_SKU_DETAILS_ITEM_LIST));
+                    final Bundle result = new Bundle();
+                    result.putInt(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_OK);
+                    result.putStringArrayList(IabHelper.RESPONSE_GET_SKU_DETAILS_LIST,
+                            new ArrayList<>(Arrays.asList("{\"productId\":\"gems\"}")));
+                    reply.writeNoException();
+                    reply.writeInt(1);
+                    result.writeToParcel(reply, 0);
+                    return true;
+                }
+                case InAppBillingService.TRANSACTION_GET_BUY_INTENT:
+                    calls.add("getBuyIntent " + data.readString() + " " + data.readString() + " " + data.readString());
+                    reply.writeNoException();
+                    reply.writeInt(0);
+                    return true;
+                case InAppBillingService.TRANSACTION_GET_PURCHASES: {
+                    calls.add("getPurchases " + data.readString() + " " + data.readString());
+                    final Bundle result = new Bundle();
+                    result.putInt(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_OK);
+                    result.putString(IabHelper.INAPP_CONTINUATION_TOKEN, "next");
+                    reply.writeNoException();
+                    reply.writeInt(1);
+                    result.writeToParcel(reply, 0);
+                    return true;
+                }
+                case InAppBillingService.TRANSACTION_CONSUME_PURCHASE:
+                    calls.add("consumePurchase " + data.readString());
+                    reply.writeNoException();
+                    reply.writeInt(IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    @Test
+    public void callsFollowTheV3Interface() throws Exception {
+        FakeService remote = new FakeService();
+        InAppBillingService service = new InAppBillingService(remote);
+
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_OK, service.isBillingSupported(3, "app", IabHelper.ITEM_TYPE_SUBS));
+
+        Bundle skus = new Bundle();
+        skus.putStringArrayList(IabHelper.GET_SKU_DETAILS_ITEM_LIST, new ArrayList<>(Arrays.asList("gems", "coins")));
+        Bundle details = service.getSkuDetails(3, "app", IabHelper.ITEM_TYPE_INAPP, skus);
+        assertEquals(Arrays.asList("{\"productId\":\"gems\"}"), details.getStringArrayList(IabHelper.RESPONSE_GET_SKU_DETAILS_LIST));
+
+        assertNull(service.getBuyIntent(3, "app", "gems", IabHelper.ITEM_TYPE_INAPP, "payload"));
+        assertEquals("next", service.getPurchases(3, "app", IabHelper.ITEM_TYPE_INAPP, "token")
+                .getString(IabHelper.INAPP_CONTINUATION_TOKEN));
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED, service.consumePurchase(3, "app", "purchase"));
+
+        assertEquals(Arrays.asList(
+                "isBillingSupported 3 app subs",
+                "getSkuDetails inapp [gems, coins]",
+                "getBuyIntent gems inapp payload",
+                "getPurchases inapp token",
+                "consumePurchase purchase"), remote.calls);
+    }
+}
@@ -0,0 +1,140 @@
+package highduck.capacitor.billing;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The streaming parser of Purchase and SkuDetails must read the same values
+ * as the JSONObject opt* calls it replaced.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class JsonFieldsTest {
+
+    private static final String[] PURCHASES = {
+            // a regular receipt
+            "{\"orderId\":\"GPA.1234\",\"packageName\":\"com.example\",\"productId\":\"gems\","
+                    + "\"purchaseTime\":1600000000000,\"purchaseState\":0,\"developerPayload\":\"\","
+                    + "\"purchaseToken\":\"abc\",\"acknowledged\":false}",
+            "{}",
+            // nulls
+            "{\"orderId\":null,\"productId\":null,\"purchaseTime\":null,\"purchaseState\":null,\"purchaseToken\":null}",
+            "{\"token\":null,\"purchaseToken\":\"abc\"}",
+            // numbers stored as strings and strings stored as numbers
+            "{\"purchaseTime\":\"1600000000000\",\"purchaseState\":\"1\",\"orderId\":12345,\"productId\":1.50}",
+            "{\"purchaseTime\":\"1.6e12\",\"purchaseState\":\"2.9\",\"orderId\":1e3,\"productId\":-0}",
+            "{\"purchaseTime\":\"soon\",\"purchaseState\":\"\",\"orderId\":true,\"productId\":false}",
+            "{\"purchaseTime\":1.6E12,\"purchaseState\":3000000000,\"orderId\":9007199254740993,\"productId\":12345678901}",
+            "{\"purchaseTime\":true,\"purchaseState\":[1]}",
+            // unknown nested objects and arrays, and known fields holding them
+            "{\"extra\":{\"a\":[1,2,{\"b\":null}],\"c\":\"}\"},\"productId\":\"gems\",\"more\":[[],{}]}",
+            "{\"orderId\":{\"id\":1,\"list\":[1.0,\"x\",null,true]},\"productId\":[\"a\",2]}",
+            // unicode and escapes
+            "{\"productId\":\"\\u00e9t\\u00E9\",\"orderId\":\"line\\nbreak \\\"quoted\\\" \\/ \\\\\",\"packageName\":\"\u4e2d\u6587\"}",
+            "{\"productId\":\"\\ud83d\\ude00\",\"developerPayload\":\"tab\\there\"}",
+            // token precedence and duplicate keys
+            "{\"token\":\"first\",\"purchaseToken\":\"second\"}",
+            "{\"productId\":\"a\",\"productId\":\"b\"}",
+            // acknowledgement flag of the Play Billing Library
+            "{\"acknowledged\":true}",
+            "{\"acknowledged\":\"TRUE\"}",
+            "{\"acknowledged\":1}",
+            "{\"acknowledged\":null}",
+            // input accepted by the lenient JSONTokener
+            "{productId:gems,'orderId':'single',\"purchaseState\"=1;\"purchaseTime\"=>5}",
+            "{\"productId\":\"gems\",}",
+            "{\"productId\":\"gems\"} trailing",
+            "{\"productId\":\"gems\" /* comment */, # another\n\"orderId\":\"x\"}",
+            "{\"productId\":NULL,\"orderId\":True}",
+            " \n\t{\"productId\":\"gems\"}",
+            // input rejected by both
+            "",
+            "[]",
+            "\"string\"",
+            "{\"productId\":\"gems\"",
+            "{\"productId\"}",
+            "{\"productId\":\"\\u12\"}",
+    };
+
+    private static final String[] SKU_DETAILS = {
+            "{\"productId\":\"gems\",\"type\":\"inapp\",\"price\":\"$0.99\",\"title\":\"Gems\",\"description\":\"Shiny\"}",
+            "{\"productId\":null,\"type\":null,\"price\":null,\"title\":null,\"description\":null}",
+            "{\"price\":0.99,\"price_amount_micros\":990000,\"title\":100,\"description\":2.50}",
+            "{\"title\":\"\\u00c9quipe \\u2603\",\"introductoryPricePeriod\":{\"a\":[]},\"freeTrialPeriod\":[]}",
+            "{\"description\":{\"nested\":{\"deep\":[1,{\"x\":null}]}},\"price\":[]}",
+            "{title:plain,price:'$1'}",
+            "{\"productId\":\"gems\"",
+    };
+
+    private static String purchaseFields(String json) {
+        try {
+            Purchase p = new Purchase(IabHelper.ITEM_TYPE_INAPP, json, "");
+            return p.getOrderId() + "|" + p.getPackageName() + "|" + p.getSku() + "|" + p.getPurchaseTime()
+                    + "|" + p.getPurchaseState() + "|" + p.getDeveloperPayload() + "|" + p.getToken() + "|" + p.isAcknowledged();
+        } catch (JSONException e) {
+            return "JSONException";
+        }
+    }
+
+    // the parsing code before the streaming reader
+    private static String jsonObjectPurchaseFields(String json) {
+        try {
+            JSONObject o = new JSONObject(json);
+            return o.optString("orderId") + "|" + o.optString("packageName") + "|" + o.optString("productId")
+                    + "|" + o.optLong("purchaseTime") + "|" + o.optInt("purchaseState")
+                    + "|" + o.optString("developerPayload") + "|" + o.optString("token", o.optString("purchaseToken"))
+                    + "|" + o.optBoolean("acknowledged");
+        } catch (JSONException e) {
+            return "JSONException";
+        }
+    }
+
+    private static String skuDetailsFields(String json) {
+        try {
+            SkuDetails d = new SkuDetails(IabHelper.ITEM_TYPE_INAPP, json);
+            return d.getSku() + "|" + d.getType() + "|" + d.getPrice() + "|" + d.getTitle() + "|" + d.getDescription();
+        } catch (JSONException e) {
+            return "JSONException";
+        }
+    }
+
+    private static String jsonObjectSkuDetailsFields(String json) {
+        try {
+            JSONObject o = new JSONObject(json);
+            return o.optString("productId") + "|" + o.optString("type") + "|" + o.optString("price")
+                    + "|" + o.optString("title") + "|" + o.optString("description");
+        } catch (JSONException e) {
+            return "JSONException";
+        }
+    }
+
+    @Test
+    public void purchasesMatchJsonObject() {
+        for (String json : PURCHASES) {
+            assertEquals(json, jsonObjectPurchaseFields(json), purchaseFields(json));
+        }
+    }
+
+    @Test
+    public void skuDetailsMatchJsonObject() {
+        for (String json : SKU_DETAILS) {
+            assertEquals(json, jsonObjectSkuDetailsFields(json), skuDetailsFields(json));
+        }
+    }
+
+    @Test
+    public void nullJsonIsRejected() {
+        try {
+            new Purchase(IabHelper.ITEM_TYPE_INAPP, null, "");
+            fail();
+        } catch (JSONException expected) {
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package highduck.capacitor.billing;
+
+import android.app.Activity;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.android.billingclient.api.BillingClient.BillingResponseCode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class PlayBillingEngineTest {
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private FakeBillingClient client;
+    private PlayBillingEngine engine;
+    private final List<Purchase> updated = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() {
+        client = new FakeBillingClient();
+        engine = new PlayBillingEngine(ApplicationProvider.getApplicationContext(), client.getBase64PublicKey(),
+                (context, listener) -> {
+                    client.purchasesListener = listener;
+                    return client;
+                });
+        engine.setPurchasesUpdatedListener(updated::addAll);
+    }
+
+    @After
+    public void tearDown() {
+        engine.dispose();
+    }
+
+    // Runs the main looper until the future is done, the engine completes futures there or on its worker
+    private static <T> T await(IabFuture<T> future) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!future.isDone()) {
+            assertTrue("Timed out waiting for the engine", System.currentTimeMillis() < deadline);
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(1);
+        }
+        return future.get();
+    }
+
+    private static int failure(IabFuture<?> future) throws Exception {
+        try {
+            await(future);
+            fail();
+        } catch (IabException e) {
+            return e.getResult().getResponse();
+        }
+        return 0;
+    }
+
+    // Runs the main looper until the engine has nothing left to do, such as verifying delivered purchases
+    private void settle() throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        do {
+            assertTrue("Timed out waiting for the engine", System.currentTimeMillis() < deadline);
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(1);
+        } while (engine.isBusy());
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    private IabFuture<Purchase> launch(String sku, String itemType) throws Exception {
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        IabFuture<Purchase> flow = engine.launchPurchaseFlow(activity, sku, itemType, 0, "");
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(Collections.singletonList(sku), client.launched);
+        return flow;
+    }
+
+    @Test
+    public void setupFailureFailsTheFuture() throws Exception {
+        client.setupResponse = BillingResponseCode.BILLING_UNAVAILABLE;
+
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, failure(engine.startSetup()));
+    }
+
+    @Test
+    public void subscriptionsFollowFeatureSupport() throws Exception {
+        client.subscriptionsSupported = false;
+        client.addProduct("gems", IabHelper.ITEM_TYPE_INAPP);
+        client.addProduct("vip", IabHelper.ITEM_TYPE_SUBS);
+        await(engine.startSetup());
+
+        Inventory inventory = await(engine.querySkuDetailsAsync(Arrays.asList("gems", "vip"), TIMEOUT_MILLIS));
+        assertTrue(inventory.hasDetails("gems"));
+        assertFalse(inventory.hasDetails("vip"));
+
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        assertEquals(IabHelper.IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE,
+                failure(engine.launchPurchaseFlow(activity, "vip", IabHelper.ITEM_TYPE_SUBS, 0, "")));
+        assertTrue(client.launched.isEmpty());
+    }
+
+    @Test
+    public void skuDetailsOfBothItemTypes() throws Exception {
+        client.addProduct("gems", IabHelper.ITEM_TYPE_INAPP);
+        client.addProduct("vip", IabHelper.ITEM_TYPE_SUBS);
+        await(engine.startSetup());
+
+        Inventory inventory = await(engine.querySkuDetailsAsync(Arrays.asList("gems", "vip", "missing"), TIMEOUT_MILLIS));
+
+        assertEquals(IabHelper.ITEM_TYPE_INAPP, inventory.getSkuDetails("gems").getItemType());
+        assertEquals(IabHelper.ITEM_TYPE_SUBS, inventory.getSkuDetails("vip").getItemType());
+        assertFalse(inventory.hasDetails("missing"));
+    }
+
+    @Test
+    public void ownedPurchasesAreNotAcknowledged() throws Exception {
+        client.addPurchase("gems", IabHelper.ITEM_TYPE_INAPP, false);
+        client.addPurchase("vip", IabHelper.ITEM_TYPE_SUBS, false);
+        client.addPurchase("coins", IabHelper.ITEM_TYPE_INAPP, true);
+        await(engine.startSetup());
+
+        Inventory inventory = await(engine.queryPurchasesAsync(TIMEOUT_MILLIS));
+        settle();
+
+        assertEquals(IabHelper.ITEM_TYPE_INAPP, inventory.getPurchase("gems").getItemType());
+        assertEquals(IabHelper.ITEM_TYPE_SUBS, inventory.getPurchase("vip").getItemType());
+        // pending purchases are not owned yet
+        assertFalse(inventory.hasPurchase("coins"));
+        assertTrue(client.acknowledged.isEmpty());
+    }
+
+    @Test
+    public void purchaseIsAcknowledgedOnlyOnRequest() throws Exception {
+        client.addProduct("vip", IabHelper.ITEM_TYPE_SUBS);
+        await(engine.startSetup());
+
+        IabFuture<Purchase> flow = launch("vip", IabHelper.ITEM_TYPE_SUBS);
+        com.android.billingclient.api.Purchase receipt = client.addPurchase("vip", IabHelper.ITEM_TYPE_SUBS, false);
+        client.deliver(BillingResponseCode.OK, receipt);
+        Purchase purchase = await(flow);
+        settle();
+
+        assertEquals("vip", purchase.getSku());
+        assertEquals(IabHelper.ITEM_TYPE_SUBS, purchase.getItemType());
+        assertFalse(purchase.isAcknowledged());
+        assertTrue(client.acknowledged.isEmpty());
+        assertTrue(updated.isEmpty());
+
+        assertEquals(purchase, await(engine.acknowledgeAsync(purchase, TIMEOUT_MILLIS)));
+        assertEquals(Collections.singletonList(purchase.getToken()), client.acknowledged);
+    }
+
+    @Test
+    public void acknowledgementFailureFailsTheFuture() throws Exception {
+        client.addPurchase("vip", IabHelper.ITEM_TYPE_SUBS, false);
+        await(engine.startSetup());
+        Purchase purchase = await(engine.queryPurchasesAsync(TIMEOUT_MILLIS)).getPurchase("vip");
+        client.acknowledgeResponse = BillingResponseCode.ERROR;
+
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ERROR, failure(engine.acknowledgeAsync(purchase, TIMEOUT_MILLIS)));
+        assertTrue(client.acknowledged.isEmpty());
+    }
+
+    @Test
+    public void acknowledgedPurchasesAreNotAcknowledgedAgain() throws Exception {
+        await(engine.startSetup());
+        Purchase purchase = new Purchase(IabHelper.ITEM_TYPE_SUBS,
+                "{\"productId\":\"vip\",\"purchaseToken\":\"token\",\"acknowledged\":true}", "");
+
+        assertEquals(purchase, await(engine.acknowledgeAsync(purchase, TIMEOUT_MILLIS)));
+        assertTrue(client.acknowledged.isEmpty());
+    }
+
+    @Test
+    public void pendingPurchaseIsReportedOnceCompleted() throws Exception {
+        client.addProduct("gems", IabHelper.ITEM_TYPE_INAPP);
+        await(engine.startSetup());
+
+        IabFuture<Purchase> flow = launch("gems", IabHelper.ITEM_TYPE_INAPP);
+        com.android.billingclient.api.Purchase pending = client.addPurchase("gems", IabHelper.ITEM_TYPE_INAPP, true);
+        client.deliver(BillingResponseCode.OK, pending);
+
+        assertEquals(IabHelper.IABHELPER_UNKNOWN_PURCHASE_RESPONSE, failure(flow));
+        settle();
+        assertTrue(updated.isEmpty());
+
+        // the payment went through, the library sends the purchase outside of a flow
+        client.deliver(BillingResponseCode.OK, client.completePending(pending));
+        settle();
+
+        assertEquals(1, updated.size());
+        assertEquals("gems", updated.get(0).getSku());
+        assertEquals(IabHelper.ITEM_TYPE_INAPP, updated.get(0).getItemType());
+        assertTrue(client.acknowledged.isEmpty());
+    }
+
+    @Test
+    public void itemTypeOfPurchasesOutsideOfFlowsIsLookedUp() throws Exception {
+        await(engine.startSetup());
+        // a redeemed promo code and a subscription bought on the Play Store
+        com.android.billingclient.api.Purchase gems = client.addPurchase("gems", IabHelper.ITEM_TYPE_INAPP, false);
+        com.android.billingclient.api.Purchase vip = client.addPurchase("vip", IabHelper.ITEM_TYPE_SUBS, false);
+        // already consumed again when the update arrives
+        com.android.billingclient.api.Purchase gone = client.addPurchase("coins", IabHelper.ITEM_TYPE_INAPP, false);
+        await(engine.consumeAsync(new Purchase(IabHelper.ITEM_TYPE_INAPP, gone.getOriginalJson(), gone.getSignature()),
+                TIMEOUT_MILLIS));
+
+        client.deliver(BillingResponseCode.OK, gems, vip, gone);
+        settle();
+
+        assertEquals(2, updated.size());
+        assertEquals("gems", updated.get(0).getSku());
+        assertEquals(IabHelper.ITEM_TYPE_INAPP, updated.get(0).getItemType());
+        assertEquals("vip", updated.get(1).getSku());
+        assertEquals(IabHelper.ITEM_TYPE_SUBS, updated.get(1).getItemType());
+    }
+
+    @Test
+    public void disposeFailsPurchaseFlows() throws Exception {
+        client.addProduct("gems", IabHelper.ITEM_TYPE_INAPP);
+        await(engine.startSetup());
+        IabFuture<Purchase> flow = launch("gems", IabHelper.ITEM_TYPE_INAPP);
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        IabFuture<Purchase> queued = engine.launchPurchaseFlow(activity, "gems", IabHelper.ITEM_TYPE_INAPP, 0, "");
+        shadowOf(Looper.getMainLooper()).idle();
+
+        engine.dispose();
+
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, failure(flow));
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, failure(queued));
+        assertEquals(Collections.singletonList("gems"), client.launched);
+    }
+
+    @Test
+    public void canceledPurchaseFlowFails() throws Exception {
+        client.addProduct("gems", IabHelper.ITEM_TYPE_INAPP);
+        await(engine.startSetup());
+
+        IabFuture<Purchase> flow = launch("gems", IabHelper.ITEM_TYPE_INAPP);
+        client.deliver(BillingResponseCode.USER_CANCELED);
+
+        assertEquals(IabHelper.IABHELPER_USER_CANCELLED, failure(flow));
+        assertFalse(engine.isBusy());
+        assertTrue(client.getOwned().isEmpty());
+    }
+}
@@ -0,0 +1,173 @@
+package highduck.capacitor.billing;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PurchaseJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Purchase purchase(String token) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("productId", "sku_" + token);
+        json.put("purchaseToken", token);
+        return new Purchase(IabHelper.ITEM_TYPE_INAPP, json.toString(), "signature_" + token);
+    }
+
+    private static List<String> tokens(List<Purchase> purchases) {
+        List<String> tokens = new ArrayList<>();
+        for (Purchase purchase : purchases) {
+            tokens.add(purchase.getToken());
+        }
+        return tokens;
+    }
+
+    private File journalFile() {
+        return new File(folder.getRoot(), "capacitor.billing.journal");
+    }
+
+    private int lineCount() throws Exception {
+        byte[] bytes = new byte[(int) journalFile().length()];
+        try (RandomAccessFile file = new RandomAccessFile(journalFile(), "r")) {
+            file.readFully(bytes);
+        }
+        int lines = 0;
+        for (byte b : bytes) {
+            if (b == '\n') {
+                ++lines;
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void pendingPurchasesSurviveReload() throws Exception {
+        PurchaseJournal journal = new PurchaseJournal(folder.getRoot());
+        journal.add(purchase("a"));
+        journal.add(purchase("b"));
+        journal.add(purchase("c"));
+        journal.add(purchase("a"));
+        journal.finish(purchase("b"));
+
+        PurchaseJournal reloaded = new PurchaseJournal(folder.getRoot());
+        List<Purchase> pending = reloaded.getPending();
+        assertEquals(Arrays.asList("a", "c"), tokens(pending));
+        assertEquals("sku_a", pending.get(0).getSku());
+        assertEquals("signature_a", pending.get(0).getSignature());
+    }
+
+    @Test
+    public void tornTailIsRepairedOnReload() throws Exception {
+        PurchaseJournal journal = new PurchaseJournal(folder.getRoot());
+        journal.add(purchase("a"));
+        long intact = journalFile().length();
+        journal.add(purchase("b"));
+        // a crash in the middle of writing the second record
+        try (RandomAccessFile file = new RandomAccessFile(journalFile(), "rw")) {
+            file.setLength(intact + (file.length() - intact) / 2);
+        }
+
+        PurchaseJournal reloaded = new PurchaseJournal(folder.getRoot());
+        assertEquals(Collections.singletonList("a"), tokens(reloaded.getPending()));
+        // the next record is not glued to the torn one
+        reloaded.add(purchase("c"));
+        assertEquals(2, lineCount());
+        assertEquals(Arrays.asList("a", "c"), tokens(new PurchaseJournal(folder.getRoot()).getPending()));
+    }
+
+    @Test
+    public void invalidRecordsAreSkipped() throws Exception {
+        PurchaseJournal journal = new PurchaseJournal(folder.getRoot());
+        journal.add(purchase("a"));
+        try (FileOutputStream out = new FileOutputStream(journalFile(), true)) {
+            out.write("garbage\n".getBytes(Charset.forName("UTF-8")));
+        }
+        new PurchaseJournal(folder.getRoot()).add(purchase("b"));
+
+        assertEquals(Arrays.asList("a", "b"), tokens(new PurchaseJournal(folder.getRoot()).getPending()));
+        assertEquals(2, lineCount());
+    }
+
+    @Test
+    public void finishedRecordsAreCompacted() throws Exception {
+        PurchaseJournal journal = new PurchaseJournal(folder.getRoot());
+        for (int i = 0; i < 40; ++i) {
+            journal.add(purchase("t" + i));
+        }
+        for (int i = 0; i < 31; ++i) {
+            journal.finish(purchase("t" + i));
+        }
+        assertEquals(40 + 31, lineCount());
+
+        // the 32nd finished record rewrites the file with the pending purchases only
+        journal.finish(purchase("t31"));
+        assertEquals(8, lineCount());
+        assertFalse(new File(folder.getRoot(), "capacitor.billing.journal.tmp").exists());
+
+        journal.add(purchase("extra"));
+        List<String> expected = new ArrayList<>();
+        for (int i = 32; i < 40; ++i) {
+            expected.add("t" + i);
+        }
+        expected.add("extra");
+        assertEquals(expected, tokens(new PurchaseJournal(folder.getRoot()).getPending()));
+    }
+
+    @Test
+    public void retainOwnedKeepsPurchasesRecordedAfterMark() throws Exception {
+        new PurchaseJournal(folder.getRoot()).add(purchase("loaded"));
+
+        PurchaseJournal journal = new PurchaseJournal(folder.getRoot());
+        journal.add(purchase("owned"));
+        journal.add(purchase("consumed"));
+        long mark = journal.mark();
+        // bought while the inventory query was running
+        journal.add(purchase("new"));
+
+        journal.retainOwned(Collections.singletonList(purchase("owned")), mark);
+
+        assertEquals(Arrays.asList("owned", "new"), tokens(journal.getPending()));
+        assertEquals(Arrays.asList("owned", "new"), tokens(new PurchaseJournal(folder.getRoot()).getPending()));
+
+        journal.retainOwned(Collections.<Purchase>emptyList(), journal.mark());
+        assertEquals(Collections.<String>emptyList(), tokens(journal.getPending()));
+    }
+
+    @Test
+    public void asyncRecordsRunInOrderOnTheJournalThread() throws Exception {
+        PurchaseJournal journal = new PurchaseJournal(folder.getRoot());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        journal.addAsync(purchase("a"));
+        journal.addAsync(purchase("b"));
+        journal.finishAsync(purchase("a"));
+        IabFuture<Void> recorded = journal.addAsync(purchase("c"))
+                .whenComplete(IabFuture.DIRECT, (none, error) -> threads.add(Thread.currentThread().getName()));
+        recorded.get();
+
+        // durable once the future completed
+        assertEquals(Arrays.asList("b", "c"), tokens(new PurchaseJournal(folder.getRoot()).getPending()));
+        assertEquals(Collections.singletonList("PurchaseJournal-1"), threads);
+
+        journal.retainOwnedAsync(Collections.singletonList(purchase("c")), journal.mark());
+        assertEquals(Collections.singletonList("c"), tokens(journal.getPendingAsync().get()));
+    }
+}
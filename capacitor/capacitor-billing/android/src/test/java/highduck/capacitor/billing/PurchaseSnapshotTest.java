@@ -0,0 +1,119 @@
+package highduck.capacitor.billing;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PurchaseSnapshotTest {
+
+    private static Purchase purchase(String itemType, String sku, String token, int state) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("productId", sku);
+        json.put("purchaseToken", token);
+        json.put("purchaseState", state);
+        return new Purchase(itemType, json.toString(), "");
+    }
+
+    private static List<String> tokens(List<Purchase> purchases) {
+        List<String> tokens = new ArrayList<>();
+        for (Purchase purchase : purchases) {
+            tokens.add(purchase.getToken());
+        }
+        Collections.sort(tokens);
+        return tokens;
+    }
+
+    @Test
+    public void firstUpdateAddsEverything() throws Exception {
+        PurchaseSnapshot snapshot = new PurchaseSnapshot();
+        PurchaseSnapshot.Diff diff = snapshot.update(Arrays.asList(
+                purchase(IabHelper.ITEM_TYPE_INAPP, "gems", "t1", 0),
+                purchase(IabHelper.ITEM_TYPE_SUBS, "vip", "t2", 0)));
+
+        assertEquals(Arrays.asList("t1", "t2"), tokens(diff.added));
+        assertTrue(diff.removed.isEmpty());
+        assertTrue(diff.changed.isEmpty());
+    }
+
+    @Test
+    public void updateReportsAddedRemovedAndChanged() throws Exception {
+        PurchaseSnapshot snapshot = new PurchaseSnapshot();
+        snapshot.update(Arrays.asList(
+                purchase(IabHelper.ITEM_TYPE_INAPP, "gems", "kept", 0),
+                purchase(IabHelper.ITEM_TYPE_INAPP, "coins", "gone", 0),
+                purchase(IabHelper.ITEM_TYPE_INAPP, "pending", "changing", 4)));
+
+        PurchaseSnapshot.Diff diff = snapshot.update(Arrays.asList(
+                purchase(IabHelper.ITEM_TYPE_INAPP, "gems", "kept", 0),
+                purchase(IabHelper.ITEM_TYPE_INAPP, "pending", "changing", 0),
+                purchase(IabHelper.ITEM_TYPE_INAPP, "coins", "new", 0)));
+
+        assertEquals(Collections.singletonList("new"), tokens(diff.added));
+        assertEquals(Collections.singletonList("gone"), tokens(diff.removed));
+        assertEquals(Collections.singletonList("changing"), tokens(diff.changed));
+        assertEquals(0, diff.changed.get(0).getPurchaseState());
+    }
+
+    @Test
+    public void samePurchasesGiveEmptyDiff() throws Exception {
+        PurchaseSnapshot snapshot = new PurchaseSnapshot();
+        snapshot.update(Collections.singletonList(purchase(IabHelper.ITEM_TYPE_INAPP, "gems", "t1", 0)));
+
+        assertTrue(snapshot.update(Collections.singletonList(purchase(IabHelper.ITEM_TYPE_INAPP, "gems", "t1", 0))).isEmpty());
+    }
+
+    @Test
+    public void rebuyingSkuIsANewPurchase() throws Exception {
+        // purchases are keyed by token: a consumable bought again is removed and added
+        PurchaseSnapshot snapshot = new PurchaseSnapshot();
+        snapshot.update(Collections.singletonList(purchase(IabHelper.ITEM_TYPE_INAPP, "gems", "old", 0)));
+
+        PurchaseSnapshot.Diff diff = snapshot.update(Collections.singletonList(purchase(IabHelper.ITEM_TYPE_INAPP, "gems", "new", 0)));
+
+        assertEquals(Collections.singletonList("new"), tokens(diff.added));
+        assertEquals(Collections.singletonList("old"), tokens(diff.removed));
+        assertTrue(diff.changed.isEmpty());
+    }
+
+    @Test
+    public void putAndRemoveSinglePurchases() throws Exception {
+        PurchaseSnapshot snapshot = new PurchaseSnapshot();
+        Purchase pending = purchase(IabHelper.ITEM_TYPE_INAPP, "gems", "t1", 4);
+
+        assertEquals(Collections.singletonList("t1"), tokens(snapshot.put(pending).added));
+        assertTrue(snapshot.put(purchase(IabHelper.ITEM_TYPE_INAPP, "gems", "t1", 4)).isEmpty());
+        assertEquals(Collections.singletonList("t1"), tokens(snapshot.put(purchase(IabHelper.ITEM_TYPE_INAPP, "gems", "t1", 0)).changed));
+
+        PurchaseSnapshot.Diff removed = snapshot.remove(pending);
+        assertEquals(Collections.singletonList("t1"), tokens(removed.removed));
+        assertTrue(snapshot.remove(pending).isEmpty());
+        assertTrue(snapshot.update(Collections.<Purchase>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void purchasesWithoutTokenAreKeyedByTypeAndSku() throws Exception {
+        PurchaseSnapshot snapshot = new PurchaseSnapshot();
+        Purchase inapp = purchase(IabHelper.ITEM_TYPE_INAPP, "premium", "", 0);
+        Purchase subs = purchase(IabHelper.ITEM_TYPE_SUBS, "premium", "", 0);
+
+        PurchaseSnapshot.Diff diff = snapshot.update(Arrays.asList(inapp, subs));
+        assertEquals(2, diff.added.size());
+
+        diff = snapshot.update(Collections.singletonList(subs));
+        assertEquals(1, diff.removed.size());
+        assertSame(inapp, diff.removed.get(0));
+    }
+}
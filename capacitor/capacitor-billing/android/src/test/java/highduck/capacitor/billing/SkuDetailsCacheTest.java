@@ -0,0 +1,144 @@
+package highduck.capacitor.billing;
+
+import android.content.Context;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class SkuDetailsCacheTest {
+    private static final long TTL_MILLIS = 60000;
+
+    private final Context context = ApplicationProvider.getApplicationContext();
+
+    @After
+    public void tearDown() {
+        new SkuDetailsCache(context, TTL_MILLIS).clear();
+    }
+
+    private static SkuDetails details(String itemType, String sku, String price) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("productId", sku);
+        json.put("type", itemType);
+        json.put("price", price);
+        json.put("title", "Title of " + sku);
+        json.put("description", "Description of " + sku);
+        return new SkuDetails(itemType, json.toString());
+    }
+
+    private static void advance(long millis) {
+        shadowOf(Looper.getMainLooper()).idleFor(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void entriesGoStaleAfterTtl() throws Exception {
+        SkuDetailsCache cache = new SkuDetailsCache(context, TTL_MILLIS);
+        assertTrue(cache.isStale("gems"));
+
+        cache.put(details(IabHelper.ITEM_TYPE_INAPP, "gems", "$1.00"));
+        assertEquals("$1.00", cache.get("gems").getPrice());
+        assertFalse(cache.isStale("gems"));
+
+        advance(TTL_MILLIS - 1);
+        assertFalse(cache.isStale("gems"));
+        advance(1);
+        assertTrue(cache.isStale("gems"));
+        // stale entries are still returned, to be refreshed in the background
+        assertEquals("$1.00", cache.get("gems").getPrice());
+
+        cache.put(details(IabHelper.ITEM_TYPE_INAPP, "gems", "$1.00"));
+        assertFalse(cache.isStale("gems"));
+    }
+
+    @Test
+    public void refreshReportsChangedListings() throws Exception {
+        SkuDetailsCache cache = new SkuDetailsCache(context, TTL_MILLIS);
+        assertFalse(cache.put(details(IabHelper.ITEM_TYPE_INAPP, "gems", "$1.00")));
+        assertFalse(cache.put(details(IabHelper.ITEM_TYPE_INAPP, "gems", "$1.00")));
+        assertTrue(cache.put(details(IabHelper.ITEM_TYPE_INAPP, "gems", "$2.00")));
+        assertEquals("$2.00", cache.get("gems").getPrice());
+    }
+
+    @Test
+    public void itemTypesDoNotOverwriteEachOther() throws Exception {
+        SkuDetailsCache cache = new SkuDetailsCache(context, TTL_MILLIS);
+        cache.put(details(IabHelper.ITEM_TYPE_INAPP, "premium", "$5.00"));
+        cache.put(details(IabHelper.ITEM_TYPE_SUBS, "premium", "$1.00"));
+
+        assertEquals("$5.00", cache.get(IabHelper.ITEM_TYPE_INAPP, "premium").getPrice());
+        assertEquals("$1.00", cache.get(IabHelper.ITEM_TYPE_SUBS, "premium").getPrice());
+        // the in-app product wins whatever was written last
+        assertEquals(IabHelper.ITEM_TYPE_INAPP, cache.get("premium").getItemType());
+
+        SkuDetailsCache reloaded = new SkuDetailsCache(context, TTL_MILLIS);
+        assertEquals("$5.00", reloaded.get(IabHelper.ITEM_TYPE_INAPP, "premium").getPrice());
+        assertEquals("$1.00", reloaded.get(IabHelper.ITEM_TYPE_SUBS, "premium").getPrice());
+    }
+
+    @Test
+    public void entriesSurviveReload() throws Exception {
+        SkuDetailsCache cache = new SkuDetailsCache(context, TTL_MILLIS);
+        cache.put(details(IabHelper.ITEM_TYPE_SUBS, "vip", "$3.00"));
+
+        SkuDetailsCache reloaded = new SkuDetailsCache(context, TTL_MILLIS);
+        assertEquals("$3.00", reloaded.get("vip").getPrice());
+        assertEquals(IabHelper.ITEM_TYPE_SUBS, reloaded.get("vip").getItemType());
+        assertFalse(reloaded.isStale("vip"));
+        assertNull(reloaded.get(IabHelper.ITEM_TYPE_INAPP, "vip"));
+    }
+
+    @Test
+    public void entriesStoredInTheFutureAreStale() throws Exception {
+        SkuDetails details = details(IabHelper.ITEM_TYPE_INAPP, "gems", "$1.00");
+        // stored before the wall clock was set back by a day
+        context.getSharedPreferences("capacitor.billing.sku_details", Context.MODE_PRIVATE).edit()
+                .putString("inapp/gems", (System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)) + "\n" + details.getOriginalJson())
+                .commit();
+
+        SkuDetailsCache cache = new SkuDetailsCache(context, TTL_MILLIS);
+        assertEquals("$1.00", cache.get("gems").getPrice());
+        assertTrue(cache.isStale("gems"));
+    }
+
+    @Test
+    public void removedProductsAreMissingUntilStoredAgain() throws Exception {
+        SkuDetailsCache cache = new SkuDetailsCache(context, TTL_MILLIS);
+        cache.put(details(IabHelper.ITEM_TYPE_INAPP, "gems", "$1.00"));
+        cache.put(details(IabHelper.ITEM_TYPE_SUBS, "gems", "$2.00"));
+        assertFalse(cache.isMissing("gems"));
+
+        cache.remove("gems");
+        assertNull(cache.get("gems"));
+        assertTrue(cache.isMissing("gems"));
+        assertFalse(cache.isStale("gems"));
+        assertNull(new SkuDetailsCache(context, TTL_MILLIS).get("gems"));
+        // never cached products are not missing, they are unknown
+        assertFalse(cache.isMissing("coins"));
+
+        advance(TTL_MILLIS);
+        assertTrue(cache.isMissing("gems"));
+        assertTrue(cache.isStale("gems"));
+
+        cache.put(details(IabHelper.ITEM_TYPE_INAPP, "gems", "$1.00"));
+        assertFalse(cache.isMissing("gems"));
+        assertEquals("$1.00", cache.get("gems").getPrice());
+    }
+}
@@ -0,0 +1,137 @@
+package highduck.capacitor.billing;
+
+import android.os.Looper;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class SkuDetailsCoalescerTest {
+    private static final long FLIGHT_TIMEOUT_MILLIS = 5000;
+
+    private static Inventory inventory(List<String> skus) throws Exception {
+        Inventory inventory = new Inventory();
+        for (String sku : skus) {
+            JSONObject json = new JSONObject();
+            json.put("productId", sku);
+            json.put("price", "$1.00");
+            inventory.addSkuDetails(new SkuDetails(IabHelper.ITEM_TYPE_INAPP, json.toString()));
+        }
+        return inventory;
+    }
+
+    private static void complete(FakeBillingEngine.SkuDetailsQuery query) throws Exception {
+        query.result.complete(inventory(query.skus));
+    }
+
+    private static int failure(IabFuture<?> future) throws Exception {
+        try {
+            future.get();
+            fail();
+        } catch (IabException e) {
+            return e.getResult().getResponse();
+        }
+        return 0;
+    }
+
+    private static void advance(long millis) {
+        shadowOf(Looper.getMainLooper()).idleFor(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void overlappingQueriesShareFlights() throws Exception {
+        SkuDetailsCoalescer coalescer = new SkuDetailsCoalescer(FLIGHT_TIMEOUT_MILLIS);
+        FakeBillingEngine engine = new FakeBillingEngine();
+
+        IabFuture<Inventory> first = coalescer.query(engine, Arrays.asList("a", "b"), 0);
+        IabFuture<Inventory> second = coalescer.query(engine, Arrays.asList("b", "c"), 0);
+
+        assertEquals(2, engine.skuDetailsQueries.size());
+        assertEquals(Arrays.asList("a", "b"), engine.skuDetailsQueries.get(0).skus);
+        assertEquals(Collections.singletonList("c"), engine.skuDetailsQueries.get(1).skus);
+
+        complete(engine.skuDetailsQueries.get(1));
+        assertFalse(second.isDone());
+        complete(engine.skuDetailsQueries.get(0));
+
+        assertTrue(first.get().hasDetails("a"));
+        assertTrue(second.get().hasDetails("b"));
+        assertTrue(second.get().hasDetails("c"));
+
+        // finished flights are not shared anymore
+        coalescer.query(engine, Collections.singletonList("a"), 0);
+        assertEquals(3, engine.skuDetailsQueries.size());
+    }
+
+    @Test
+    public void callerTimeoutDoesNotFailAttachedQueries() throws Exception {
+        SkuDetailsCoalescer coalescer = new SkuDetailsCoalescer(FLIGHT_TIMEOUT_MILLIS);
+        FakeBillingEngine engine = new FakeBillingEngine();
+
+        IabFuture<Inventory> impatient = coalescer.query(engine, Arrays.asList("a", "b"), 100);
+        IabFuture<Inventory> patient = coalescer.query(engine, Arrays.asList("a", "b"), 0);
+
+        assertEquals(1, engine.skuDetailsQueries.size());
+        FakeBillingEngine.SkuDetailsQuery flight = engine.skuDetailsQueries.get(0);
+        // the flight runs with the timeout of the coalescer, not the one of its first caller
+        assertEquals(FLIGHT_TIMEOUT_MILLIS, flight.timeoutMillis);
+
+        advance(100);
+        assertEquals(IabHelper.IABHELPER_TIMEOUT, failure(impatient));
+        assertFalse(patient.isDone());
+
+        complete(flight);
+        assertTrue(patient.get().hasDetails("a"));
+        assertTrue(patient.get().hasDetails("b"));
+    }
+
+    @Test
+    public void flightFailureIsShared() throws Exception {
+        SkuDetailsCoalescer coalescer = new SkuDetailsCoalescer(FLIGHT_TIMEOUT_MILLIS);
+        FakeBillingEngine engine = new FakeBillingEngine();
+
+        IabFuture<Inventory> first = coalescer.query(engine, Collections.singletonList("a"), 0);
+        IabFuture<Inventory> second = coalescer.query(engine, Collections.singletonList("a"), 0);
+        engine.skuDetailsQueries.get(0).result.fail(new IabException(IabHelper.IABHELPER_TIMEOUT, "Timed out"));
+
+        assertEquals(IabHelper.IABHELPER_TIMEOUT, failure(first));
+        assertEquals(IabHelper.IABHELPER_TIMEOUT, failure(second));
+    }
+
+    @Test
+    public void flightsOfDisposedHelperFail() throws Exception {
+        SkuDetailsCoalescer coalescer = new SkuDetailsCoalescer(FLIGHT_TIMEOUT_MILLIS);
+        FakeBillingEngine released = new FakeBillingEngine();
+        IabFuture<Inventory> stranded = coalescer.query(released, Arrays.asList("a", "b"), 0);
+        released.dispose();
+
+        FakeBillingEngine engine = new FakeBillingEngine();
+        IabFuture<Inventory> fresh = coalescer.query(engine, Collections.singletonList("a"), 0);
+
+        assertEquals(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, failure(stranded));
+        assertEquals(1, engine.skuDetailsQueries.size());
+        complete(engine.skuDetailsQueries.get(0));
+        assertTrue(fresh.get().hasDetails("a"));
+
+        // the other products of the abandoned flight are fetched again too
+        coalescer.query(engine, Collections.singletonList("b"), 0);
+        assertEquals(2, engine.skuDetailsQueries.size());
+    }
+}
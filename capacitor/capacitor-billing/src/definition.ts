@@ -1,3 +1,5 @@
+import {PluginListenerHandle} from "@capacitor/core";
+
 // @ts-ignore
 declare module '@capacitor/core' {
     interface PluginRegistry {
@@ -5,6 +7,17 @@ declare module '@capacitor/core' {
     }
 }
 
+export const enum BillingErrorCode {
+    // android: the call did not finish within its timeout
+    TIMED_OUT = '-1011'
+}
+
+export interface TimeoutOptions {
+    // android: milliseconds the call may take before it is rejected with TIMED_OUT,
+    // overrides the `operation_timeout` config, 0 waits as long as it takes
+    timeout?: number;
+}
+
 export interface PurchaseOptions {
     sku: string;
     subscribe?: boolean;
@@ -28,7 +41,7 @@ export interface PurchaseResult {
     receipt: string;
 }
 
-export interface ConsumePurchaseOptions {
+export interface ConsumePurchaseOptions extends TimeoutOptions {
     type: string;
     receipt: string;
     signature: string;
@@ -40,7 +53,27 @@ export interface ConsumePurchaseResult {
     token: string;
 }
 
-export interface SkuDetailsOptions {
+export interface AcknowledgePurchaseOptions extends TimeoutOptions {
+    type: string;
+    receipt: string;
+    signature: string;
+}
+
+export interface ConsumePurchasesOptions extends TimeoutOptions {
+    purchases: ConsumePurchaseOptions[];
+}
+
+export interface ConsumePurchasesItemResult extends Partial<ConsumePurchaseResult> {
+    success: boolean;
+    error?: string;
+}
+
+export interface ConsumePurchasesResult {
+    // one result for each of `purchases`, in the same order
+    results: ConsumePurchasesItemResult[];
+}
+
+export interface SkuDetailsOptions extends TimeoutOptions {
     skus: string[]
 }
 
@@ -56,22 +89,71 @@ export interface SkuDetails {
 export interface SkuDetailsResult {
     list: SkuDetails[];
 
+    // android: products whose details request failed, details of the other products are still in `list`
+    failedProductIds?: string[];
+
     // for ios could be invalid list
     // invalidProductsIds: string[]
 }
 
+export interface RestorePurchasesOptions extends TimeoutOptions {
+    // android: send the purchases page by page as `restorePurchasesPage` events instead of in the result
+    stream?: boolean;
+}
+
 export interface RestorePurchasesResult {
     purchases: PurchaseResult[];
+
+    // android: number of purchases sent as `restorePurchasesPage` events, streaming restore only
+    count?: number;
+}
+
+export interface RestorePurchasesCompletedEvent {
+    count: number;
+    error?: string;
+}
+
+export interface PurchasesUpdatedEvent {
+    added: PurchaseResult[];
+    removed: PurchaseResult[];
+    changed: PurchaseResult[];
 }
 
 export interface BillingProtocol {
-    initialize(): Promise<void>;
+    initialize(options?: TimeoutOptions): Promise<void>;
 
     purchase(options: PurchaseOptions): Promise<PurchaseResult>;
 
     consumePurchase(options: ConsumePurchaseOptions): Promise<ConsumePurchaseResult>;
 
+    // android: consumes several purchases at once, failures are reported per item
+    consumePurchases(options: ConsumePurchasesOptions): Promise<ConsumePurchasesResult>;
+
+    // android: acknowledges a granted purchase which is not consumed, such as a subscription,
+    // required by the `play` engine within three days or the purchase is refunded
+    acknowledgePurchase(options: AcknowledgePurchaseOptions): Promise<ConsumePurchaseResult>;
+
     getSkuDetails(options: SkuDetailsOptions): Promise<SkuDetailsResult>;
 
-    restorePurchases(): Promise<RestorePurchasesResult>;
+    restorePurchases(options?: RestorePurchasesOptions): Promise<RestorePurchasesResult>;
+
+    // android: listings from the SKU details cache were refreshed and their price, title or description changed
+    addListener(eventName: 'skuDetailsChanged', listenerFunc: (result: SkuDetailsResult) => void): PluginListenerHandle;
+
+    // android: changes of owned purchases since the last known inventory,
+    // sent after purchases, consumptions, restores and when the app resumes
+    addListener(eventName: 'purchasesUpdated', listenerFunc: (event: PurchasesUpdatedEvent) => void): PluginListenerHandle;
+
+    // android: purchases completed in an earlier session but not consumed yet, sent once after `initialize`
+    addListener(eventName: 'pendingPurchases', listenerFunc: (event: RestorePurchasesResult) => void): PluginListenerHandle;
+
+    // android: owned consumables of the `auto_consume` config, sent after `initialize` to be granted
+    // right before they are consumed; grant each `purchaseToken` once, a failed consumption is sent again on the next start
+    addListener(eventName: 'autoConsumePurchases', listenerFunc: (event: RestorePurchasesResult) => void): PluginListenerHandle;
+
+    // android: a page of owned purchases during a streaming restore, sent as soon as it is verified
+    addListener(eventName: 'restorePurchasesPage', listenerFunc: (event: RestorePurchasesResult) => void): PluginListenerHandle;
+
+    // android: a streaming restore finished, after its last page
+    addListener(eventName: 'restorePurchasesCompleted', listenerFunc: (event: RestorePurchasesCompletedEvent) => void): PluginListenerHandle;
 }
\ No newline at end of file